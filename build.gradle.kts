@@ -7,6 +7,7 @@ plugins {
     kotlin("plugin.serialization") version "2.1.0"
     id("fabric-loom") version "1.16-SNAPSHOT"
     id("com.gradleup.shadow") version "9.3.0"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 version = project.property("mod_version") as String
@@ -141,12 +142,26 @@ dependencies {
 
     // Lua
     compileOnly("org.luaj:luaj-jse:3.0.1")
+
+    // Бенчмарки
+    jmhRuntimeOnly("org.luaj:luaj-jse:3.0.1")
 }
 
 tasks.test {
     useJUnitPlatform()
 }
 
+// Бенчмарки не загружают классы Minecraft и запускаются без клиента: ./gradlew jmh
+jmh {
+    jmhVersion = "1.37"
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    resultFormat = "JSON"
+    jvmArgsAppend.add("-Djava.awt.headless=true")
+    includes.addAll(providers.gradleProperty("jmh.includes").map { listOf(it) }.orElse(emptyList()))
+}
+
 tasks.processResources {
     inputs.property("version", project.version)
     inputs.property("minecraft_version", project.property("minecraft"))
@@ -1,6 +1,5 @@
 package org.lain.engine.client
 
-import org.lain.cyberia.ecs.iterate
 import org.lain.engine.storage.Uuid
 import org.lain.engine.util.addIfNotNull
 import org.lain.engine.world.HintDestroyEvent
@@ -34,7 +33,7 @@ class ClientHintState(val states: MutableMap<Uuid, HintState> = mutableMapOf())
 @see Chunks
  */
 fun GameSession.handleHintEvents() {
-    world.iterate<VoxelEvent> { e, voxelEvent ->
+    world.iterateEvents<VoxelEvent> { voxelEvent ->
         val updates = voxelEvent.updates
         val positions = voxelEvent.positions
         if (updates is VoxelUpdate.AddHint) {
@@ -47,10 +46,10 @@ fun GameSession.handleHintEvents() {
     }
 
     val toDestroy = mutableSetOf<Uuid>()
-    world.iterate<VoxelDestroyEvent> { e, (pos, hint) ->
+    world.iterateEvents<VoxelDestroyEvent> { (pos, hint) ->
         toDestroy.addIfNotNull(hint?.uuid)
     }
-    world.iterate<HintDestroyEvent> { e, hint ->
+    world.iterateEvents<HintDestroyEvent> { hint ->
         toDestroy.add(hint.uuid)
     }
 
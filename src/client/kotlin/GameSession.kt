@@ -101,6 +101,8 @@ class GameSession(
     var soundsToBroadcast = LinkedList<SoundBroadcast>()
     var callbacks: Callbacks = Callbacks()
     val endTickTaskExecutor = TaskExecutor()
+    // Поля из последней отправки каждого синхронизатора, по id сущности и эндпоинту. Дельты сервера считаются от них
+    val synchronizedFields = HashMap<Pair<String, String>, Array<ByteArray>>()
 
     var inspectionMode: Boolean = false
         set(value) {
@@ -210,6 +212,7 @@ class GameSession(
         val players = playerStorage.getAll()
         world.players.clear()
         world.players.addAll(players)
+        world.refreshSpatialIndex()
 
         movementManager.stamina = mainPlayer.stamina
         if (mainPlayer.has<SpawnMark>()) {
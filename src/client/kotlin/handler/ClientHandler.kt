@@ -468,6 +468,16 @@ class ClientHandler(val client: EngineClient, val eventBus: ClientEventBus) {
         }
     }
 
+    fun applySynchronizationBundle(gameSession: GameSession, entries: List<ByteArray>) {
+        for (entry in entries) {
+            when (val delta = decodeSynchronizationDelta(entry)) {
+                is WorldStateDeltaPacket -> applyWorldState(gameSession, delta.components)
+                is EntityDeltaPacket -> applyEntity(gameSession, delta.dto.persistentId, delta.dto.components)
+                is DynamicVoxelDeltaPacket -> applyDynamicVoxelDelta(gameSession, delta.voxelPos, delta.components)
+            }
+        }
+    }
+
     fun applyItemUnload(gameSession: GameSession, items: List<PersistentId>) = with(gameSession.world) {
         items.forEach { item -> gameSession.itemStorage.remove(item)?.destroy() }
     }
@@ -9,6 +9,9 @@ import org.lain.engine.transport.packet.*
 fun ClientHandler.runEndpoints(clientAcknowledgeHandler: ClientAcknowledgeHandler) {
     clientAcknowledgeHandler.run()
 
+    // Палитра уже применена при декодировании пакета
+    CLIENTBOUND_COMPONENT_PALETTE_ENDPOINT.registerClientReceiver { _ -> }
+
     CLIENTBOUND_JOIN_GAME_ENDPOINT.registerClientReceiver { _ ->
         taskExecutor.add("join_game") { applyJoinGame(playerData, worldData, setupData, notifications) }
     }
@@ -97,22 +100,14 @@ fun ClientHandler.runEndpoints(clientAcknowledgeHandler: ClientAcknowledgeHandle
         applyVoxelEvent(event)
     }
 
-    registerGameSessionReceiver(CLIENTBOUND_DYNAMIC_VOXEL_DELTA_ENDPOINT) {
-        applyDynamicVoxelDelta(it, voxelPos, components)
-    }
-
-    registerGameSessionReceiver(CLIENTBOUND_WORLD_STATE_DELTA_PACKET) { gameSession ->
-        applyWorldState(gameSession, components)
+    registerGameSessionReceiver(CLIENTBOUND_SYNCHRONIZATION_BUNDLE_ENDPOINT) {
+        applySynchronizationBundle(it, entries)
     }
 
     CLIENTBOUND_CHUNK_ENDPOINT.registerClientReceiver { _ ->
         taskExecutor.add("chunk-load") { applyChunkPacket(chunk) }
     }
 
-    registerGameSessionReceiver(CLIENTBOUND_ENTITY_DELTA_ENDPOINT) {
-        applyEntity(it, dto.persistentId, dto.components)
-    }
-
     registerGameSessionReceiver(CLIENTBOUND_INTENT_ENDPOINT) { _ -> applyIntent(dto, intent) }
 
     registerGameSessionReceiver(CLIENTBOUND_ITEM_UNLOAD_ENDPOINT, { it.endTickTaskExecutor }) {
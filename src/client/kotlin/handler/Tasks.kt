@@ -91,12 +91,23 @@ fun <T : Entity, I : Any, C : Component> ClientHandler.registerSynchronizerEndpo
     idGetter: (String) -> I,
 ) {
     registerGameSessionReceiver(synchronizer.endpoint) { gameSession ->
-        val id = idGetter(id)
-        val entity = storageGetter(gameSession).get(id) ?: return@registerGameSessionReceiver
+        val key = id to synchronizer.endpoint.identifier
+        val entity = storageGetter(gameSession).get(idGetter(id)) ?: return@registerGameSessionReceiver
+        // Недостающие поля берутся из прошлой отправки сервера, а не из текущего значения: его мог изменить клиент
+        val baseline = gameSession.synchronizedFields[key]
+        if (baseline == null && !synchronizer.codec.isFull(delta)) {
+            LOGGER.warn("Получены изменённые поля ${synchronizer.componentType} сущности $id без базового значения")
+            return@registerGameSessionReceiver
+        }
+        val fields = synchronizer.codec.merge(delta, baseline)
+        gameSession.synchronizedFields[key] = fields
+        val resolve = Runnable {
+            synchronizer.resolver(entity, synchronizer.codec.decode(fields))
+        }
         if (interaction != null) {
-            pendingSnapshots.add(interaction!! to Runnable { synchronizer.resolver(entity, component) })
+            pendingSnapshots.add(interaction!! to resolve)
         } else {
-            synchronizer.resolver(entity, component)
+            resolve.run()
         }
     }
 }
@@ -10,11 +10,13 @@ import org.lain.engine.mc.PayloadRegistry
 import org.lain.engine.mc.minecraftIdentifier
 import org.lain.engine.transport.Endpoint
 import org.lain.engine.transport.Packet
+import org.lain.engine.transport.packet.ReliableReceiver
 import org.lain.engine.util.FixedSizeList
 import org.lain.engine.util.nextIdFast
 
 class ClientMinecraftNetwork : ClientTransportContext {
     override val packetHistory: FixedSizeList<Long> = FixedSizeList(3000)
+    override val reliableReceiver = ReliableReceiver()
     private val engine by injectClient()
     private val channels: MutableList<Endpoint<*>> = mutableListOf()
     private val ctx = ClientContext(engine)
@@ -35,6 +37,7 @@ class ClientMinecraftNetwork : ClientTransportContext {
             client.execute {
                 packetHistory.add(payload.packetId)
                 if (client.level == null) return@execute
+                if (!reliableReceiver.receive(payload.packetId)) return@execute
                 try {
                     with(ctx) {
                         packet.handler(ctx)
@@ -10,6 +10,7 @@ import org.lain.engine.server.EngineServer
 import org.lain.engine.transport.*
 import org.lain.engine.transport.packet.EngineChunkPacket
 import org.lain.engine.transport.packet.JoinGamePacket
+import org.lain.engine.transport.packet.ReliableReceiver
 import org.lain.engine.util.FixedSizeList
 import org.lain.engine.util.nextIdFast
 
@@ -45,6 +46,7 @@ class ClientSingleplayerTransport(
 ) : ClientTransportContext {
     private val context = ClientContext(client)
     override val packetHistory: FixedSizeList<Long> = FixedSizeList(4000)
+    override val reliableReceiver = ReliableReceiver()
 
     override fun unregisterAll() {
         CommonSingleplayerEndpointRegistry.unregisterAll(Side.CLIENT)
@@ -56,6 +58,7 @@ class ClientSingleplayerTransport(
     ) {
         CommonSingleplayerEndpointRegistry.register(endpoint, Side.CLIENT) { packet, id ->
             client.execute { packetHistory.add(id) }
+            if (!reliableReceiver.receive(id)) return@register
             handler.invoke(packet, context)
         }
     }
@@ -110,7 +113,7 @@ class ServerSingleplayerTransport(
         lazyPacket: (EnginePlayer) -> P
     ) {
         val plr = mainPlayer ?: return
-        sendClientboundPacket(endpoint, lazyPacket(plr), plr.id)
+        endpoint.sendS2C(lazyPacket(plr), plr.id)
     }
 
     override fun isOnThread(): Boolean = server.isOnThread()
@@ -3,7 +3,6 @@ package org.lain.engine.client.mc
 import net.minecraft.client.multiplayer.ClientLevel
 import net.minecraft.core.particles.ParticleTypes
 import org.lain.cyberia.ecs.Component
-import org.lain.cyberia.ecs.iterate
 import org.lain.engine.item.BulletFire
 import org.lain.engine.item.BulletParameters
 import org.lain.engine.item.DEFAULT_BULLET_MASS
@@ -18,10 +17,10 @@ import org.lain.engine.world.World
 fun updateBulletsVisual(
     world: World,
     mcWorld: ClientLevel,
-) = world.iterate<BulletFire> { _, event ->
+) = world.iterateEvents<BulletFire> { event ->
     val shoot = event.shoot
     mcWorld.spawnGunSmokeParticle(shoot.start, event.smoke.velocity, shoot.vector, event.smoke.offset)
-    val hitResult = raycastBulletEvent(mcWorld, shoot) ?: return@iterate
+    val hitResult = raycastBulletEvent(mcWorld, shoot) ?: return@iterateEvents
     val blockPos = hitResult.blockPos
     repeat(5) { mcWorld.addBreakingBlockEffect(blockPos, hitResult.direction) }
 
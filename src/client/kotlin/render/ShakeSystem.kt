@@ -38,7 +38,7 @@ fun World.updateShootShakeSystem(mainPlayer: EnginePlayer, camera: Camera) {
         item.removeComponent<Recoil>()
     }
 
-    iterate<BulletHit> { _, hit ->
+    iterateEvents<BulletHit> { hit ->
         camera.shake(
             ShakeEffect(
                 hit.bullet.bulletMass * 10f,
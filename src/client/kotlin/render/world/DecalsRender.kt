@@ -9,7 +9,6 @@ import net.minecraft.client.renderer.texture.OverlayTexture
 import net.minecraft.client.renderer.texture.TextureManager
 import net.minecraft.util.CommonColors
 import org.joml.Vector3f
-import org.lain.cyberia.ecs.iterate
 import org.lain.engine.client.render.ui.ColorMc
 import org.lain.engine.mc.engineId
 import org.lain.engine.util.math.Pos
@@ -83,7 +82,7 @@ class DecalSystem {
             .flatMap { it.value.toList() }
     }
 
-    fun update(world: World) = world.iterate<VoxelEvent> { _, event ->
+    fun update(world: World) = world.iterateEvents<VoxelEvent> { event ->
         val updates = event.updates
         if (updates is VoxelUpdate.AttachDecal || updates is VoxelUpdate.DetachDecal || (updates is VoxelUpdate.Set && updates.decals != null)) {
             event.positions.forEach { pos ->
@@ -6,6 +6,7 @@ import org.lain.engine.transport.Endpoint
 import org.lain.engine.transport.Packet
 import org.lain.engine.transport.PacketContext
 import org.lain.engine.transport.PacketHandler
+import org.lain.engine.transport.packet.ReliableReceiver
 import org.lain.engine.util.FixedSizeList
 import org.lain.engine.util.inject
 import org.lain.engine.util.injectValue
@@ -18,6 +19,7 @@ data class ClientContext(
 
 interface ClientTransportContext {
     val packetHistory: FixedSizeList<Long>
+    val reliableReceiver: ReliableReceiver
     fun unregisterAll()
     fun <P : Packet> registerEndpoint(endpoint: Endpoint<P>, handler: ClientPacketHandler<P>)
     fun <P : Packet> sendServerboundPacket(endpoint: Endpoint<P>, packet: P)
@@ -0,0 +1,127 @@
+package org.lain.engine.benchmark
+
+import org.lain.engine.chat.acoustic.AcousticGeneration
+import org.lain.engine.chat.acoustic.AcousticView
+import org.lain.engine.chat.acoustic.Grid3f
+import org.lain.engine.chat.acoustic.NEIGHBOURS_VON_NEUMANN
+import org.lain.engine.chat.acoustic.simulateDijkstra
+import org.openjdk.jmh.annotations.*
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Распространение звука по синтетической сцене: воздух, перегородки каждые 8 блоков и проёмы в них.
+ * [propagateReference] - прежняя реализация на [PriorityQueue] для сравнения
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class AcousticBenchmark {
+    @Param("24", "32", "48")
+    var range = 0
+
+    private lateinit var passability: Grid3f
+    private lateinit var view: AcousticView
+    private lateinit var generation: AcousticGeneration
+
+    @Setup
+    fun setup() {
+        val size = range * 2
+        passability = Grid3f(size, size, size) { 1f }
+        for (x in 0 until size) {
+            for (y in 0 until size) {
+                for (z in 0 until size) {
+                    val wall = x % 8 == 0 || z % 8 == 0
+                    val doorway = (x + z) % 8 == 4 && y % 8 < 3
+                    if (wall && !doorway) passability[x, y, z] = 0.01f
+                }
+            }
+        }
+        view = object : AcousticView {
+            override fun getPassability(x: Int, y: Int, z: Int): Float = passability[x, y, z]
+        }
+        generation = AcousticGeneration(Grid3f(size, size, size))
+    }
+
+    @Setup(Level.Invocation)
+    fun placeSource() {
+        val volume = generation.volume
+        volume.fill(0f)
+        volume[range, range, range] = 1f
+    }
+
+    @Benchmark
+    fun propagate(): Grid3f {
+        simulateDijkstra(view, generation, maxVolume = 10f, attenuation = 0.9f)
+        return generation.volume
+    }
+
+    @Benchmark
+    fun propagateReference(): Grid3f {
+        referenceDijkstra(view, generation, maxVolume = 10f, attenuation = 0.9f)
+        return generation.volume
+    }
+}
+
+private data class Node(
+    val x: Int,
+    val y: Int,
+    val z: Int,
+    val volume: Float
+)
+
+private fun referenceDijkstra(
+    view: AcousticView,
+    generation: AcousticGeneration,
+    maxVolume: Float,
+    attenuation: Float = 1f,
+) {
+    val volumeGrid = generation.volume
+    val queue = PriorityQueue<Node> { a, b -> b.volume.compareTo(a.volume) }
+
+    for (cx in 0 until volumeGrid.w) {
+        for (cy in 0 until volumeGrid.h) {
+            for (cz in 0 until volumeGrid.d) {
+                val v = volumeGrid[cx, cy, cz]
+                if (v > 0.0f) {
+                    queue.add(Node(cx, cy, cz, v))
+                }
+            }
+        }
+    }
+
+    val EPS = 1e-6f
+
+    while (queue.isNotEmpty()) {
+        val node = queue.poll()
+        val x = node.x
+        val y = node.y
+        val z = node.z
+        val v = node.volume
+
+        if (v + EPS < volumeGrid[x, y, z]) continue
+
+        for (offset in NEIGHBOURS_VON_NEUMANN) {
+            val nx = x + offset[0]
+            val ny = y + offset[1]
+            val nz = z + offset[2]
+
+            if (nx !in 0 until volumeGrid.w || ny !in 0 until volumeGrid.h || nz !in 0 until volumeGrid.d)
+                continue
+
+            val pass = view.getPassability(nx, ny, nz)
+            if (pass <= 0f) continue
+
+            var spread = v * pass * attenuation
+            if (spread <= 0.01f) continue
+
+            if (spread > maxVolume) spread = maxVolume
+
+            val current = volumeGrid[nx, ny, nz]
+            if (spread > current + EPS) {
+                volumeGrid[nx, ny, nz] = spread
+                queue.add(Node(nx, ny, nz, spread))
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.lain.engine.benchmark
+
+import org.lain.cyberia.ecs.setComponent
+import org.lain.engine.bootstrap
+import org.lain.engine.item.Count
+import org.lain.engine.item.ItemName
+import org.lain.engine.item.ItemStorage
+import org.lain.engine.script.ThreadSafeNamespaceStorageAccessImpl
+import org.lain.engine.script.emptyNamespacedStorage
+import org.lain.engine.storage.PersistentIdComponent
+import org.lain.engine.storage.Uuid
+import org.lain.engine.util.component.EntityId
+import org.lain.engine.util.component.Networked
+import org.lain.engine.util.math.ImmutableEVec3
+import org.lain.engine.world.Location
+import org.lain.engine.world.World
+import org.lain.engine.world.WorldId
+import org.lain.engine.world.world
+import kotlin.random.Random
+
+private val bootstrapped by lazy { bootstrap() }
+
+/**
+ * Мир без Minecraft. Поток-владелец - текущий, поэтому создавать мир нужно в `@Setup` того же состояния
+ */
+fun benchmarkWorld(): World {
+    bootstrapped
+    return world(
+        WorldId("benchmark"),
+        Thread.currentThread(),
+        ItemStorage(),
+        ThreadSafeNamespaceStorageAccessImpl(emptyNamespacedStorage())
+    )
+}
+
+/**
+ * Заполняет мир сущностями с пересекающимися наборами компонентов, чтобы выборки были разной плотности:
+ * у всех есть [Location] и [PersistentIdComponent], у половины - [Networked], у трети - [Count], у четверти - [ItemName]
+ */
+fun World.spawnSyntheticEntities(count: Int, radius: Float, random: Random = Random(42)): List<EntityId> {
+    return List(count) { i ->
+        componentManager.addEntity {
+            setComponent(Location(randomPosition(random, radius)))
+            setComponent(PersistentIdComponent(Uuid.next()))
+            if (i % 2 == 0) setComponent(Networked)
+            if (i % 3 == 0) setComponent(Count(1, 64))
+            if (i % 4 == 0) setComponent(ItemName("Предмет $i"))
+        }
+    }
+}
+
+fun randomPosition(random: Random, radius: Float) = ImmutableEVec3(
+    random.nextFloat() * radius * 2 - radius,
+    random.nextFloat() * 64f,
+    random.nextFloat() * radius * 2 - radius
+)
@@ -0,0 +1,118 @@
+package org.lain.engine.benchmark
+
+import org.lain.cyberia.ecs.componentTypeOf
+import org.lain.cyberia.ecs.iterate
+import org.lain.cyberia.ecs.removeComponent
+import org.lain.cyberia.ecs.setComponent
+import org.lain.engine.item.Count
+import org.lain.engine.item.ItemName
+import org.lain.engine.item.Mass
+import org.lain.engine.storage.PersistentIdComponent
+import org.lain.engine.util.component.EntityId
+import org.lain.engine.util.component.Networked
+import org.lain.engine.util.math.ImmutableEVec3
+import org.lain.engine.world.Location
+import org.lain.engine.world.World
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ComponentWorldBenchmark {
+    @Param("1000", "10000")
+    var entities = 0
+
+    private lateinit var world: World
+    private lateinit var spawned: List<EntityId>
+    private var cursor = 0
+
+    @Setup
+    fun setup() {
+        world = benchmarkWorld()
+        spawned = world.spawnSyntheticEntities(entities, 256f)
+        // Половина сущностей изменена в текущем тике - типичная дельта синхронизации
+        world.componentManager.advanceChangeTick()
+        spawned.forEachIndexed { i, entity ->
+            if (i % 2 == 0) world.componentManager.markDirty(entity, componentTypeOf(PersistentIdComponent::class))
+        }
+    }
+
+    @Benchmark
+    fun addAndDestroyEntity(blackhole: Blackhole) {
+        val entity = world.componentManager.addEntity {
+            setComponent(Location(ImmutableEVec3()))
+            setComponent(Count(1, 64))
+        }
+        blackhole.consume(entity)
+        world.destroy(entity)
+    }
+
+    // Mass нет ни у одной синтетической сущности: каждый вызов - добавление и удаление, а состояние мира
+    // для остальных замеров не меняется
+    @Benchmark
+    fun setAndRemoveComponent(blackhole: Blackhole) = with(world) {
+        val entity = spawned[cursor++ % spawned.size]
+        entity.setComponent(Mass(1f))
+        blackhole.consume(entity.removeComponent<Mass>())
+    }
+
+    @Benchmark
+    fun iterate1(blackhole: Blackhole) {
+        world.iterate<Location> { _, location -> blackhole.consume(location) }
+    }
+
+    @Benchmark
+    fun iterate2(blackhole: Blackhole) {
+        world.iterate<Networked, Location> { _, _, location -> blackhole.consume(location) }
+    }
+
+    @Benchmark
+    fun iterate3(blackhole: Blackhole) {
+        world.iterate<Networked, Location, PersistentIdComponent> { _, _, location, id ->
+            blackhole.consume(location)
+            blackhole.consume(id)
+        }
+    }
+
+    @Benchmark
+    fun iterate4(blackhole: Blackhole) {
+        world.iterate<Networked, Location, PersistentIdComponent, Count> { _, _, location, _, count ->
+            blackhole.consume(location)
+            blackhole.consume(count)
+        }
+    }
+
+    @Benchmark
+    fun iterate5(blackhole: Blackhole) {
+        world.iterate<Networked, Location, PersistentIdComponent, Count, ItemName> { _, _, location, _, _, name ->
+            blackhole.consume(location)
+            blackhole.consume(name)
+        }
+    }
+
+    @Benchmark
+    fun collectSavable(blackhole: Blackhole) {
+        world.componentManager.collect(
+            listOf(componentTypeOf(PersistentIdComponent::class)),
+            { it.meta.savable }
+        ) { entity, state ->
+            blackhole.consume(entity)
+            blackhole.consume(state)
+        }
+    }
+
+    @Benchmark
+    fun networkedComponentsFull(blackhole: Blackhole) {
+        val components = world.componentManager
+        for (entity in spawned) blackhole.consume(components.getNetworkedComponents(entity))
+    }
+
+    @Benchmark
+    fun networkedComponentsDelta(blackhole: Blackhole) {
+        val components = world.componentManager
+        val tick = components.changeTick
+        for (entity in spawned) blackhole.consume(components.getNetworkedComponents(entity, tick))
+    }
+}
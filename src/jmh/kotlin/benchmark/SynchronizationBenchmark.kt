@@ -0,0 +1,122 @@
+package org.lain.engine.benchmark
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.protobuf.ProtoBuf
+import org.lain.cyberia.ecs.Component
+import org.lain.cyberia.ecs.componentTypeOf
+import org.lain.cyberia.ecs.iterate
+import org.lain.cyberia.ecs.setComponent
+import org.lain.engine.item.Count
+import org.lain.engine.item.ItemName
+import org.lain.engine.storage.COMPONENT_CBOR
+import org.lain.engine.storage.EntityDto
+import org.lain.engine.storage.PersistentIdComponent
+import org.lain.engine.storage.Uuid
+import org.lain.engine.storage.toSnapshotDto
+import org.lain.engine.transport.packet.EntityDeltaPacket
+import org.lain.engine.util.component.EntityId
+import org.lain.engine.util.component.Networked
+import org.lain.engine.util.math.ImmutableEVec3
+import org.lain.engine.world.Location
+import org.lain.engine.world.World
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Снимки компонентов и их кодирование - то, что сервер делает для каждой отправляемой сущности
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class SnapshotEncodingBenchmark {
+    private lateinit var world: World
+    private lateinit var components: List<Component>
+    private lateinit var packet: EntityDeltaPacket
+    private val count = Count(12, 64)
+
+    @Setup
+    fun setup() {
+        world = benchmarkWorld()
+        val persistentId = Uuid.next()
+        val entity = world.componentManager.addEntity {
+            setComponent(Location(ImmutableEVec3()))
+            setComponent(PersistentIdComponent(persistentId))
+            setComponent(Networked)
+            setComponent(Count(12, 64))
+            setComponent(ItemName("Предмет"))
+        }
+        components = world.componentManager.getNetworkedComponents(entity)
+        packet = EntityDeltaPacket(EntityDto(persistentId, with(world) { components.map { it.toSnapshotDto() } }))
+    }
+
+    @Benchmark
+    fun toSnapshotDto(blackhole: Blackhole) = with(world) {
+        for (component in components) blackhole.consume(component.toSnapshotDto())
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    @Benchmark
+    fun encodeEntityDeltaCbor(): ByteArray {
+        return COMPONENT_CBOR.encodeToByteArray(EntityDeltaPacket.serializer(), packet)
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    @Benchmark
+    fun encodeComponentProtoBuf(): ByteArray {
+        return ProtoBuf.encodeToByteArray(Count.serializer(), count)
+    }
+}
+
+/**
+ * Фильтрация интереса как в `ServerHandler.tick`: для каждого игрока обходятся сетевые сущности в радиусе
+ * и собираются изменённые компоненты. Игроки представлены только позициями, сеть не задействована
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class InterestFilteringBenchmark {
+    @Param("10", "50", "100")
+    var players = 0
+
+    @Param("2000", "20000")
+    var entities = 0
+
+    private lateinit var world: World
+    private lateinit var spawned: List<EntityId>
+    private lateinit var viewers: List<ImmutableEVec3>
+    private val squaredRadius = 64f * 64f
+
+    @Setup
+    fun setup() {
+        world = benchmarkWorld()
+        val random = Random(7)
+        spawned = world.spawnSyntheticEntities(entities, 512f, random)
+        viewers = List(players) { randomPosition(random, 512f) }
+    }
+
+    @Setup(Level.Invocation)
+    fun dirtyTenth() {
+        val components = world.componentManager
+        components.advanceChangeTick()
+        val type = componentTypeOf(PersistentIdComponent::class)
+        for (i in spawned.indices step 10) components.markDirty(spawned[i], type)
+    }
+
+    @Benchmark
+    fun tickInterest(blackhole: Blackhole) = with(world) {
+        val components = componentManager
+        val syncTick = components.changeTick
+        for (viewer in viewers) {
+            world.iterate<Networked, Location, PersistentIdComponent> { entity, _, location, (persistentId) ->
+                if (location.position.squaredDistanceTo(viewer) < squaredRadius) {
+                    val delta = components.getNetworkedComponents(entity, syncTick)
+                    if (delta.isNotEmpty()) {
+                        blackhole.consume(EntityDto(persistentId, delta.map { it.toSnapshotDto() }))
+                    }
+                }
+            }
+        }
+    }
+}
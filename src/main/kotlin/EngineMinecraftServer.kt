@@ -30,9 +30,12 @@ import org.lain.engine.server.EngineServer
 import org.lain.engine.server.Notification
 import org.lain.engine.server.ServerEventListener
 import org.lain.engine.storage.*
+import org.lain.engine.transport.NetworkMetricsWriter
+import org.lain.engine.transport.OutboundScheduler
 import org.lain.engine.transport.ServerTransportContext
 import org.lain.engine.transport.network.ServerConnectionManager
 import org.lain.engine.transport.packet.DeveloperModeStatus
+import org.lain.engine.transport.packet.ReliableChannels
 import org.lain.engine.util.ConcurrentStorage
 import org.lain.engine.util.Injector
 import org.lain.engine.util.file.CONFIG_LOGGER
@@ -85,6 +88,7 @@ abstract class EngineMinecraftServer(protected val dependencies: EngineMinecraft
         timers,
     )
 
+    val networkMetricsWriter = NetworkMetricsWriter()
     protected abstract val transportContext: ServerTransportContext
     protected open val connectionManager: ServerConnectionManager? = null
 
@@ -108,6 +112,7 @@ abstract class EngineMinecraftServer(protected val dependencies: EngineMinecraft
 
     open fun tick() {
         if (!minecraftServer.isRunning) return
+        acousticSimulator.flushSceneUpdates()
         val players = engine.playerStorage.getAll()
         val entityTableAll = dependencies.entityTable
 
@@ -139,6 +144,9 @@ abstract class EngineMinecraftServer(protected val dependencies: EngineMinecraft
     open fun run() {
         Injector.register<PlayerPermissionsProvider>(MinecraftPermissionProvider(entityTable))
         Injector.register<ServerTransportContext>(transportContext)
+        Injector.register(OutboundScheduler())
+        Injector.register(ReliableChannels(transportContext))
+        networkMetricsWriter.start()
         Injector.register(engine.globals.movementSettings)
         applyConfigCatching(config)
         val compilationResult = dependencies.compilationResult
@@ -176,6 +184,7 @@ abstract class EngineMinecraftServer(protected val dependencies: EngineMinecraft
     open fun disable() = runBlocking {
         engine.allWorlds().forEach { database.saveItemsBlocking(it) }
         engine.stop()
+        networkMetricsWriter.stop()
     }
 
     open fun onJoinPlayer(entity: ServerPlayer) {
@@ -1,6 +1,7 @@
 package org.lain.engine.chat.acoustic
 
 import org.lain.engine.util.PrimitiveArrayPool
+import kotlin.math.abs
 
 data class SceneSize(val width: Int, val height: Int, val depth: Int) {
     val length = width * height * depth
@@ -273,6 +274,103 @@ class Grid3byte internal constructor(
 }
 
 
+/**
+ * Сетка из небольшого набора значений: палитра до [MAX_PALETTE] чисел и байт-индекс в ней на клетку.
+ * Пока все клетки одинаковы, индексов нет - хранится одно значение. Индексы берутся из [PrimitiveArrayPool]
+ * и возвращаются в [free]
+ */
+class PaletteGrid3f(
+    w: Int,
+    h: Int,
+    d: Int,
+    value: Float = 0f,
+) : AbstractGrid3<Float>(w, h, d) {
+    internal var palette = floatArrayOf(value)
+        private set
+    internal var paletteSize = 1
+        private set
+    internal var indices: ByteArray? = null
+        private set
+
+    val isUniform: Boolean get() = indices == null
+
+    override fun get(idx: Int): Float {
+        val indices = indices ?: return palette[0]
+        return palette[indices[idx].toInt() and 0xFF]
+    }
+
+    override fun set(idx: Int, value: Float) {
+        val indices = indices
+        if (indices == null && value == palette[0]) return
+        val index = paletteIndex(value)
+        (indices ?: PrimitiveArrayPool.getByte(size).also { this.indices = it })[idx] = index.toByte()
+    }
+
+    /**
+     * Индекс значения в палитре. Новые значения добавляются, а когда палитра заполнена - берётся ближайшее
+     */
+    private fun paletteIndex(value: Float): Int {
+        for (i in 0 until paletteSize) {
+            if (palette[i] == value) return i
+        }
+        if (paletteSize == MAX_PALETTE) {
+            var nearest = 0
+            for (i in 1 until paletteSize) {
+                if (abs(palette[i] - value) < abs(palette[nearest] - value)) nearest = i
+            }
+            return nearest
+        }
+        if (paletteSize == palette.size) palette = palette.copyOf(minOf(palette.size * 2, MAX_PALETTE))
+        palette[paletteSize] = value
+        return paletteSize++
+    }
+
+    override fun fill(elem: Float) {
+        free()
+        palette = floatArrayOf(elem)
+        paletteSize = 1
+    }
+
+    fun copy(): PaletteGrid3f {
+        val copy = PaletteGrid3f(w, h, d)
+        copy.palette = palette.copyOf()
+        copy.paletteSize = paletteSize
+        copy.indices = indices?.let { PrimitiveArrayPool.getByte(size).also { array -> it.copyInto(array) } }
+        return copy
+    }
+
+    fun free() {
+        indices?.let { PrimitiveArrayPool.free(it) }
+        indices = null
+    }
+
+    /**
+     * Возвращает сетку к одному значению, если все клетки ссылаются на один индекс палитры.
+     * [set] только добавляет индексы, поэтому вызывать после заполнения и изменений
+     * @return сетка однородна
+     */
+    fun compact(): Boolean {
+        val indices = indices ?: return true
+        val first = indices[0]
+        for (i in 1 until size) {
+            if (indices[i] != first) return false
+        }
+        fill(palette[first.toInt() and 0xFF])
+        return true
+    }
+
+    override fun forEachLinear(start: Int, end: Int, block: (Int, Int, Int, Int) -> Unit) {
+        for (i in start until end) {
+            val (x, y, z) = posOf(i)
+            block(i, x, y, z)
+        }
+    }
+
+    companion object {
+        const val MAX_PALETTE = 256
+    }
+}
+
 fun PrimitiveArrayPool.getGrid3b(size: SceneSize) = getGrid3b(size.width, size.height, size.depth)
 
 fun PrimitiveArrayPool.getGrid3f(size: SceneSize) = getGrid3f(size.width, size.height, size.depth)
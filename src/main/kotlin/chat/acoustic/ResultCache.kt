@@ -0,0 +1,128 @@
+package org.lain.engine.chat.acoustic
+
+import org.lain.engine.world.WorldId
+import java.util.concurrent.atomic.LongAdder
+import kotlin.math.log2
+import kotlin.math.pow
+import kotlin.math.roundToInt
+
+/**
+ * Источник звука с параметрами симуляции. Громкости сравниваются точно: кэшируются повторы одного и того же звука
+ */
+data class AcousticSourceKey(
+    val world: WorldId,
+    val x: Int,
+    val y: Int,
+    val z: Int,
+    val range: Int,
+    val volume: Float,
+    val maxVolume: Float,
+    val attenuation: Float,
+)
+
+/**
+ * Результат симуляции, сжатый до байта на клетку: громкость квантуется логарифмически, [LEVELS_PER_OCTAVE] уровней
+ * на октаву вниз от максимальной громкости, `0` - тишина
+ * @param versions версии сегментов сцены, по которой считался результат
+ */
+class CachedPropagation(
+    val versions: LongArray,
+    val maxVolume: Float,
+    val volumes: ByteArray,
+) {
+    fun decode(grid: Grid3f) {
+        require(grid.size == volumes.size) { "Размер сцены не совпадает с кэшем" }
+        val levels = FloatArray(256) { if (it == 0) 0f else maxVolume * 2f.pow(-(255 - it) / LEVELS_PER_OCTAVE.toFloat()) }
+        val array = grid.array
+        for (i in volumes.indices) {
+            array[i] = levels[volumes[i].toInt() and 0xFF]
+        }
+    }
+
+    companion object {
+        const val LEVELS_PER_OCTAVE = 16
+
+        fun encode(versions: LongArray, maxVolume: Float, grid: Grid3f): CachedPropagation {
+            val array = grid.array
+            val volumes = ByteArray(grid.size)
+            for (i in volumes.indices) {
+                val volume = array[i]
+                if (volume <= 0f) continue
+                val level = 255 - (log2(maxVolume / volume) * LEVELS_PER_OCTAVE).roundToInt()
+                volumes[i] = level.coerceIn(1, 255).toByte()
+            }
+            return CachedPropagation(versions, maxVolume, volumes)
+        }
+    }
+}
+
+/**
+ * LRU-кэш результатов распространения звука, ограниченный суммарным размером в байтах. Запись устаревает, когда
+ * меняется любой сегмент её сцены; это проверяется при чтении по версиям, а не при изменении сегмента
+ */
+class AcousticResultCache(private val maxBytes: Long = DEFAULT_MAX_BYTES) {
+    private val entries = LinkedHashMap<AcousticSourceKey, CachedPropagation>(16, 0.75f, true)
+    private var bytes = 0L
+
+    val hits = LongAdder()
+    val misses = LongAdder()
+    val invalidations = LongAdder()
+    val evictions = LongAdder()
+
+    val hitRate: Double
+        get() {
+            val hit = hits.sum()
+            val total = hit + misses.sum()
+            return if (total == 0L) 0.0 else hit.toDouble() / total
+        }
+
+    val size: Int get() = synchronized(this) { entries.size }
+    val usedBytes: Long get() = synchronized(this) { bytes }
+
+    /**
+     * @param versions текущие версии сегментов сцены. Если они не совпадают с записью, запись удаляется
+     */
+    fun get(key: AcousticSourceKey, versions: LongArray): CachedPropagation? = synchronized(this) {
+        val entry = entries[key]
+        when {
+            entry == null -> misses.increment()
+            !entry.versions.contentEquals(versions) -> {
+                remove(key)
+                invalidations.increment()
+                misses.increment()
+            }
+            else -> {
+                hits.increment()
+                return entry
+            }
+        }
+        return null
+    }
+
+    fun put(key: AcousticSourceKey, propagation: CachedPropagation): Unit = synchronized(this) {
+        val weight = propagation.volumes.size.toLong()
+        if (weight > maxBytes) return
+        remove(key)
+        entries[key] = propagation
+        bytes += weight
+        val iterator = entries.values.iterator()
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().volumes.size
+            iterator.remove()
+            evictions.increment()
+        }
+    }
+
+    fun clear(): Unit = synchronized(this) {
+        entries.clear()
+        bytes = 0
+    }
+
+    private fun remove(key: AcousticSourceKey) {
+        entries.remove(key)?.let { bytes -= it.volumes.size }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 64L * 1024 * 1024
+    }
+}
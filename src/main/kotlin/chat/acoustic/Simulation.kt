@@ -1,11 +1,9 @@
 package org.lain.engine.chat.acoustic
 
-import org.lain.engine.mc.ChunkedAcousticView
 import org.lain.engine.player.EnginePlayer
 import org.lain.engine.server.ServerHandler
 import org.lain.engine.util.math.Pos
 import org.lain.engine.world.WorldId
-import java.util.*
 
 interface AcousticSimulator {
     suspend fun simulateSingleSource(
@@ -18,6 +16,13 @@ interface AcousticSimulator {
     ): AcousticSimulationResult
 }
 
+/**
+ * Проницаемость блоков в локальных координатах сцены. От 0 (звук не проходит) до 1
+ */
+interface AcousticView {
+    fun getPassability(x: Int, y: Int, z: Int): Float
+}
+
 interface AcousticSimulationResult {
     fun debug(player: EnginePlayer, handler: ServerHandler, radius: Float)
     fun getVolume(pos: Pos): Float?
@@ -28,64 +33,134 @@ class AcousticGeneration(
     val volume: Grid3f
 )
 
-data class Node(
-    val x: Int,
-    val y: Int,
-    val z: Int,
-    val volume: Float
-)
+/**
+ * Распространение звука от источников в [generation] до установившихся громкостей: в каждую клетку приходит
+ * самый громкий путь, громкость на шаге умножается на проницаемость соседа и [attenuation] и не превышает [maxVolume].
+ * Шаги тише [SPREAD_CUTOFF] отбрасываются.
+ *
+ * Обход - Дейкстра по убыванию громкости на очереди корзин: громкость квантуется по битам float, 16 уровней
+ * на октаву ([LEVEL_SHIFT]). Порядок внутри корзины произвольный, поэтому клетка, которую позже улучшили, обрабатывается
+ * повторно - результат тот же, что у точной очереди с приоритетом. На шаг память не выделяется: очередь хранит индексы
+ * клеток в массивах потока, которые переиспользуются между симуляциями
+ */
 fun simulateDijkstra(
-    view: ChunkedAcousticView,
+    view: AcousticView,
     generation: AcousticGeneration,
     maxVolume: Float,
     attenuation: Float = 1f,
 ) {
-    val volumeGrid = generation.volume
-    val queue = PriorityQueue<Node> { a, b -> b.volume.compareTo(a.volume) }
-
-    for (cx in 0 until volumeGrid.w) {
-        for (cy in 0 until volumeGrid.h) {
-            for (cz in 0 until volumeGrid.d) {
-                val v = volumeGrid[cx, cy, cz]
-                if (v > 0.0f) {
-                    queue.add(Node(cx, cy, cz, v))
-                }
-            }
+    PROPAGATION.get().run(view, generation.volume, maxVolume, attenuation)
+}
+
+private const val SPREAD_CUTOFF = 0.01f
+private const val EPS = 1e-6f
+private const val LEVEL_SHIFT = 19
+private const val NOT_QUEUED = -1
+private const val INITIAL_BUCKET_CAPACITY = 256
+
+private val PROPAGATION = ThreadLocal.withInitial { AcousticPropagation() }
+
+private class AcousticPropagation {
+    private var queued = IntArray(0)
+    private var buckets = Array(0) { IntArray(0) }
+    private var counts = IntArray(0)
+    private var levels = 0
+    private var top = 0
+    private var cursor = 0
+
+    private fun prepare(cells: Int, maxVolume: Float) {
+        top = maxVolume.toRawBits()
+        levels = (((top - SPREAD_CUTOFF.toRawBits()) shr LEVEL_SHIFT) + 1).coerceAtLeast(1)
+        if (queued.size < cells) queued = IntArray(cells)
+        queued.fill(NOT_QUEUED, 0, cells)
+        if (buckets.size < levels) {
+            val old = buckets
+            buckets = Array(levels) { old.getOrNull(it) ?: IntArray(INITIAL_BUCKET_CAPACITY) }
+            counts = IntArray(levels)
         }
+        counts.fill(0, 0, levels)
+        cursor = levels
     }
 
-    val EPS = 1e-6f
+    // Биты положительного float растут вместе со значением, а порядок - каждые 2^23
+    private fun levelOf(volume: Float): Int =
+        ((top - volume.toRawBits()) shr LEVEL_SHIFT).coerceIn(0, levels - 1)
 
-    while (queue.isNotEmpty()) {
-        val node = queue.poll()
-        val x = node.x
-        val y = node.y
-        val z = node.z
-        val v = node.volume
+    private fun push(index: Int, volume: Float) {
+        val level = levelOf(volume)
+        if (level < cursor) cursor = level
+        if (queued[index] == level) return
+        queued[index] = level
+        val count = counts[level]
+        var bucket = buckets[level]
+        if (count == bucket.size) {
+            bucket = bucket.copyOf(count * 2)
+            buckets[level] = bucket
+        }
+        bucket[count] = index
+        counts[level] = count + 1
+    }
 
-        if (v + EPS < volumeGrid[x, y, z]) continue
+    fun run(view: AcousticView, grid: Grid3f, maxVolume: Float, attenuation: Float) {
+        val volumes = grid.array
+        val w = grid.w
+        val h = grid.h
+        val d = grid.d
+        val plane = w * h
+        val cells = grid.size
+        prepare(cells, maxVolume)
 
-        for (offset in NEIGHBOURS_VON_NEUMANN) {
-            val nx = x + offset[0]
-            val ny = y + offset[1]
-            val nz = z + offset[2]
+        for (index in 0 until cells) {
+            val volume = volumes[index]
+            if (volume > 0f) push(index, volume)
+        }
 
-            if (nx !in 0 until volumeGrid.w || ny !in 0 until volumeGrid.h || nz !in 0 until volumeGrid.d)
+        while (cursor < levels) {
+            val level = cursor
+            val count = counts[level]
+            if (count == 0) {
+                cursor++
                 continue
+            }
+            val index = buckets[level][count - 1]
+            counts[level] = count - 1
+            if (queued[index] != level) continue
+            queued[index] = NOT_QUEUED
 
-            val pass = view.getPassability(nx, ny, nz)
-            if (pass <= 0f) continue
+            val volume = volumes[index]
+            val z = index / plane
+            val rem = index - z * plane
+            val y = rem / w
+            val x = rem - y * w
+
+            if (x + 1 < w) relax(view, volumes, index + 1, x + 1, y, z, volume, maxVolume, attenuation)
+            if (x > 0) relax(view, volumes, index - 1, x - 1, y, z, volume, maxVolume, attenuation)
+            if (y + 1 < h) relax(view, volumes, index + w, x, y + 1, z, volume, maxVolume, attenuation)
+            if (y > 0) relax(view, volumes, index - w, x, y - 1, z, volume, maxVolume, attenuation)
+            if (z + 1 < d) relax(view, volumes, index + plane, x, y, z + 1, volume, maxVolume, attenuation)
+            if (z > 0) relax(view, volumes, index - plane, x, y, z - 1, volume, maxVolume, attenuation)
+        }
+    }
 
-            var spread = v * pass * attenuation
-            if (spread <= 0.01f) continue
+    private fun relax(
+        view: AcousticView,
+        volumes: FloatArray,
+        index: Int,
+        x: Int, y: Int, z: Int,
+        volume: Float,
+        maxVolume: Float,
+        attenuation: Float,
+    ) {
+        val pass = view.getPassability(x, y, z)
+        if (pass <= 0f) return
 
-            if (spread > maxVolume) spread = maxVolume
+        var spread = volume * pass * attenuation
+        if (spread <= SPREAD_CUTOFF) return
+        if (spread > maxVolume) spread = maxVolume
 
-            val current = volumeGrid[nx, ny, nz]
-            if (spread > current + EPS) {
-                volumeGrid[nx, ny, nz] = spread
-                queue.add(Node(nx, ny, nz, spread))
-            }
+        if (spread > volumes[index] + EPS) {
+            volumes[index] = spread
+            push(index, spread)
         }
     }
 }
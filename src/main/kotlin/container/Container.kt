@@ -6,6 +6,7 @@ import org.lain.engine.item.EngineItem
 import org.lain.engine.storage.PersistentId
 import org.lain.engine.storage.PersistentIdComponent
 import org.lain.engine.util.component.ComponentState
+import org.lain.engine.util.component.EntityHandle
 import org.lain.engine.util.component.Networked
 import org.lain.engine.world.Location
 import kotlin.let
@@ -35,7 +36,7 @@ data class Entries(val items: MutableList<EngineItem>) : Component
  * ## Компоненты предметов
  * Крепятся к сущности в ComponentWorld
  */
-data class ContainedIn(val container: EntityId) : Component
+data class ContainedIn(val container: EntityHandle) : Component
 data class ContainerAnchor(val container: EntityId) : Component
 
 fun ReadComponentAccess.getContainerItems(container: EntityId): List<EngineItem> {
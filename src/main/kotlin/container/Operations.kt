@@ -35,11 +35,12 @@ fun updateContainerOperationSystem() {
 
         entries += itemToAttach
         itemToAttach.removeComponent<ContainedIn>()
-            ?.let {
-                it.container.requireComponent<Entries>().items -= itemToAttach
-                it.container.setComponent(DetachItem(itemToAttach))
+            ?.let { world.componentManager.resolve(it.container) }
+            ?.let { previous ->
+                previous.requireComponent<Entries>().items -= itemToAttach
+                previous.setComponent(DetachItem(itemToAttach))
             }
-        itemToAttach.setComponent(ContainedIn(container))
+        itemToAttach.setComponent(ContainedIn(world.handleOf(container)))
         container.markDirty<AssignItem>()
     }
 }
@@ -55,7 +56,8 @@ fun clearAssignItemsOperations(world: World) {
 
 context(world: World)
 fun updatePlayerContainerSystem() {
-    world.iterate<Item, ContainedIn, HoldsBy>() { item, _, (container), (owner) ->
+    world.iterate<Item, ContainedIn, HoldsBy>() { item, _, (handle), (owner) ->
+        val container = world.componentManager.resolve(handle) ?: return@iterate
         if (!container.hasComponent<PlayerContainerTag>()) {
             owner.getOrSet { DestroyItemSignal(item, item.getCount()) }
         } else if (item !in owner.items) {
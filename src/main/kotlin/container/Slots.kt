@@ -7,6 +7,7 @@ import org.lain.engine.item.Item
 import org.lain.engine.storage.PersistentId
 import org.lain.engine.storage.PersistentIdComponent
 import org.lain.engine.util.component.ComponentState
+import org.lain.engine.util.component.EntityHandleAccess
 import org.lain.engine.world.Location
 import org.lain.engine.world.World
 
@@ -26,6 +27,7 @@ value class SlotId(val id: String) {
     override fun toString(): String = id
 }
 
+context(handles: EntityHandleAccess)
 fun WriteComponentAccess.createSlotContainer(
     location: Location,
     slots: Set<SlotId>,
@@ -43,7 +45,7 @@ fun WriteComponentAccess.createSlotContainer(
     items.forEach { (slot, item) ->
         occupiedSlots += slot
         entries += item
-        item.setComponent(ContainedIn(container))
+        item.setComponent(ContainedIn(handles.handleOf(container)))
         item.setComponent(AssignedSlot(slot))
     }
     return container
@@ -51,8 +53,9 @@ fun WriteComponentAccess.createSlotContainer(
 
 fun World.getContainerSlots(container: EntityId): Map<SlotId, EngineItem> {
     val items = mutableMapOf<SlotId, EngineItem>()
+    val handle = handleOf(container)
     iterate<Item, ContainedIn, AssignedSlot> { item, _, (containedId), (attachedSlot) ->
-        if (containedId == container) items[attachedSlot] = item
+        if (containedId == handle) items[attachedSlot] = item
     }
     return items
 }
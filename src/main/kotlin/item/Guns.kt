@@ -208,12 +208,15 @@ val DEFAULT_BULLET_SPEED = 800f
 
 val BulletParameters.recoilSpeed get() = bulletMass * bulletSpeed / DEFAULT_WEAPON_MASS
 
-fun World.updateRecoilSystem(remove: Boolean = true) = iterate<Item, Recoil, HoldsBy> { item, _, recoil, (owner) ->
+fun World.updateRecoilSystem(
+    remove: Boolean = true,
+    commands: WriteComponentAccess = this
+) = iterate<Item, Recoil, HoldsBy> { item, _, recoil, (owner) ->
     owner.translateRotation(pitch = -(recoil.bullet.recoilSpeed * 3f))
-    if (remove) { item.removeComponent<Recoil>() }
+    if (remove) with(commands) { item.removeComponent<Recoil>() }
 }
 
-fun updateBulletsAcoustic(world: World) = world.iterate<BulletFire>() { _, event ->
+fun updateBulletsAcoustic(world: World) = world.iterateEvents<BulletFire> { event ->
     val start = event.shoot.start
     val affected = filterNearestPlayers(world, start, 8)
     affected.forEach { player ->
@@ -5,7 +5,6 @@ import net.minecraft.world.level.ClipContext
 import net.minecraft.world.level.Level
 import net.minecraft.world.phys.BlockHitResult
 import net.minecraft.world.phys.shapes.CollisionContext
-import org.lain.cyberia.ecs.iterate
 import org.lain.engine.item.BULLET_FIRE_RADIUS
 import org.lain.engine.item.BulletFire
 import org.lain.engine.item.GunShoot
@@ -34,8 +33,8 @@ fun raycastBulletEvent(world: Level, event: GunShoot): BlockHitResult? {
 fun updateBulletsMinecraft(
     world: World,
     mcWorld: ServerLevel,
-) = world.iterate<BulletFire> { _, event ->
-    val hitResult = raycastBulletEvent(mcWorld, event.shoot) ?: return@iterate
+) = world.iterateEvents<BulletFire> { event ->
+    val hitResult = raycastBulletEvent(mcWorld, event.shoot) ?: return@iterateEvents
     val blockPos = hitResult.blockPos
     val pos = hitResult.location
     val dir = hitResult.direction.engine()
@@ -31,6 +31,7 @@ import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
@@ -43,6 +44,12 @@ class InvalidMessageSourcePositionException(val y: Int) : RuntimeException("Mess
 
 const val SEGMENT_SIZE = 16
 
+/**
+ * Изменений в сегменте больше - он перечитывается из мира целиком
+ */
+private const val MAX_SEGMENT_CHANGES = SEGMENT_SIZE * SEGMENT_SIZE * SEGMENT_SIZE / 8
+private const val MAX_REBUILDS_PER_TICK = 64
+
 fun Level.segmentOf(y: Int): Int {
     val relativeY = y - minY.toFloat()
     val segmentIndex = ceil(relativeY / SEGMENT_SIZE).toInt()
@@ -86,8 +93,12 @@ data class AcousticBlockData(
     }
 }
 
+/**
+ * Сегмент чанка для акустики. Проницаемость хранится палитрой ([PaletteGrid3f]): значений в сегменте немного, а
+ * сегменты из одного воздуха или камня занимают одно число
+ */
 class MinecraftChunkAcousticScene private constructor(
-    val passability: Grid3f,
+    val passability: PaletteGrid3f,
     val size: SceneSize,
     val x: Int,
     val y: Int,
@@ -95,15 +106,18 @@ class MinecraftChunkAcousticScene private constructor(
     val chunk: ChunkAccess
 ) {
     val lock = ReentrantReadWriteLock()
+
+    /**
+     * Сегмент не меняется после публикации - изменения создают новый с большей версией
+     */
+    val version = VERSIONS.incrementAndGet()
     var actors = 0
     var shouldDestroy = false
     var destroyed = false
 
     fun copy(): MinecraftChunkAcousticScene = lock.read {
-        val newPassabilityGrid = PrimitiveArrayPool.getGrid3f(size.width, size.height, size.depth)
-        passability.arraycopy(newPassabilityGrid)
         return MinecraftChunkAcousticScene(
-            newPassabilityGrid,
+            passability.copy(),
             size,
             x, y, z,
             chunk
@@ -115,6 +129,18 @@ class MinecraftChunkAcousticScene private constructor(
         passability[x - this.x, y - this.y, z - this.z] = value
     }
 
+    /**
+     * Применяет изменения одним проходом под одной блокировкой
+     * @param changes проницаемость по [BlockPos.asLong]
+     */
+    fun setPassability(changes: Map<Long, Float>) = lock.write {
+        assertVacant()
+        changes.forEach { (packed, value) ->
+            passability[BlockPos.getX(packed) - x, BlockPos.getY(packed) - y, BlockPos.getZ(packed) - z] = value
+        }
+        passability.compact()
+    }
+
     fun getPassability(x: Int, y: Int, z: Int) = lock.read { passability[x - this.x, y - this.y, z - this.z] }
 
     fun occupy() = lock.write {
@@ -136,7 +162,7 @@ class MinecraftChunkAcousticScene private constructor(
 
     private fun destroyUnsafe() {
         if (destroyed) return
-        PrimitiveArrayPool.freeGrid3f(passability)
+        passability.free()
         destroyed = true
     }
 
@@ -145,6 +171,8 @@ class MinecraftChunkAcousticScene private constructor(
     }
 
     companion object {
+        private val VERSIONS = AtomicLong()
+
         fun create(
             world: Level,
             chunk: ChunkAccess,
@@ -169,15 +197,18 @@ class MinecraftChunkAcousticScene private constructor(
             require(x0 >= 0); require(x1 <= 16)
             require(z0 >= 0); require(z1 <= 16)
 
-            val passabilityGrid = PrimitiveArrayPool.getGrid3f(sceneWidth, sceneHeight, sceneDepth)
-
-            passabilityGrid.map { idx, lx, ly, lz ->
+            fun passabilityAt(lx: Int, ly: Int, lz: Int): Float {
                 pos.x = startX + lx
                 pos.y = startY + ly
                 pos.z = startZ + lz
-                acousticBlockData.getPassability(pos, world, chunk.getBlockState(pos))
+                return acousticBlockData.getPassability(pos, world, chunk.getBlockState(pos))
             }
 
+            // Начальное значение палитры - первая клетка: однородный сегмент не выделяет индексы вовсе
+            val passabilityGrid = PaletteGrid3f(sceneWidth, sceneHeight, sceneDepth, passabilityAt(0, 0, 0))
+            passabilityGrid.map { _, lx, ly, lz -> passabilityAt(lx, ly, lz) }
+            passabilityGrid.compact()
+
             val offsetX = startX + x0
             val offsetY = y0
             val offsetZ = startZ + z0
@@ -190,12 +221,15 @@ class MinecraftChunkAcousticScene private constructor(
 /**
  * Абстрактное пространство из игровых сцен одинакового размера.
  * Предоставляет доступ к ним через единую локальную систему координат от самой первой сцены.
- * Для получения локальных координат из мировых использовать `worldToLocal`
+ * Для получения локальных координат из мировых использовать `worldToLocal`.
+ *
+ * Сцены занимаются ([MinecraftChunkAcousticScene.occupy]) один раз при создании и не меняются до [free], поэтому
+ * их сетки раскладываются в плотный массив по координатам чанка, а чтение проницаемости - только арифметика
  */
 data class ChunkedAcousticView(
     val chunkSize: ChunkSize,
     val scenes: List<MinecraftChunkAcousticScene>
-) {
+) : AcousticView {
     data class ChunkSize(val w: Int, val h: Int, val d: Int) {
         init {
             require(isPowerOfTwo(w))
@@ -211,8 +245,6 @@ data class ChunkedAcousticView(
         fun chunkZ(z: Int) = z shr depthTrailingZeros
     }
 
-    data class ChunkPos(val x: Int, val y: Int, val z: Int)
-
     val minX = scenes.minOf { it.x }
     val minY = scenes.minOf { it.y }
     val minZ = scenes.minOf { it.z }
@@ -226,21 +258,35 @@ data class ChunkedAcousticView(
     val viewD = maxZ - minZ
     val totalSize = SceneSize(viewW, viewH, viewD)
 
-    val chunkMap = ConcurrentHashMap<ChunkPos, MinecraftChunkAcousticScene>()
+    private val chunksX = chunkSize.chunkX(viewW - 1) + 1
+    private val chunksY = chunkSize.chunkY(viewH - 1) + 1
+    private val chunksZ = chunkSize.chunkZ(viewD - 1) + 1
+    private val maskX = chunkSize.w - 1
+    private val maskY = chunkSize.h - 1
+    private val maskZ = chunkSize.d - 1
+
+    /**
+     * Сетки проницаемости сцен по индексу `(chunkZ * chunksY + chunkY) * chunksX + chunkX`
+     */
+    private val grids = arrayOfNulls<PaletteGrid3f>(chunksX * chunksY * chunksZ)
 
     init {
         scenes.forEach {
             it.occupy()
-            chunkMap[
-                ChunkPos(
+            grids[
+                chunkIndex(
                     chunkSize.chunkX(it.x - minX),
                     chunkSize.chunkY(it.y - minY),
                     chunkSize.chunkZ(it.z - minZ)
                 )
-            ] = it
+            ] = it.passability
         }
     }
 
+    private fun chunkIndex(chunkX: Int, chunkY: Int, chunkZ: Int) = (chunkZ * chunksY + chunkY) * chunksX + chunkX
+
+    val versions: LongArray get() = LongArray(scenes.size) { scenes[it].version }
+
     fun worldToLocal(x: Int, y: Int, z: Int): Triple<Int, Int, Int> =
         Triple(x - minX, y - minY, z - minZ)
 
@@ -248,20 +294,11 @@ data class ChunkedAcousticView(
         scenes.forEach { it.vacant() }
     }
 
-    fun getPassability(x: Int, y: Int, z: Int): Float {
-        val chunkPosX = chunkSize.chunkX(x)
-        val chunkPosY = chunkSize.chunkY(y)
-        val chunkPosZ = chunkSize.chunkZ(z)
-        val chunk = chunkMap[ChunkPos(chunkPosX, chunkPosY, chunkPosZ)] ?: error("Координаты выходят за пределы чанка")
-        val baseX = chunk.x - minX
-        val baseY = chunk.y - minY
-        val baseZ = chunk.z - minZ
-
-        return chunk.passability[
-            x - baseX,
-            y - baseY,
-            z - baseZ
-        ]
+    override fun getPassability(x: Int, y: Int, z: Int): Float {
+        val grid = grids[chunkIndex(chunkSize.chunkX(x), chunkSize.chunkY(y), chunkSize.chunkZ(z))]
+            ?: error("Координаты выходят за пределы чанка")
+        // Сцены выровнены по сетке чанков от начала обзора
+        return grid[x and maskX, y and maskY, z and maskZ]
     }
 }
 
@@ -331,19 +368,44 @@ class ConcurrentAcousticSceneBank {
             }
     }
 
-    fun setPassability(world: Level, chunkPos: ChunkPos, pos: BlockPos, value: Float, logger: org.slf4j.Logger?): MinecraftChunkAcousticScene? {
+    /**
+     * Публикует новую версию сегмента со всеми накопленными изменениями. Старая версия освобождается, когда её
+     * перестанут занимать симуляции
+     * @param changes проницаемость по [BlockPos.asLong]
+     * @param resample изменений слишком много - сегмент перечитывается из мира целиком, [changes] не используются
+     */
+    fun applyPassability(
+        world: Level,
+        chunkPos: ChunkPos,
+        segment: Int,
+        changes: Map<Long, Float>,
+        resample: Boolean,
+        acousticBlockData: AcousticBlockData,
+        logger: org.slf4j.Logger?
+    ): MinecraftChunkAcousticScene? {
         val chunkCompound = getChunk(world.engine, chunkPos) ?: return null
-        val oldSegment = chunkCompound.getScene(world.segmentOf(pos.y))
+        val oldSegment = chunkCompound.getScene(segment)
 
-        if (oldSegment.getPassability(pos.x, pos.y, pos.z) == value) return null
-        logger?.info("Перестройка акустической сцены $chunkPos")
+        if (!resample && changes.all { (packed, value) ->
+                oldSegment.getPassability(BlockPos.getX(packed), BlockPos.getY(packed), BlockPos.getZ(packed)) == value
+            }
+        ) return null
+        logger?.info("Перестройка акустической сцены $chunkPos, сегмент $segment: ${if (resample) "целиком" else "${changes.size} блоков"}")
         return chunkCompound.rebuildLock.withLock {
-            val newSegment = oldSegment.copy()
-            oldSegment.destroy()
-            newSegment.setPassability(pos.x, pos.y, pos.z, value)
-            val list = chunkCompound.scenes
-
-            list[world.segmentOf(pos.y)] = newSegment
+            val current = chunkCompound.getScene(segment)
+            val newSegment = if (resample) {
+                MinecraftChunkAcousticScene.create(
+                    world,
+                    current.chunk,
+                    acousticBlockData,
+                    y0 = current.y,
+                    y1 = current.y + current.size.height
+                )
+            } else {
+                current.copy().also { it.setPassability(changes) }
+            }
+            chunkCompound.scenes[segment] = newSegment
+            current.destroy()
             newSegment
         }
     }
@@ -411,25 +473,80 @@ class MinecraftAcousticManager(
     var range = AtomicInteger(32)
     var performanceDebug = AtomicBoolean(false)
     var rebuildDebug = false
+    val resultCache = AcousticResultCache()
+
+    private data class SegmentKey(val world: Level, val chunk: ChunkPos, val segment: Int)
+
+    /**
+     * Изменения проницаемости сегмента, ещё не попавшие в сцену
+     */
+    private class PendingSegment {
+        val changes = LinkedHashMap<Long, Float>()
+        var resample = false
+    }
+
+    private val pendingLock = Any()
+    private val pendingSegments = LinkedHashMap<SegmentKey, PendingSegment>()
+    private val rebuildingSegments: MutableSet<SegmentKey> = ConcurrentHashMap.newKeySet()
 
     fun updateBlock(block: BlockState, pos: BlockPos, world: Level) {
-        setPassabilityAtAsync(world, pos, acousticBlockData.get().getPassability(pos, world, block))
+        queuePassability(world, pos, acousticBlockData.get().getPassability(pos, world, block))
     }
 
     fun removeBlock(pos: BlockPos, world: Level) {
-        setPassabilityAtAsync(world, pos, acousticBlockData.get().air)
+        queuePassability(world, pos, acousticBlockData.get().air)
+    }
+
+    private fun queuePassability(world: Level, pos: BlockPos, value: Float) {
+        val key = SegmentKey(world, ChunkPos(pos), world.segmentOf(pos.y))
+        synchronized(pendingLock) {
+            val segment = pendingSegments.getOrPut(key) { PendingSegment() }
+            if (segment.resample) return
+            segment.changes[pos.asLong()] = value
+            if (segment.changes.size > MAX_SEGMENT_CHANGES) {
+                segment.changes.clear()
+                segment.resample = true
+            }
+        }
     }
 
-    private fun setPassabilityAtAsync(world: Level, pos: BlockPos, value: Float) {
+    /**
+     * Запускает перестройку сегментов, изменённых с прошлого тика: не больше одной на сегмент и не больше
+     * [MAX_REBUILDS_PER_TICK] за тик. Остальные изменения ждут следующего тика и продолжают сливаться
+     */
+    fun flushSceneUpdates() {
+        val batch = ArrayList<Pair<SegmentKey, PendingSegment>>()
+        synchronized(pendingLock) {
+            if (pendingSegments.isEmpty()) return
+            val iterator = pendingSegments.entries.iterator()
+            while (iterator.hasNext() && batch.size < MAX_REBUILDS_PER_TICK) {
+                val (key, segment) = iterator.next()
+                if (!rebuildingSegments.add(key)) continue
+                iterator.remove()
+                batch += key to segment
+            }
+        }
         val doDebug = rebuildDebug
-        coroutineScope.launch {
-            val chunkPos = ChunkPos(pos)
-            try {
-                acousticSceneBank.setPassability(world, chunkPos, pos, value, { doDebug }.then { logger })
-            } catch (e: Throwable) {
-                val (x, y, z) = Triple(pos.x, pos.y, pos.z)
-                logger.error("При изменении акустической сцены ($world $x $y $z на $value) возникла непредвиденная ошибка. Сцена перезаписывается.", e)
-                acousticSceneBank.addChunk(world, world.getChunk(pos), acousticBlockData.get())
+        val acousticBlockData = acousticBlockData.get()
+        batch.forEach { (key, segment) ->
+            coroutineScope.launch {
+                val (world, chunkPos, index) = key
+                try {
+                    acousticSceneBank.applyPassability(
+                        world,
+                        chunkPos,
+                        index,
+                        segment.changes,
+                        segment.resample,
+                        acousticBlockData,
+                        { doDebug }.then { logger }
+                    )
+                } catch (e: Throwable) {
+                    logger.error("При изменении акустической сцены ($world $chunkPos, сегмент $index) возникла непредвиденная ошибка. Сцена перезаписывается.", e)
+                    acousticSceneBank.addChunk(world, world.getChunk(chunkPos.x, chunkPos.z), acousticBlockData)
+                } finally {
+                    rebuildingSegments.remove(key)
+                }
             }
         }
     }
@@ -440,6 +557,7 @@ class MinecraftAcousticManager(
 
     fun invalidate() {
         acousticSceneBank.removeAll()
+        resultCache.clear()
     }
 
     override suspend fun simulateSingleSource(
@@ -504,29 +622,38 @@ class MinecraftAcousticManager(
         val performanceDebug = performanceDebug.get()
 
         try {
-            for (offset in NEIGHBOURS_VON_NEUMANN + intArrayOf(0, 0, 0)) {
-                val blockPosRelative = blockPos.offset(offset[0], offset[1], offset[2])
-                val passability = acousticBlockData.getPassability(
-                    blockPosRelative,
-                    mcWorld,
-                    mcWorld.getBlockState(blockPosRelative)
+            val cacheKey = AcousticSourceKey(world, x, y, z, range, volume, maxVolume, attenuation)
+            val versions = scene.versions
+            val cached = resultCache.get(cacheKey, versions)
+            if (cached != null) {
+                cached.decode(generation.volume)
+            } else {
+                for (offset in NEIGHBOURS_VON_NEUMANN + intArrayOf(0, 0, 0)) {
+                    val blockPosRelative = blockPos.offset(offset[0], offset[1], offset[2])
+                    val passability = acousticBlockData.getPassability(
+                        blockPosRelative,
+                        mcWorld,
+                        mcWorld.getBlockState(blockPosRelative)
+                    )
+                    val (lX, lY, lZ) = scene.worldToLocal(blockPosRelative.x, blockPosRelative.y, blockPosRelative.z)
+                    generation.volume[lX, lY, lZ] = volume * passability
+                }
+                simulateDijkstra(
+                    scene,
+                    generation,
+                    maxVolume,
+                    attenuation
                 )
-                val (lX, lY, lZ) = scene.worldToLocal(blockPosRelative.x, blockPosRelative.y, blockPosRelative.z)
-                generation.volume[lX, lY, lZ] = volume * passability
+                resultCache.put(cacheKey, CachedPropagation.encode(versions, maxVolume, generation.volume))
             }
-            simulateDijkstra(
-                scene,
-                generation,
-                maxVolume,
-                attenuation
-            )
             if (performanceDebug) logger.info(
-                "[DEUBG] Просимулирована акустика в мире {} позиции {}, множитель {}, максимальная громкость {}, время обработки {} мс.",
+                "[DEUBG] Просимулирована акустика в мире {} позиции {}, множитель {}, максимальная громкость {}, время обработки {} мс., из кэша: {}",
                 world,
                 pos,
                 attenuation,
                 maxVolume,
-                timestamp.timeElapsed()
+                timestamp.timeElapsed(),
+                cached != null
             )
         } catch (e: Throwable) {
             logger.error("Во время обработки акустики возникла ошибка", e)
@@ -8,6 +8,8 @@ import net.minecraft.network.protocol.common.custom.CustomPacketPayload
 import net.minecraft.resources.Identifier
 import net.minecraft.server.level.ServerPlayer
 import org.lain.engine.player.PlayerId
+import org.lain.engine.storage.NetworkComponentPalette
+import org.lain.engine.storage.withComponentPalette
 import org.lain.engine.transport.Endpoint
 import org.lain.engine.transport.Packet
 import org.lain.engine.transport.deserializePacket
@@ -18,7 +20,10 @@ import org.lain.engine.util.injectEntityTable
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Executor
 
-typealias ServerPacketHandlerInternal<P> = (ConnectionSession, Executor, P) -> Unit
+/**
+ * Обработчик принятого пакета. Последний аргумент - размер пакета в байтах
+ */
+typealias ServerPacketHandlerInternal<P> = (ConnectionSession, Executor, P, Int) -> Unit
 
 fun <P : Packet> registerServerReceiverInternal(
     channel: Endpoint<P>,
@@ -30,7 +35,7 @@ fun <P : Packet> registerServerReceiverInternal(
     ServerPlayNetworking.registerGlobalReceiver(payloadId) { payload, context ->
         val session = connectionManager.getSession(context.player().engineId)
         val packet = payload.packet
-        handler(session, context.server(), packet)
+        handler(session, context.server(), packet, payload.size)
     }
 }
 
@@ -41,22 +46,23 @@ fun unregisterServerReceiverInternal(channel: Endpoint<*>) {
 private val ENTITY_TABLE by injectEntityTable()
 
 fun <P : Packet> sendClientboundPacketInternal(endpoint: Endpoint<P>, player: PlayerId, packet: P, id: Long) {
-    val payload = EnginePayload(
-        id,
-        packet,
-        PayloadRegistry.payloadOf(endpoint),
-    )
-    val player = ENTITY_TABLE.server.getEntity(player) as? ServerPlayer ?: return
-    ServerPlayNetworking.send(player, payload)
+    val serverPlayer = ENTITY_TABLE.server.getEntity(player) as? ServerPlayer ?: return
+    ClientboundPacketEncoder.send(endpoint, serverPlayer, player, packet, id)
 }
 
 typealias PayloadId<T> = CustomPacketPayload.Type<T>
 typealias Payload = CustomPacketPayload
 
-data class EnginePayload<P : Packet>(
+/**
+ * @param encoded пакет, заранее закодированный [ClientboundPacketEncoder]. Тогда кодек только копирует байты
+ * @param size размер принятого пакета в байтах вместе с id
+ */
+class EnginePayload<P : Packet>(
     val packetId: Long,
     val packet: P,
-    val payloadId: PayloadId<EnginePayload<P>>
+    val payloadId: PayloadId<EnginePayload<P>>,
+    val encoded: ByteArray? = null,
+    val size: Int = 0,
 ) : Payload {
     override fun type(): PayloadId<out Payload> = payloadId
 }
@@ -90,10 +96,22 @@ fun <P : Packet> PayloadTypeRegistry<RegistryFriendlyByteBuf>.registerPayload(en
         StreamCodec<RegistryFriendlyByteBuf, EnginePayload<P>>.of(
             { buf, payload ->
                 buf.writeLong(payload.packetId)
-                serializePacket(buf, payload.packet, endpoint.codec)
+                val encoded = payload.encoded
+                if (encoded != null) {
+                    buf.writeBytes(encoded)
+                } else {
+                    withComponentPalette(NetworkComponentPalette.current) {
+                        serializePacket(buf, payload.packet, endpoint.codec)
+                    }
+                }
             },
             { buf ->
-                EnginePayload(buf.readLong(), deserializePacket(buf, endpoint.codec), payloadId)
+                val start = buf.readerIndex()
+                val packetId = buf.readLong()
+                val packet = withComponentPalette(NetworkComponentPalette.current) {
+                    deserializePacket(buf, endpoint.codec)
+                }
+                EnginePayload(packetId, packet, payloadId, size = buf.readerIndex() - start)
             }
         )
     )
@@ -0,0 +1,88 @@
+package org.lain.engine.mc
+
+import io.netty.buffer.Unpooled
+import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking
+import net.minecraft.network.FriendlyByteBuf
+import net.minecraft.server.level.ServerPlayer
+import org.lain.engine.player.PlayerId
+import org.lain.engine.storage.NetworkComponentPalette
+import org.lain.engine.storage.withComponentPalette
+import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.NetworkMetrics
+import org.lain.engine.transport.Packet
+import org.lain.engine.transport.serializePacket
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+private val LOGGER = LoggerFactory.getLogger("Engine Packet Encoder")
+
+/**
+ * Кодирование исходящих пакетов на пуле потоков. Поток тика передаёт готовый пакет - он должен быть неизменяемым
+ * снимком, - а пул сериализует его в байты, которые Netty потом только копирует в буфер соединения.
+ *
+ * Пакеты игрока кодируются параллельно, но уходят в соединение строго в порядке отправки: каждый следующий
+ * ждёт предыдущий в цепочке игрока. Очередь пула ограничена; при переполнении пакет кодируется на отправляющем потоке
+ */
+object ClientboundPacketEncoder {
+    private const val QUEUE_CAPACITY = 4096
+    private val WORKERS = (Runtime.getRuntime().availableProcessors() / 2).coerceIn(1, 4)
+    private val DONE: CompletableFuture<Unit> = CompletableFuture.completedFuture(Unit)
+
+    private val threads = AtomicInteger()
+    private val executor = ThreadPoolExecutor(
+        WORKERS,
+        WORKERS,
+        60, TimeUnit.SECONDS,
+        ArrayBlockingQueue(QUEUE_CAPACITY),
+        { runnable -> Thread(runnable, "Engine Packet Encoder #${threads.incrementAndGet()}").apply { isDaemon = true } },
+        ThreadPoolExecutor.CallerRunsPolicy()
+    ).apply { allowCoreThreadTimeOut(true) }
+
+    private val lanes = ConcurrentHashMap<PlayerId, CompletableFuture<Unit>>()
+
+    fun <P : Packet> send(endpoint: Endpoint<P>, player: ServerPlayer, playerId: PlayerId, packet: P, id: Long) {
+        val payloadId = PayloadRegistry.payloadOf(endpoint)
+        val submittedAt = System.nanoTime()
+        val encoded = CompletableFuture
+            .supplyAsync({ encode(endpoint, packet) }, executor)
+            .exceptionally { error ->
+                LOGGER.error("Не удалось закодировать пакет {} для игрока {}", endpoint.identifier, playerId, error)
+                null
+            }
+        val tail = lanes.compute(playerId) { _, previous ->
+            (previous ?: DONE).thenCombine(encoded) { _, result ->
+                if (result != null) {
+                    runCatching { ServerPlayNetworking.send(player, EnginePayload(id, packet, payloadId, result.bytes)) }
+                        .onFailure { LOGGER.error("Не удалось отправить пакет {} игроку {}", endpoint.identifier, playerId, it) }
+                    val queueNanos = System.nanoTime() - submittedAt - result.encodeNanos
+                    // + id пакета в заголовке payload
+                    NetworkMetrics.recordOutbound(endpoint, playerId, result.bytes.size + Long.SIZE_BYTES, result.encodeNanos, queueNanos)
+                }
+            }
+        }!!
+        // Последний пакет в цепочке освобождает её, чтобы не держать вышедших игроков
+        tail.thenRun { lanes.remove(playerId, tail) }
+    }
+
+    private class Encoded(val bytes: ByteArray, val encodeNanos: Long)
+
+    private fun <P : Packet> encode(endpoint: Endpoint<P>, packet: P): Encoded {
+        val start = System.nanoTime()
+        val buf = FriendlyByteBuf(Unpooled.buffer())
+        try {
+            withComponentPalette(NetworkComponentPalette.current) {
+                serializePacket(buf, packet, endpoint.codec)
+            }
+            val bytes = ByteArray(buf.readableBytes())
+            buf.readBytes(bytes)
+            return Encoded(bytes, System.nanoTime() - start)
+        } finally {
+            buf.release()
+        }
+    }
+}
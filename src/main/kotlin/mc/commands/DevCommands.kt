@@ -7,11 +7,15 @@ import org.lain.engine.mc.ITEM_STACK_MATERIAL
 import org.lain.engine.mc.engine
 import org.lain.engine.mc.getWorld
 import org.lain.engine.mc.wrapEngineItemStack
+import org.lain.engine.player.PlayerStorage
+import org.lain.engine.player.username
 import org.lain.engine.script.LOGGER
 import org.lain.engine.script.lua.LuaFunctionChunk
 import org.lain.engine.script.lua.coerceToLua
 import org.lain.engine.script.lua.toLuaValue
 import org.lain.engine.storage.saveItemsBlocking
+import org.lain.engine.transport.NetworkMetrics
+import org.lain.engine.transport.TrafficSnapshot
 import org.lain.engine.util.getServerStats
 import org.lain.engine.util.injectMinecraftEngineServer
 import org.luaj.vm2.LuaError
@@ -69,6 +73,37 @@ fun ServerCommandDispatcher.registerEngineDeveloperCommands() {
                         ctx.sendFeedback("Средняя длительность последних 20 тактов engine: ${stats.averageTickTimeMillis} мл.", false)
                     }
             )
+            .then(
+                literal("network")
+                    .executeCatching { ctx ->
+                        networkEndpointsMessage().forEach { ctx.sendFeedback(it, false) }
+                    }
+                    .then(
+                        literal("players")
+                            .executeCatching { ctx ->
+                                networkPlayersMessage(engine.playerStorage).forEach { ctx.sendFeedback(it, false) }
+                            }
+                    )
+                    .then(
+                        literal("write")
+                            .executeCatching { ctx ->
+                                server.networkMetricsWriter.write()
+                                ctx.sendFeedback("Сетевые метрики записаны", false)
+                            }
+                    )
+            )
+            .then(
+                literal("acoustic-cache")
+                    .executeCatching { ctx ->
+                        val cache = server.acousticSimulator.resultCache
+                        ctx.sendFeedback(
+                            "Кэш акустики: ${cache.size} записей, ${cache.usedBytes / 1024} КБ, " +
+                                "попадания ${"%.1f".format(cache.hitRate * 100)}% (${cache.hits.sum()} из ${cache.hits.sum() + cache.misses.sum()}), " +
+                                "устарело ${cache.invalidations.sum()}, вытеснено ${cache.evictions.sum()}",
+                            false
+                        )
+                    }
+            )
             .then(
                 literal("save-items")
                     .executeCatching { ctx ->
@@ -97,4 +132,31 @@ fun ServerCommandDispatcher.registerEngineDeveloperCommands() {
                     }
             )
     )
-}
\ No newline at end of file
+}
+
+private const val NETWORK_TOP = 10
+
+private fun formatTraffic(name: String, outbound: TrafficSnapshot, inbound: TrafficSnapshot) =
+    "$name: ↑ ${outbound.packets} пак. ${outbound.bytes / 1024} КБ, " +
+        "кодирование ${"%.1f".format(outbound.averageEncodeMicros)} мкс, " +
+        "очередь ${"%.2f".format(outbound.averageQueueMillis)} мс, " +
+        "повторы ${outbound.retransmits}; ↓ ${inbound.packets} пак. ${inbound.bytes / 1024} КБ"
+
+private fun networkEndpointsMessage(): List<String> {
+    val endpoints = NetworkMetrics.endpoints()
+        .map { Triple(it.identifier, it.outbound.snapshot(), it.inbound.snapshot()) }
+        .filter { (_, outbound, inbound) -> !outbound.isEmpty || !inbound.isEmpty }
+        .sortedByDescending { (_, outbound, inbound) -> outbound.bytes + inbound.bytes }
+    return listOf("Эндпоинты по трафику с запуска сервера (${endpoints.size}):") +
+        endpoints.take(NETWORK_TOP).map { (name, outbound, inbound) -> formatTraffic(name, outbound, inbound) }
+}
+
+private fun networkPlayersMessage(playerStorage: PlayerStorage): List<String> {
+    val players = NetworkMetrics.players()
+        .map { Triple(it.player, it.outbound.snapshot(), it.inbound.snapshot()) }
+        .sortedByDescending { (_, outbound, _) -> outbound.bytes }
+    return listOf("Игроки по трафику (${players.size}):") +
+        players.take(NETWORK_TOP).map { (id, outbound, inbound) ->
+            formatTraffic(playerStorage.get(id)?.username ?: id.value.toString(), outbound, inbound)
+        }
+}
@@ -46,17 +46,16 @@ fun World.updateCommandInvokeSystem(table: EntityTable) {
     val mcWorld = table.getMcWorld(id) as? ServerLevel ?: error("World $id not found")
     val server = mcWorld.server ?: error("Minecraft server is not available")
     val commandDispatcher = server.commands
-    iterate<Event, CommandInvoke>() { _, _, (command) ->
-        commandDispatcher.performPrefixedCommand(server.createCommandSourceStack(), command)
-    }
-    iterate<PlayerCommandAccess, CommandInvoke>() { componentAccess, (player, root), (command) ->
-        val mcPlayer = table.server.getEntity(player) ?: error("Player $player not found")
-        var commandSourceStack = mcPlayer.createCommandSourceStack()
-        if (root) commandSourceStack = commandSourceStack.withPermission(LevelBasedPermissionSet.OWNER)
-        commandDispatcher.performPrefixedCommand(
-            commandSourceStack,
-            command
-        )
+    iterateEvents<CommandInvoke> { (command, access) ->
+        val commandSourceStack = if (access == null) {
+            server.createCommandSourceStack()
+        } else {
+            val (player, root) = access
+            val mcPlayer = table.server.getEntity(player) ?: error("Player $player not found")
+            val playerSourceStack = mcPlayer.createCommandSourceStack()
+            if (root) playerSourceStack.withPermission(LevelBasedPermissionSet.OWNER) else playerSourceStack
+        }
+        commandDispatcher.performPrefixedCommand(commandSourceStack, command)
     }
 }
 
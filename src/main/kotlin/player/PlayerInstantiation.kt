@@ -20,6 +20,7 @@ import org.lain.engine.storage.*
 import org.lain.engine.transport.packet.DeveloperModeStatus
 import org.lain.engine.util.Storage
 import org.lain.engine.util.component.EntityCommandBuffer
+import org.lain.engine.util.component.EntityHandleAccess
 import org.lain.engine.util.math.Pos
 import org.lain.engine.world.Location
 import org.lain.engine.world.World
@@ -268,7 +269,7 @@ class PlayerLoader(
 }
 
 
-context(componentAccess: WriteComponentAccess)
+context(componentAccess: WriteComponentAccess, handles: EntityHandleAccess)
 fun EnginePlayer.prepareContainers(
     persistentId: PersistentId,
     location: Location,
@@ -6,6 +6,7 @@ import org.lain.cyberia.ecs.apply
 import org.lain.cyberia.ecs.remove
 import org.lain.cyberia.ecs.require
 import org.lain.engine.server.markDirty
+import org.lain.engine.transport.Quantized
 import org.lain.engine.util.math.lerp
 import org.lain.engine.util.math.smootherstep
 import org.lain.engine.util.math.smoothstep
@@ -22,8 +23,8 @@ import kotlin.math.min
 @Serializable
 data class MovementStatus(
     var isSprinting: Boolean = false,
-    var intention: Float = DEFAULT_INTENTION,
-    var stamina: Float = DEFAULT_STAMINA,
+    @Quantized(1f / 1024) var intention: Float = DEFAULT_INTENTION,
+    @Quantized(1f / 1024) var stamina: Float = DEFAULT_STAMINA,
 ) : Component {
     companion object {
         const val DEFAULT_INTENTION = 0.5f
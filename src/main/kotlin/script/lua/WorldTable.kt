@@ -3,10 +3,12 @@ package org.lain.engine.script.lua
 import org.lain.cyberia.ecs.*
 import org.lain.engine.script.ScriptComponent
 import org.lain.engine.script.ScriptComponentType
+import org.lain.engine.util.component.EntityHandle
 import org.lain.engine.util.component.EntityId
 import org.lain.engine.world.World
 import org.lain.engine.world.invokeCommand
 import org.lain.engine.world.setDynamicVoxel
+import org.luaj.vm2.LuaError
 import org.luaj.vm2.LuaTable
 import org.luaj.vm2.LuaUserdata
 import org.luaj.vm2.LuaValue
@@ -67,14 +69,18 @@ fun WorldMetaTable() = luaTable {
         val eventType = event.get("type").asEngineScriptComponentType().requireType()
         val networked = networkedL.toboolean()
         with(world) {
-            world.emitEvent(
-                ScriptComponent(event, eventType),
-                eventType,
-                networked
-            ).coerceToLua()
+            world.emitEntityEvent(ScriptComponent(event, eventType), eventType, networked).coerceToLua()
         }
     }
 
+    // Событие без сущности: дешевле emit, но не синхронизируется и видно только через iterate по одному типу
+    function2("publish") { self, event ->
+        val world = self.asEngineWorld()
+        val eventType = event.get("type").asEngineScriptComponentType().requireType()
+        world.emitEvent(ScriptComponent(event, eventType), eventType.ecsType)
+        NIL
+    }
+
     function3("iterate") { self, types, func ->
         val world = self.asEngineWorld()
         val typesL = types.checktable().toList { it.get("type").asEngineScriptComponentType() }
@@ -87,13 +93,19 @@ fun WorldMetaTable() = luaTable {
         }
 
         when (typesL.size) {
-            1 -> world.iterate1(typesL[0].ecsType) { entity, component ->
-                val luaEntity = getOrCreateEntityComponent(entity)
-                func.invoke(
-                    self,
-                    luaEntity.coercedTable,
-                    component.luaValue
-                )
+            1 -> {
+                world.iterate1(typesL[0].ecsType) { entity, component ->
+                    val luaEntity = getOrCreateEntityComponent(entity)
+                    func.invoke(
+                        self,
+                        luaEntity.coercedTable,
+                        component.luaValue
+                    )
+                }
+                // События из канала не привязаны к сущностям
+                world.events.channel(typesL[0].ecsType).forEach { event ->
+                    func.invoke(self, NIL, event.luaValue)
+                }
             }
 
             2 -> world.iterate2(
@@ -214,7 +226,8 @@ fun LuaValue.asEngineWorld() = this.checkuserdata() as World
 
 data class LuaEntity(
     val world: LuaValue,
-    val id: LuaValue
+    val id: LuaValue,
+    val handle: EntityHandle
 ) {
     override fun toString(): String {
         return id.toint().toString()
@@ -230,28 +243,27 @@ data class LuaEntityComponent(val entity: LuaEntity, val coercedTable: LuaValue)
 fun EntityMetaTable() = luaTable {
     function1("exists") { self ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
-        with(world) { entityId.exists() }.toLuaValue()
+        world.componentManager.isAlive(entity.handle).toLuaValue()
     }
     function2("get_component") { self, component ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
+        val entityId = entity.resolve(world)
         val type = component.checktable().get("type").asEngineScriptComponentType()
         world.getLuaComponent(entityId, type.requireType()) ?: NIL
     }
     function2("has_component") { self, component ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
+        val entityId = entity.resolve(world)
         val type = component.checktable().get("type").asEngineScriptComponentType()
         luaValue(world.hasLuaComponent(entityId, type.requireType()))
     }
     function2("set_component") { self, component ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
+        val entityId = entity.resolve(world)
         val type = component.checktable().get("type").asEngineScriptComponentType()
         with(world) { entityId.setScriptComponent(component, type.requireType()) }
         debugScript("entity", "($entity) ${type.id} added")
@@ -259,16 +271,16 @@ fun EntityMetaTable() = luaTable {
     }
     function2("remove_component") { self, component ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
+        val entityId = entity.resolve(world)
         val type = component.checktable().get("type").asEngineScriptComponentType()
         debugScript("entity", "($entity) ${type.id} removed")
         world.removeLuaComponent(entityId, type.requireType()) ?: NIL
     }
     function2("mark_dirty") { self, component ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
+        val entityId = entity.resolve(world)
         val type = component.checktable().get("type").asEngineScriptComponentType()
         debugScript("entity", "($entity) ${type.id} marked for sync")
         world.markDirty(entityId, type.requireType())
@@ -276,8 +288,8 @@ fun EntityMetaTable() = luaTable {
     }
     function1("get_all_components") { self ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
+        val entityId = entity.resolve(world)
         world.getComponents(entityId)
             .filterIsInstance<ScriptComponent>()
             .filter { it.value is LuaTable }
@@ -285,8 +297,8 @@ fun EntityMetaTable() = luaTable {
     }
     function1("destroy") { self ->
         val entity = self.asEngineEntity()
-        val entityId = entity.id.toint()
         val world = entity.world.asEngineWorld()
+        val entityId = entity.resolve(world)
         debugScript("entity", "($entity) destroyed")
         world.destroy(entityId)
         NIL
@@ -300,7 +312,7 @@ fun EntityId.coerceToLua(): LuaValue {
     return getComponent<LuaEntityComponent>()?.coercedTable ?: run {
         val metatable = LuaTable()
         metatable.set("__index", lua.entityMetaTable)
-        val entity = LuaEntity(worldL, idL)
+        val entity = LuaEntity(worldL, idL, world.componentManager.handleOf(this))
         val entityTable = CoerceJavaToLua.coerce(entity)
         entityTable.setmetatable(metatable)
         setComponent(LuaEntityComponent(entity, entityTable))
@@ -310,6 +322,11 @@ fun EntityId.coerceToLua(): LuaValue {
 
 fun LuaValue.asEngineEntity() = this.checkuserdata() as LuaEntity
 
+// Таблица сущности может пережить её уничтожение, а индекс к тому времени займёт другая сущность
+private fun LuaEntity.resolve(world: World): EntityId {
+    return world.componentManager.resolve(handle) ?: throw LuaError("Сущность $this уничтожена")
+}
+
 val ScriptComponent.luaValue
     get() = value as? LuaValue ?: error("Component not supports lua")
 
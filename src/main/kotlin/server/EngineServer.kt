@@ -79,6 +79,13 @@ class EngineServer(
     @Volatile
     var tick: ULong = 0L.toULong()
 
+    // Системы, которые передаёт платформа, подставляются на каждом вызове update
+    private var updateBulletHitSystem: World.() -> Unit = {}
+    private var updateSaveSystem: World.() -> Unit = {}
+    private val worldSystems by lazy { createWorldTickPlan() }
+    private val worldThreads = WorldThreads()
+    private val crossWorldQueue = ConcurrentLinkedQueue<Runnable>()
+
     val defaultWorld
         get() = worlds.toList().first().second
 
@@ -95,6 +102,7 @@ class EngineServer(
     fun stop() {
         stopped = true
         handler.invalidate()
+        worldThreads.shutdown()
     }
 
     fun update(
@@ -103,8 +111,9 @@ class EngineServer(
         updateSaveSystem: World.() -> Unit,
     ) = with(namespacedStorage) {
         if (stopped) return
+        this@EngineServer.updateBulletHitSystem = updateBulletHitSystem
+        this@EngineServer.updateSaveSystem = updateSaveSystem
         val start = Timestamp()
-        val vocalSettings = globals.vocalSettings
         val worlds = allWorlds()
 
         // Подготовка данных
@@ -115,17 +124,129 @@ class EngineServer(
         } // принимаем команды из ECS-очередей
         taskQueue.flush { it.run() }
 
-        worlds.forEachWithSelfContext { world ->
-            world.prepareData()
+        if (globals.parallelWorldTicks && worlds.size > 1) {
+            worlds.forEachWithSelfContext { world ->
+                world.prepareData()
+                world.refreshSpatialIndex()
+            }
+            runOnWorldThreads(worlds) { world -> tickPlayers(world) }
+            for (segment in worldSystems.segments) {
+                if (segment.serverThread) {
+                    worlds.forEach { world -> segment.schedule.run(world) }
+                } else {
+                    runOnWorldThreads(worlds) { world -> segment.schedule.run(world) }
+                }
+            }
+            worlds.forEachWithSelfContext { world -> finishWorldTick(world) }
+        } else {
+            worlds.forEachWithSelfContext { world ->
+                world.prepareData()
+                world.refreshSpatialIndex()
+                tickPlayers(world)
+                worldSystems.run(world)
+                finishWorldTick(world)
+            }
+        }
+
+        handler.tick()
+        tickTimes.add(start.timeElapsed().toInt())
+    }
+
+    /**
+     * Выполняет фазу тика на потоках миров и дожидается всех миров. Отложенные ими межмировые операции
+     * выполняются сразу после фазы, до следующей системы
+     */
+    private fun runOnWorldThreads(worlds: Collection<World>, task: (World) -> Unit) {
+        worlds
+            .map { world -> worldThreads.submit(world) { task(world) } }
+            .forEach { it.get() }
+        crossWorldQueue.flush { it.run() }
+    }
+
+    private fun finishWorldTick(world: World) {
+        saveTimers.items.tick()
+        saveTimers.containers.tick()
+
+        world.clearEvents()
+    }
+
+    // Системы в порядке выполнения. Системы потока сервера при параллельном тике миров выполняются на потоке сервера
+    private fun createWorldTickPlan() = WorldTickPlan(
+        listOf(
+            // Обновление оружейных систем
+            worldSystem("fire_time", { writes<Gun>() }) { updateFireTimeSystem() },
+            worldSystem(
+                "recoil",
+                {
+                    reads<Item>()
+                    reads<HoldsBy>()
+                    writes<Recoil>()
+                    writes<OrientationTranslation>()
+                }
+            ) { commands -> updateRecoilSystem(commands = commands) },
+            worldSystem(
+                "bullets_acoustic",
+                {
+                    reads<BulletFire>()
+                    reads<Location>()
+                    writes<Hearing>()
+                }
+            ) { updateBulletsAcoustic(this) },
+            // Обращается к миру Minecraft
+            serverThreadSystem("bullet_hit") { updateBulletHitSystem(this) },
+
+            // Обновление звуков
+            serverThreadSystem("sounds") {
+                val sounds = processWorldSounds(namespacedStorage, this)
+                broadcastWorldSounds(sounds, handler)
+            },
+
+            // Вызов обновления системы контейнеров
+            exclusiveWorldSystem("containers") { updateContainerSystems() },
+
+            // Lua-контекст общий для всех миров, скрипты могут рассылать пакеты и писать в чат
+            serverThreadSystem("lua") {
+                synchronized(luaContext) {
+                    with(luaContext) {
+                        adaptScriptNetworkingComponents()
+                        tickCallbacks(callbacks)
+                        flushEntityRpcMessageReceiver()
+                        adaptScriptPlayerComponents()
+                        adaptScriptLightComponents()
+                    }
+                }
+            },
+
+            // Обработка взаимодействий с вокселями
+            serverThreadSystem("voxel_events") { updateVoxelEvents(handler) },
 
+            // Подгон данных контейнеров
+            exclusiveWorldSystem("post_containers") { postUpdateContainerSystems() },
+
+            // Сохранение в базу данных и рассылка выгрузки
+            serverThreadSystem("save") {
+                updateSaveSystem(this)
+                updateUnloadSystem(handler, this, saveTimers)
+            }
+        )
+    )
+
+    /**
+     * Обновление игроков мира. Всё, что трогает обработчик, чат или акустику, идёт через [crossWorld]:
+     * при параллельном тике это выполняется на потоке сервера после фазы игроков, иначе - сразу
+     */
+    private fun tickPlayers(world: World) = with(namespacedStorage) {
+        with(world) {
             // Фаза 2.1. Обновление игрока
             world.players.forEach { player ->
-                handleEntityDebugView(handler, player) // Отсылаем слепок данных игроку
+                crossWorld { handleEntityDebugView(handler, player) } // Отсылаем слепок данных игроку
 
                 // Движение, голос
                 updatePlayerMovement(player, globals.defaultPlayerAttributes.movement, globals.movementSettings)
-                updatePlayerSpeaking(player, chat, vocalSettings)
-                updatePlayerVoice(player, chat, globals.vocalSettings)
+                crossWorld {
+                    updatePlayerSpeaking(player, chat, globals.vocalSettings)
+                    updatePlayerVoice(player, chat, globals.vocalSettings)
+                }
 
                 // Сбор взаимодействий
                 updatePlayerVerbLookup(player)
@@ -140,54 +261,28 @@ class EngineServer(
 //                    handleFlashlightInteractions(player)
 //                    handlePlayerEquipmentInteractionProgression(player)
 //                    handlePlayerEquipmentInteraction(player)
-                    handleHandScriptInteractions(player)
+                    synchronized(luaContext) { handleHandScriptInteractions(player) }
                     finishPlayerInteraction(player)
                 }
 
                 updateHearing(player)
-                updateAcousticHearing(player, handler, globals.chatSettings)
+                crossWorld { updateAcousticHearing(player, handler, globals.chatSettings) }
 
                 tickNarrations(player)
             }
-
-            // Обновление оружейных систем
-            updateFireTimeSystem()
-            updateRecoilSystem()
-            updateBulletsAcoustic(world)
-            updateBulletHitSystem()
-
-            // Обновление звуков
-            val sounds = processWorldSounds(namespacedStorage, world)
-            broadcastWorldSounds(sounds, handler)
-
-            // Вызов обновления системы контейнеров
-            updateContainerSystems()
-
-            with(luaContext) {
-                adaptScriptNetworkingComponents()
-                world.tickCallbacks(callbacks)
-                flushEntityRpcMessageReceiver()
-                adaptScriptPlayerComponents()
-                adaptScriptLightComponents()
-            }
-
-            // Обработка взаимодействий с вокселями
-            world.updateVoxelEvents(handler)
-
-            // Подгон данных контейнеров
-            postUpdateContainerSystems()
-
-            updateSaveSystem()
-            updateUnloadSystem(handler, world, saveTimers)
-
-            saveTimers.items.tick()
-            saveTimers.containers.tick()
-
-            world.clearEvents()
         }
+    }
 
-        handler.tick()
-        tickTimes.add(start.timeElapsed().toInt())
+    /**
+     * Выполняет операцию, затрагивающую несколько миров или общее состояние сервера (чат, глобальные рассылки).
+     * Из потока мира операция откладывается до конца фазы миров и выполняется на потоке сервера в порядке поступления
+     */
+    fun crossWorld(r: Runnable) {
+        if (isOnThread()) {
+            r.run()
+        } else {
+            crossWorldQueue += r
+        }
     }
 
     fun postUpdate() {
@@ -0,0 +1,142 @@
+package org.lain.engine.server
+
+import org.lain.engine.util.component.EntityId
+import org.lain.engine.util.math.Pos
+import org.lain.engine.world.SpatialIndex
+import org.lain.engine.world.SpatialIndex.Companion.NO_CELL
+import org.lain.engine.world.SpatialIndex.Companion.cellKey
+import org.lain.engine.world.SpatialIndex.Companion.cellX
+import org.lain.engine.world.SpatialIndex.Companion.cellZ
+import org.lain.engine.world.World
+
+/**
+ * Подписки игроков на ячейки [SpatialIndex]. Подписка видит все элементы в квадрате [radius] ячеек вокруг своей ячейки.
+ * Множество видимых элементов не пересчитывается каждый тик: оно меняется, только когда подписчик переходит в
+ * другую ячейку или элемент переезжает между ячейками, появляется или исчезает из индекса
+ */
+class ChunkInterest<T : Any>(private val index: SpatialIndex<T>) {
+    private val subscribers = HashMap<Long, ArrayList<Subscription>>()
+    private val subscriptions = ArrayList<Subscription>()
+
+    /**
+     * Радиус в ячейках индекса. При изменении подписки перестраиваются при следующем [update]
+     */
+    var radius: Int = 0
+        set(value) {
+            if (field == value) return
+            field = value
+            subscriptions.forEach { reset(it) }
+        }
+
+    inner class Subscription internal constructor() {
+        internal var center = NO_CELL
+        internal val cells = HashSet<Long>()
+        internal val elements = LinkedHashSet<T>()
+
+        val interest: ChunkInterest<T> get() = this@ChunkInterest
+
+        /**
+         * Элементы в ячейках подписки. Актуальны после [update] в текущем тике
+         */
+        val visible: Set<T> get() = elements
+    }
+
+    init {
+        index.addMigrationListener { element, from, to -> onMigrate(element, from, to) }
+    }
+
+    fun subscribe(): Subscription = Subscription().also { subscriptions += it }
+
+    fun unsubscribe(subscription: Subscription) {
+        reset(subscription)
+        subscriptions.remove(subscription)
+    }
+
+    /**
+     * Переносит подписку к [position]. Если ячейка подписчика не сменилась, ничего не делает
+     */
+    fun update(subscription: Subscription, position: Pos) {
+        val center = index.cellOf(position)
+        if (subscription.center == center) return
+        subscription.center = center
+
+        val minX = cellX(center) - radius
+        val maxX = cellX(center) + radius
+        val minZ = cellZ(center) - radius
+        val maxZ = cellZ(center) + radius
+
+        val iterator = subscription.cells.iterator()
+        while (iterator.hasNext()) {
+            val cell = iterator.next()
+            if (cellX(cell) in minX..maxX && cellZ(cell) in minZ..maxZ) continue
+            iterator.remove()
+            leave(subscription, cell)
+        }
+        for (x in minX..maxX) {
+            for (z in minZ..maxZ) {
+                val cell = cellKey(x, z)
+                if (subscription.cells.add(cell)) enter(subscription, cell)
+            }
+        }
+    }
+
+    private fun enter(subscription: Subscription, cell: Long) {
+        subscribers.getOrPut(cell) { ArrayList() } += subscription
+        index.forEachInCell(cell) { subscription.elements += it }
+    }
+
+    private fun leave(subscription: Subscription, cell: Long) {
+        subscribers[cell]?.let {
+            it.remove(subscription)
+            if (it.isEmpty()) subscribers.remove(cell)
+        }
+        index.forEachInCell(cell) { subscription.elements -= it }
+    }
+
+    private fun reset(subscription: Subscription) {
+        subscription.cells.forEach { cell ->
+            subscribers[cell]?.let {
+                it.remove(subscription)
+                if (it.isEmpty()) subscribers.remove(cell)
+            }
+        }
+        subscription.cells.clear()
+        subscription.elements.clear()
+        subscription.center = NO_CELL
+    }
+
+    private fun onMigrate(element: T, from: Long, to: Long) {
+        if (from != NO_CELL) {
+            subscribers[from]?.forEach { if (to !in it.cells) it.elements -= element }
+        }
+        if (to != NO_CELL) {
+            subscribers[to]?.forEach { it.elements += element }
+        }
+    }
+}
+
+/**
+ * Интерес игроков к сетевым сущностям и динамическим вокселям одного мира
+ */
+class WorldInterest(world: World) {
+    val entities = ChunkInterest(world.networkedEntityIndex)
+    val voxels = ChunkInterest(world.dynamicVoxelIndex)
+
+    fun setRadius(cells: Int) {
+        entities.radius = cells
+        voxels.radius = cells
+    }
+}
+
+/**
+ * Подписки игрока в мире, где он сейчас находится
+ */
+class PlayerInterest(
+    val entities: ChunkInterest<EntityId>.Subscription,
+    val voxels: ChunkInterest<EntityId>.Subscription,
+) {
+    fun unsubscribe() {
+        entities.interest.unsubscribe(entities)
+        voxels.interest.unsubscribe(voxels)
+    }
+}
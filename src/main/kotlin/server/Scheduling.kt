@@ -0,0 +1,185 @@
+package org.lain.engine.server
+
+import org.lain.cyberia.ecs.Component
+import org.lain.cyberia.ecs.ComponentType
+import org.lain.cyberia.ecs.componentTypeOf
+import org.lain.engine.util.component.EntityCommandBuffer
+import org.lain.engine.world.World
+import org.lain.engine.world.WorldId
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.Future
+
+/**
+ * Система мира с объявленным доступом к компонентам.
+ * Эксклюзивная система трогает что-то помимо объявленных компонентов (игроков, сеть, Lua, Minecraft, создание и удаление сущностей),
+ * поэтому всегда выполняется одна и на потоке мира.
+ * Структурные изменения (добавление и удаление компонентов) параллельные системы откладывают в [EntityCommandBuffer],
+ * который применяется на потоке мира после завершения этапа.
+ * Система [serverThread] трогает общее состояние сервера (обработчик, чат, Lua, Minecraft, базу данных)
+ * и при параллельном тике миров выполняется на потоке сервера
+ */
+class WorldSystem(
+    val name: String,
+    val reads: Set<ComponentType<out Component>>,
+    val writes: Set<ComponentType<out Component>>,
+    val exclusive: Boolean,
+    val serverThread: Boolean,
+    val update: World.(commands: EntityCommandBuffer) -> Unit
+) {
+    fun conflictsWith(other: WorldSystem): Boolean {
+        if (exclusive || other.exclusive) return true
+        return writes.any { it in other.writes || it in other.reads } || other.writes.any { it in reads }
+    }
+
+    override fun toString(): String = name
+}
+
+class WorldSystemBuilder(private val name: String) {
+    val reads = mutableSetOf<ComponentType<out Component>>()
+    val writes = mutableSetOf<ComponentType<out Component>>()
+    var exclusive = false
+    var serverThread = false
+
+    inline fun <reified T : Component> reads() {
+        reads += componentTypeOf(T::class)
+    }
+
+    inline fun <reified T : Component> writes() {
+        writes += componentTypeOf(T::class)
+    }
+
+    fun build(update: World.(commands: EntityCommandBuffer) -> Unit) = WorldSystem(name, reads, writes, exclusive || serverThread, serverThread, update)
+}
+
+fun worldSystem(
+    name: String,
+    access: WorldSystemBuilder.() -> Unit,
+    update: World.(commands: EntityCommandBuffer) -> Unit
+): WorldSystem {
+    return WorldSystemBuilder(name).apply(access).build(update)
+}
+
+fun exclusiveWorldSystem(name: String, update: World.() -> Unit): WorldSystem {
+    return worldSystem(name, { exclusive = true }) { update() }
+}
+
+fun serverThreadSystem(name: String, update: World.() -> Unit): WorldSystem {
+    return worldSystem(name, { serverThread = true }) { update() }
+}
+
+/**
+ * Системы мира, разбитые на сегменты подряд идущих систем одного потока. Последовательный тик выполняет сегменты
+ * по порядку - это исходный порядок систем. Параллельный тик выполняет сегмент всех миров на их потоках
+ * или на потоке сервера и только затем переходит к следующему, поэтому порядок систем внутри мира не меняется
+ */
+class WorldTickPlan(systems: List<WorldSystem>) {
+    class Segment(val serverThread: Boolean, val schedule: SystemSchedule)
+
+    val segments: List<Segment> = buildList {
+        var start = 0
+        for (i in 1..systems.size) {
+            if (i == systems.size || systems[i].serverThread != systems[start].serverThread) {
+                add(Segment(systems[start].serverThread, SystemSchedule(systems.subList(start, i))))
+                start = i
+            }
+        }
+    }
+
+    fun run(world: World) = segments.forEach { it.schedule.run(world) }
+}
+
+/**
+ * Расписание систем мира. Система зависит от всех объявленных раньше систем, с которыми конфликтует по доступу,
+ * и попадает на этап, следующий за самой поздней из зависимостей.
+ * Системы одного этапа не конфликтуют и выполняются параллельно, между этапами - точка синхронизации
+ */
+class SystemSchedule(
+    systems: List<WorldSystem>,
+    private val pool: ForkJoinPool = SYSTEM_POOL
+) {
+    val stages: List<List<WorldSystem>>
+
+    init {
+        val levels = IntArray(systems.size)
+        val stages = mutableListOf<MutableList<WorldSystem>>()
+        for (i in systems.indices) {
+            var level = 0
+            for (j in 0 until i) {
+                if (systems[i].conflictsWith(systems[j])) {
+                    level = maxOf(level, levels[j] + 1)
+                }
+            }
+            levels[i] = level
+            while (stages.size <= level) stages += mutableListOf<WorldSystem>()
+            stages[level] += systems[i]
+        }
+        this.stages = stages
+    }
+
+    fun run(world: World) {
+        for (stage in stages) {
+            if (stage.size == 1) {
+                val commands = EntityCommandBuffer(world)
+                stage[0].update(world, commands)
+                commands.apply(world)
+            } else {
+                runParallel(world, stage)
+            }
+        }
+    }
+
+    private fun runParallel(world: World, stage: List<WorldSystem>) {
+        val buffers = stage.map { EntityCommandBuffer(world) }
+        world.componentManager.parallelPhase {
+            val tasks = ArrayList<ForkJoinTask<*>>(stage.size - 1)
+            var failure = runCatching {
+                for (i in 1 until stage.size) {
+                    tasks += pool.submit(Runnable { stage[i].update(world, buffers[i]) })
+                }
+                // Первая система этапа выполняется на потоке мира, чтобы не простаивать
+                stage[0].update(world, buffers[0])
+            }.exceptionOrNull()
+            // Ждём все задачи этапа даже после ошибки: иначе они продолжат менять мир после выхода из параллельной фазы
+            for (task in tasks) {
+                runCatching { task.join() }.onFailure { error ->
+                    failure?.addSuppressed(error) ?: run { failure = error }
+                }
+            }
+            failure?.let { throw it }
+        }
+        // Точка синхронизации: структурные изменения применяются в порядке объявления систем
+        buffers.forEach { it.apply(world) }
+    }
+
+    companion object {
+        private val SYSTEM_POOL = ForkJoinPool((Runtime.getRuntime().availableProcessors() - 1).coerceAtLeast(1))
+    }
+}
+
+/**
+ * Выделенные потоки миров. Каждый мир тикает в собственном однопоточном исполнителе,
+ * чтобы порядок операций внутри мира не зависел от соседних миров
+ */
+class WorldThreads {
+    private val executors = ConcurrentHashMap<WorldId, ExecutorService>()
+
+    fun submit(world: World, task: () -> Unit): Future<*> {
+        val executor = executors.computeIfAbsent(world.id) { id ->
+            Executors.newSingleThreadExecutor { runnable ->
+                Thread(runnable, "Engine World $id").apply { isDaemon = true }
+            }
+        }
+        return executor.submit(Runnable {
+            world.componentManager.bindToCurrentThread(task)
+        })
+    }
+
+    fun shutdown() {
+        executors.values.forEach { it.shutdown() }
+        executors.clear()
+    }
+}
@@ -17,4 +17,6 @@ data class ServerGlobals(
     val chatSettings: EngineChatSettings = EngineChatSettings(),
     val requireIdenticalNamespaces: Boolean = false,
     val spectateOnJoin: Boolean = true,
+    val parallelWorldTicks: Boolean = false,
+    val outboundBytesPerTick: Int = 128 * 1024,
 )
@@ -1,13 +1,10 @@
 package org.lain.engine.server
 
 import org.lain.cyberia.ecs.Component
-import org.lain.cyberia.ecs.clearMetaState
 import org.lain.cyberia.ecs.get
-import org.lain.cyberia.ecs.getAll
 import org.lain.cyberia.ecs.getComponent
 import org.lain.cyberia.ecs.has
 import org.lain.cyberia.ecs.hasComponent
-import org.lain.cyberia.ecs.iterate
 import org.lain.cyberia.ecs.markDirty
 import org.lain.cyberia.ecs.remove
 import org.lain.cyberia.ecs.replace
@@ -33,12 +30,16 @@ import org.lain.engine.script.getVoidScript
 import org.lain.engine.script.snapshotDebugData
 import org.lain.engine.storage.*
 import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.NetworkMetrics
+import org.lain.engine.transport.OutboundScheduler
 import org.lain.engine.transport.Packet
+import org.lain.engine.transport.PacketPriority
 import org.lain.engine.transport.packet.*
 import org.lain.engine.util.Intent
+import org.lain.engine.util.component.EntityHandle
 import org.lain.engine.util.component.EntityId
-import org.lain.engine.util.component.Networked
 import org.lain.engine.util.forEachWithContext
+import org.lain.engine.util.inject
 import org.lain.engine.util.injectServerTransportContext
 import org.lain.engine.util.math.filterNearestPlayers
 import org.lain.engine.world.*
@@ -57,14 +58,16 @@ class DesynchronizationException(message: String) : RuntimeException(message)
 
 fun desync(message: String): Nothing = throw DesynchronizationException(message)
 
-data class Parent(val entity: EntityId) : Component
+data class Parent(val entity: EntityHandle) : Component
 
-data class Children(val entities: MutableSet<EntityId>) : Component
+data class Children(val entities: MutableSet<EntityHandle>) : Component
 
 class ServerHandler(
     private val server: EngineServer,
 ) {
     private val transportContext by injectServerTransportContext()
+    private val outboundScheduler by inject<OutboundScheduler>()
+    private val reliableChannels by inject<ReliableChannels>()
     private val playerStorage: PlayerStorage get() = server.playerStorage
     private val globals: ServerGlobals get() = server.globals
     val playerSynchronizationRadius get() = globals.playerSynchronizationRadius
@@ -72,6 +75,11 @@ class ServerHandler(
 
     private var squaredSynchronizationRadius = 0f
     private var squaredDesynchronizationRadius = 0f
+    private val nearbyPlayersBuffer = ArrayList<EnginePlayer>()
+    private val worldInterests = HashMap<World, WorldInterest>()
+    private val encodedDeltas = HashMap<World, EncodedDeltaCache>()
+    private val componentPalette = ComponentIdPalette.ofRegistry()
+    private val componentPalettePacket by lazy { ComponentPalettePacket(componentPalette.names()) }
 
     private fun updatePlayer(id: PlayerId, update: EnginePlayer.() -> Unit) {
         val player = server.playerStorage.get(id) ?: desync("Игрок не находится на сервере")
@@ -100,7 +108,8 @@ class ServerHandler(
     }
 
     fun run() {
-        GlobalAcknowledgeListener.start()
+        reliableChannels.start()
+        NetworkComponentPalette.current = componentPalette
 
         SERVERBOUND_SPEED_INTENTION_PACKET.registerReceiver { ctx -> onPlayerSpeedIntentionSet(ctx.sender, value) }
         SERVERBOUND_CHAT_MESSAGE_ENDPOINT.registerReceiver { ctx -> onChatMessage(ctx.sender, text, channel) }
@@ -316,8 +325,12 @@ class ServerHandler(
         CHAT_LOGGER.info("Удалено сообщение игроком $player: $outcomingMessage")
     }
 
+    private fun isSynchronized(player: EnginePlayer): Boolean {
+        return (server.isReplay && !player.has<ReplayViewer>()) || player.network.authorized
+    }
+
     fun tick() {
-        val players = playerStorage.filter { (server.isReplay && !it.has<ReplayViewer>()) || it.network.authorized }
+        val players = playerStorage.filter { isSynchronized(it) }
 
         players.forEachWithContext({ it.world }) { player ->
             val world = player.world
@@ -326,77 +339,75 @@ class ServerHandler(
             val playerLocation = player.location
             val playerPosition = playerLocation.position
             val worldComponents = world.componentManager
+            val syncTick = worldComponents.changeTick
 
             debugPacket("Действия тика ${state.tick}: ${input.actions}")
 
+            val deltas = encodedDeltas.getOrPut(world) { EncodedDeltaCache() }
+
             val worldState = world.state
-            val worldEntityComponentsToSync = when(state.worldSynced) {
-                true -> worldComponents.getOrCreateEmptyDeltaBitMask(worldState)
-                    .let { bitMask -> worldState.getAll(bitMask) }
-                false -> worldComponents.getNetworkedComponents(worldState)
-            }
-            if (worldEntityComponentsToSync.isNotEmpty()) {
-                CLIENTBOUND_WORLD_STATE_DELTA_PACKET.sendS2C(
-                        WorldStateDeltaPacket(worldEntityComponentsToSync.map { it.toSnapshotDto() }),
-                    player.id
-                )
-            }
+            deltas.getOrEncode(worldState, full = !state.worldSynced) {
+                val components = when(state.worldSynced) {
+                    true -> worldComponents.getNetworkedComponents(worldState, syncTick)
+                    false -> worldComponents.getNetworkedComponents(worldState)
+                }
+                if (components.isEmpty()) return@getOrEncode null
+                WorldStateDeltaPacket(components.map { it.toSnapshotDto() })
+            }?.let { state.bundle.add(it, PacketPriority.PLAYER_STATE) }
             state.worldSynced = true
 
-            val nearbyPlayers = filterNearestPlayers(world, playerPosition, playerSynchronizationRadius, players).toMutableList()
+            val nearbyPlayers = filterNearestPlayers(world, playerPosition, playerSynchronizationRadius, nearbyPlayersBuffer.apply { clear() })
+            nearbyPlayers.removeAll { !isSynchronized(it) }
             val playersToDesynchronize = state.players.filter { it.pos.squaredDistanceTo(playerPosition) > squaredDesynchronizationRadius }
             state.players.removeAll(playersToDesynchronize)
 
+            val interest = subscribeInterest(player, world)
+
             val entitiesInRadius: HashSet<PersistentId> = hashSetOf()
-            world.iterate<Networked, Location, PersistentIdComponent>() { entity, _, entityLocation, (persistentId) ->
-                if (entity.hasComponent<Player>()) return@iterate
-                if (entityLocation.position.squaredDistanceTo(playerPosition) < squaredSynchronizationRadius) {
-                    val componentsToSynchronize = if (state.entities.contains(persistentId)) {
-                        val delta = worldComponents.getOrCreateEmptyDeltaBitMask(entity)
-                        entity.getAll(delta)
-                    } else {
-                        worldComponents.getNetworkedComponents(entity)
-                    }
-                    if (componentsToSynchronize.isNotEmpty()) {
-                        CLIENTBOUND_ENTITY_DELTA_ENDPOINT.sendS2C(
-                            EntityDeltaPacket(
-                                EntityDto(
-                                    persistentId,
-                                    componentsToSynchronize.map { it.toSnapshotDto() }
-                                )
-                            ),
-                            player.id
-                        )
+            with(world) {
+                for (entity in interest.entities.visible) {
+                    if (entity.hasComponent<Player>()) continue
+                    val persistentId = entity.getComponent<PersistentIdComponent>()?.id ?: continue
+                    val known = state.entities.contains(persistentId)
+                    val accepted = deltas.getOrEncode(entity, full = !known) {
+                        val components = if (known) {
+                            worldComponents.getNetworkedComponents(entity, syncTick)
+                        } else {
+                            worldComponents.getNetworkedComponents(entity)
+                        }
+                        if (components.isEmpty()) return@getOrEncode null
                         if (entity.hasComponent<Item>()) {
                             println("Synchronized item ${entity.getName()}")
                         }
-                    }
+                        EntityDeltaPacket(EntityDto(persistentId, components.map { it.toSnapshotDto() }))
+                    }?.let {
+                        val distance = entity.getComponent<Location>()?.position?.squaredDistanceTo(playerPosition) ?: 0f
+                        state.bundle.add(it, PacketPriority.ENTITIES, distance)
+                    } ?: true
                     entitiesInRadius.add(persistentId)
-                    state.entities.add(persistentId)
+                    // Отброшенная дельта не дошла до клиента: следующей отправляется полный снимок
+                    if (accepted) state.entities.add(persistentId) else state.entities.remove(persistentId)
                 }
             }
             state.entities.retainAll(entitiesInRadius)
 
             val voxelsInRadius = mutableSetOf<ImmutableVoxelPos>()
-            world.iterate<Networked, DynamicVoxelInterest, ChunkedPos> { voxel, _, _, (chunkPos, voxelPos, centerPos) ->
-                if (centerPos.squaredDistanceTo(playerPosition) < squaredSynchronizationRadius) {
-                    val componentsToSynchronize = if (state.voxels.contains(voxelPos)) {
-                        val delta = worldComponents.getOrCreateEmptyDeltaBitMask(voxel)
-                        voxel.getAll(delta)
-                    } else {
-                        worldComponents.getNetworkedComponents(voxel)
-                    }
-                    if (componentsToSynchronize.isNotEmpty()) {
-                        CLIENTBOUND_DYNAMIC_VOXEL_DELTA_ENDPOINT.sendS2C(
-                            DynamicVoxelDeltaPacket(
-                                voxelPos,
-                                componentsToSynchronize.map { it.toSnapshotDto() }
-                            ),
-                            player.id
-                        )
-                    }
+            with(world) {
+                for (voxel in interest.voxels.visible) {
+                    val chunkedPos = voxel.getComponent<ChunkedPos>() ?: continue
+                    val voxelPos = chunkedPos.voxelPos
+                    val known = state.voxels.contains(voxelPos)
+                    val accepted = deltas.getOrEncode(voxel, full = !known) {
+                        val components = if (known) {
+                            worldComponents.getNetworkedComponents(voxel, syncTick)
+                        } else {
+                            worldComponents.getNetworkedComponents(voxel)
+                        }
+                        if (components.isEmpty()) return@getOrEncode null
+                        DynamicVoxelDeltaPacket(voxelPos, components.map { it.toSnapshotDto() })
+                    }?.let { state.bundle.add(it, PacketPriority.VOXELS, chunkedPos.centerPos.squaredDistanceTo(playerPosition)) } ?: true
                     voxelsInRadius += voxelPos
-                    state.voxels += voxelPos
+                    if (accepted) state.voxels += voxelPos else state.voxels -= voxelPos
                 }
             }
             state.voxels.retainAll(voxelsInRadius)
@@ -417,10 +428,34 @@ class ServerHandler(
             }
         }
 
-        server.listWorlds().forEachWithContext({ it }) {
-            it.iterate<Networked>() { entity, _ -> entity.clearMetaState() }
-            it.state.clearMetaState()
+        // Дельты за тик уходят одним пакетом на игрока
+        players.forEach { it.network.bundle.flush(it.id) }
+        encodedDeltas.clear()
+        outboundScheduler.flush(globals.outboundBytesPerTick)
+        reliableChannels.tick()
+
+        // Всё, что изменилось до этого момента, уже разослано
+        server.listWorlds().forEach { it.componentManager.advanceChangeTick() }
+    }
+
+    /**
+     * Подписывает игрока на ячейки вокруг него в текущем мире. При смене мира старые подписки снимаются
+     */
+    private fun subscribeInterest(player: EnginePlayer, world: World): PlayerInterest {
+        val state = player.network
+        val worldInterest = worldInterests.getOrPut(world) { WorldInterest(world) }
+        worldInterest.setRadius(Math.ceilDiv(playerSynchronizationRadius, SpatialIndex.DEFAULT_CELL_SIZE))
+
+        var interest = state.interest
+        if (interest == null || interest.entities.interest !== worldInterest.entities) {
+            interest?.unsubscribe()
+            interest = PlayerInterest(worldInterest.entities.subscribe(), worldInterest.voxels.subscribe())
+            state.interest = interest
         }
+        val position = player.location.position
+        worldInterest.entities.update(interest.entities, position)
+        worldInterest.voxels.update(interest.voxels, position)
+        return interest
     }
 
     fun onPlayerIntent(context: ScriptContext.IntentExecution, intent: Intent) {
@@ -431,29 +466,30 @@ class ServerHandler(
         )
     }
 
-    fun onPlayerInteraction(player: EnginePlayer, component: InteractionComponent) = with(player.world) {
-        CLIENTBOUND_PLAYER_INTERACTION_PACKET.broadcastInRadius(
-            this,
-            player.location,
-            playerSynchronizationRadius,
-            packet = PlayerInteractionPacket(
-                player.id,
-                component.toDto()
+    // Вызывается из обновления игроков, которое может идти на потоке мира
+    fun onPlayerInteraction(player: EnginePlayer, component: InteractionComponent) = server.crossWorld {
+        with(player.world) {
+            CLIENTBOUND_PLAYER_INTERACTION_PACKET.broadcastInRadius(
+                this,
+                player.location,
+                playerSynchronizationRadius,
+                packet = PlayerInteractionPacket(
+                    player.id,
+                    component.toDto()
+                )
             )
-        )
+        }
     }
 
     fun onChunkSend(world: World, chunk: EngineChunk, pos: EngineChunkPos, player: EnginePlayer)  {
-        CLIENTBOUND_CHUNK_ENDPOINT.sendS2C(
-            EngineChunkPacket(
-                EngineChunkDto(
-                    pos,
-                    chunk.decals.mapKeys { (k, v) -> ImmutableVoxelPos(k) },
-                    chunk.hints.mapKeys { (k, v) -> ImmutableVoxelPos(k) }
-                )
-            ),
-            player.id
-        )
+        val payload = chunk.payload ?: encodeChunkPayload(
+            EngineChunkDto(
+                pos,
+                chunk.decals.mapKeys { (k, v) -> ImmutableVoxelPos(k) },
+                chunk.hints.mapKeys { (k, v) -> ImmutableVoxelPos(k) }
+            )
+        ).also { chunk.payload = it }
+        CLIENTBOUND_CHUNK_ENDPOINT.sendS2C(EngineChunkPacket(payload, pos), player.id)
         player.network.chunks += pos
     }
 
@@ -510,6 +546,7 @@ class ServerHandler(
     fun onPlayerInstantiation(player: EnginePlayer, notifications: List<Notification> = listOf()) = with(player.world) {
         val playerId = player.id
         val packet = PlayerJoinServerPacket(GeneralPlayerData.of(player))
+        playerStorage.invalidateSynchronizationReceivers(playerId)
 
         playerStorage.forEach {
             if (it == player) return@forEach
@@ -519,6 +556,8 @@ class ServerHandler(
             )
         }
 
+        CLIENTBOUND_COMPONENT_PALETTE_ENDPOINT.sendS2C(componentPalettePacket, playerId)
+
         val joinGamePacket = JoinGamePacket(
             ServerPlayerData.of(player),
             ClientboundWorldData.of(this),
@@ -537,6 +576,12 @@ class ServerHandler(
             PlayerDestroyPacket(player.id)
         )
         playerStorage.forEach { it.network.players.remove(player) }
+        playerStorage.invalidateSynchronizationReceivers(player.id)
+        player.network.interest?.unsubscribe()
+        player.network.interest = null
+        outboundScheduler.remove(player.id)
+        reliableChannels.remove(player.id)
+        NetworkMetrics.removePlayer(player.id)
     }
 
     fun onChunkUnload(chunk: EngineChunkPos) {
@@ -591,10 +636,8 @@ class ServerHandler(
         exclude: List<EnginePlayer> = emptyList(),
         packet: P
     ) {
-        for (player in world.players) {
-            if (player !in exclude && player.pos.squaredDistanceTo(center.position) <= radius * radius) {
-                sendS2C(packet, player.id)
-            }
+        for (player in filterNearestPlayers(world, center.position, radius)) {
+            if (player !in exclude) sendS2C(packet, player.id)
         }
     }
 
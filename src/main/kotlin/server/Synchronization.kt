@@ -3,19 +3,31 @@ package org.lain.engine.server
 import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.InternalSerializationApi
 import kotlinx.serialization.KSerializer
-import kotlinx.serialization.protobuf.ProtoBuf
 import kotlinx.serialization.serializer
 import org.lain.cyberia.ecs.*
 import org.lain.engine.player.*
 import org.lain.engine.storage.PersistentId
+import org.lain.engine.transport.CoalescingPacket
 import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.FieldDelta
+import org.lain.engine.transport.FieldDeltaCodec
 import org.lain.engine.transport.Packet
 import org.lain.engine.transport.PacketCodec
+import org.lain.engine.transport.PacketPriority
+import org.lain.engine.transport.SizedPacket
+import org.lain.engine.transport.packet.CLIENTBOUND_SYNCHRONIZATION_BUNDLE_ENDPOINT
+import org.lain.engine.transport.packet.SynchronizationBundlePacket
+import org.lain.engine.transport.packet.SynchronizationDelta
+import org.lain.engine.transport.packet.encodeSynchronizationDelta
 import org.lain.engine.util.component.Entity
+import org.lain.engine.util.component.EntityId
 import org.lain.engine.util.math.filterNearestPlayers
 import org.lain.engine.world.*
+import org.slf4j.LoggerFactory
 import kotlin.reflect.KClass
 
+private val LOGGER = LoggerFactory.getLogger("Engine Synchronization")
+
 data class PlayerNetworkState(
     var authorized: Boolean,
     val players: MutableList<EnginePlayer> = mutableListOf(),
@@ -25,19 +37,129 @@ data class PlayerNetworkState(
     val entities: MutableSet<PersistentId> = mutableSetOf(),
     val voxels: MutableSet<ImmutableVoxelPos> = mutableSetOf(),
     var worldSynced: Boolean = false,
+    val bundle: SynchronizationBundle = SynchronizationBundle(),
+    var interest: PlayerInterest? = null,
 ) : Component
 
 val EnginePlayer.network
     get() = this.require<PlayerNetworkState>()
 
+/**
+ * Исходящие дельты синхронизации игрока за тик. При [flush] сортируются по классу и расстоянию до игрока и
+ * отправляются одним [SynchronizationBundlePacket]; если закодированные дельты не влезают в [maxSize], бандл делится на несколько пакетов
+ */
+class SynchronizationBundle(private val maxSize: Int = MAX_SYNCHRONIZATION_BUNDLE_SIZE) {
+    private class Entry(val encoded: ByteArray, val priority: PacketPriority, val distance: Float)
+
+    private val entries = ArrayList<Entry>()
+
+    fun add(delta: SynchronizationDelta, priority: PacketPriority = PacketPriority.ENTITIES, distance: Float = 0f): Boolean {
+        return add(encodeSynchronizationDelta(delta), priority, distance)
+    }
+
+    /**
+     * Добавляет уже закодированную дельту. Массив не копируется и может быть общим для бандлов нескольких игроков.
+     * За тик у сущности не больше одной дельты, поэтому сортировка не меняет порядок применения дельт одной сущности.
+     *
+     * Дельта больше [maxSize] отбрасывается: один пакет её не вместит, а соединение с превышенным лимитом
+     * полезной нагрузки Minecraft разрывает
+     * @return дельта принята
+     */
+    fun add(encoded: ByteArray, priority: PacketPriority = PacketPriority.ENTITIES, distance: Float = 0f): Boolean {
+        if (encoded.size + MAX_VAR_INT_SIZE > maxSize) {
+            LOGGER.error("Дельта синхронизации ({} байт, {}) не помещается в пакет и не будет отправлена", encoded.size, priority)
+            return false
+        }
+        entries += Entry(encoded, priority, distance)
+        return true
+    }
+
+    fun flush(player: PlayerId) {
+        if (entries.isEmpty()) return
+        entries.sortWith(ENTRY_ORDER)
+        var start = 0
+        var size = 0
+        for (i in entries.indices) {
+            val entrySize = entries[i].encoded.size + MAX_VAR_INT_SIZE
+            if (i > start && size + entrySize > maxSize) {
+                send(start, i, player)
+                start = i
+                size = 0
+            }
+            size += entrySize
+        }
+        send(start, entries.size, player)
+        entries.clear()
+    }
+
+    private fun send(from: Int, to: Int, player: PlayerId) {
+        CLIENTBOUND_SYNCHRONIZATION_BUNDLE_ENDPOINT.sendS2C(
+            SynchronizationBundlePacket(entries.subList(from, to).map { it.encoded }),
+            player
+        )
+    }
+
+    companion object {
+        // Лимит custom payload в Minecraft - 1 МиБ, остаток оставлен под идентификатор канала и заголовок пакета
+        const val MAX_SYNCHRONIZATION_BUNDLE_SIZE = 1_000_000
+        private const val MAX_VAR_INT_SIZE = 5
+        private val ENTRY_ORDER = compareBy<Entry>({ it.priority }, { it.distance })
+    }
+}
+
+/**
+ * Закодированные дельты сущностей одного мира за тик. Одинаковая дельта нужна каждому игроку, который видит сущность,
+ * поэтому она кодируется один раз, а в бандлы игроков попадает общий массив байт. Отдельно хранятся полные снимки -
+ * их получают игроки, у которых сущность только появилась
+ */
+class EncodedDeltaCache {
+    private val deltas = HashMap<EntityId, ByteArray>()
+    private val snapshots = HashMap<EntityId, ByteArray>()
+
+    /**
+     * @param encode собирает дельту, если её ещё нет в кэше; `null` - изменений нет
+     * @return закодированная дельта или `null`, если отправлять нечего
+     */
+    fun getOrEncode(entity: EntityId, full: Boolean, encode: () -> SynchronizationDelta?): ByteArray? {
+        val cache = if (full) snapshots else deltas
+        val encoded = cache.getOrPut(entity) { encode()?.let { encodeSynchronizationDelta(it) } ?: NOTHING }
+        return encoded.takeIf { it !== NOTHING }
+    }
+
+    fun clear() {
+        deltas.clear()
+        snapshots.clear()
+    }
+
+    companion object {
+        private val NOTHING = ByteArray(0)
+    }
+}
+
 // Common synchronizers
 
 data class Synchronizations<T : Entity>(val state: MutableMap<KClass<out Component>, State<T>> = mutableMapOf()) : Component {
-    data class State<T : Entity>(var dirty: DirtyState? = null, val synchronizer: ComponentSynchronizer<T, *>)
+    data class State<T : Entity>(var dirty: DirtyState? = null, val synchronizer: ComponentSynchronizer<T, *>) {
+        /**
+         * Поля компонента из последней отправки и её получатели
+         */
+        var sentFields: Array<ByteArray>? = null
+        var receivers: Set<PlayerId> = emptySet()
+    }
 }
 
 data class DirtyState(val interaction: InteractionId?)
 
+/**
+ * Забывает, что [viewer] получал отправки синхронизаторов игроков: у нового соединения нет прошлых полей,
+ * и следующая отправка ему должна быть полной
+ */
+fun PlayerStorage.invalidateSynchronizationReceivers(viewer: PlayerId) {
+    forEach { player ->
+        player.get<Synchronizations<*>>()?.state?.values?.forEach { it.receivers -= viewer }
+    }
+}
+
 inline fun <T : Entity, reified C : Component> Synchronizations<T>.submit(synchronizer: ComponentSynchronizer<T, C>) {
     state[C::class] = Synchronizations.State(null, synchronizer)
 }
@@ -65,24 +187,26 @@ class ComponentSynchronizer<T : Entity, C : Component> @OptIn(ExperimentalSerial
     val propagation: Propagation,
     val resolver: (T, C) -> Unit,
     val predicate: PlayerPredicate,
-    val endpoint: Endpoint<ComponentSynchronizationPacket<C>> = Endpoint(
+    val codec: FieldDeltaCodec<C> = FieldDeltaCodec(serializer),
+    val endpoint: Endpoint<ComponentSynchronizationPacket> = Endpoint(
         componentType.id,
         PacketCodec.Binary(
             {
                 val id = readUtf()
                 val interaction = readNullable { it.readLong() }
-                ComponentSynchronizationPacket<C>(
+                ComponentSynchronizationPacket(
                     id,
                     interaction?.let { InteractionId(it) },
-                    ProtoBuf.decodeFromByteArray(serializer, readByteArray()),
+                    FieldDelta.read(this, codec.fieldCount),
                 )
             },
             {
                 writeUtf(it.id)
                 writeNullable(it.interaction?.value) { buf, value -> buf.writeLong(value) }
-                writeByteArray(ProtoBuf.encodeToByteArray(serializer, it.component))
+                it.delta.write(this)
             }
-        )
+        ),
+        PacketPriority.PLAYER_STATE
     ),
 )
 
@@ -115,22 +239,31 @@ fun <T : Entity> ServerHandler.tickSynchronizationComponent(players: PlayerStora
         if (state.dirty != null) {
             val synchronizer = state.synchronizer as ComponentSynchronizer<T, Component>
             val endpoint = synchronizer.endpoint
+            val codec = synchronizer.codec
             val component = entity.getComponent(synchronizer.componentType) ?: error("Dirty component ${synchronizer.componentType} not found")
-            val packet = ComponentSynchronizationPacket(entity.stringId, state.dirty?.interaction, component)
+            val fields = codec.encodeFields(component)
+            val interaction = state.dirty?.interaction
+            val fullPacket = ComponentSynchronizationPacket(entity.stringId, interaction, codec.full(fields))
+            val deltaPacket = ComponentSynchronizationPacket(entity.stringId, interaction, codec.diff(state.sentFields, fields))
 
             fun broadcast(world: World, location: Location, player: EnginePlayer?) {
-                var players = when (synchronizer.predicate) {
-                    PlayerPredicate.ALL -> players
-                    PlayerPredicate.SELF -> listOf(player)
-                    PlayerPredicate.OTHERS -> players - player
-                }.toList().filterNotNull()
-
-                players = when(synchronizer.propagation) {
-                    Propagation.DISTANCE -> filterNearestPlayers(world, location.position, playerSynchronizationRadius, players)
-                    Propagation.GLOBAL -> players
+                val receivers = when(synchronizer.propagation) {
+                    Propagation.DISTANCE -> filterNearestPlayers(world, location.position, playerSynchronizationRadius)
+                    Propagation.GLOBAL -> players.toMutableList()
+                }
+                when (synchronizer.predicate) {
+                    PlayerPredicate.ALL -> {}
+                    PlayerPredicate.SELF -> receivers.retainAll { it == player }
+                    PlayerPredicate.OTHERS -> if (player != null) receivers.remove(player)
                 }
 
-                players.forEach { endpoint.sendS2C(packet, it.id) }
+                // Изменённые поля получают только те, кому ушла прошлая отправка - у остальных нет базового значения
+                receivers.forEach {
+                    val packet = if (it.id in state.receivers) deltaPacket else fullPacket
+                    endpoint.sendS2C(packet, it.id)
+                }
+                state.sentFields = fields
+                state.receivers = receivers.mapTo(HashSet()) { it.id }
             }
 
             val player = entity as EnginePlayer
@@ -140,11 +273,27 @@ fun <T : Entity> ServerHandler.tickSynchronizationComponent(players: PlayerStora
     }
 }
 
-class ComponentSynchronizationPacket<C : Component>(
+class ComponentSynchronizationPacket(
     val id: String,
     val interaction: InteractionId? = null,
-    val component: C,
-) : Packet
+    val delta: FieldDelta,
+) : SizedPacket, CoalescingPacket {
+    override val size: Int
+        get() = id.length * 3 + 3 + 9 + delta.size
+
+    override val coalesceKey: Any
+        get() = id
+
+    /**
+     * Неотправленная дельта того же компонента сливается с новой по полям. Дельту с взаимодействием не трогаем -
+     * клиент сверяет по нему предсказание
+     */
+    override fun coalesce(older: Packet): Packet? {
+        older as ComponentSynchronizationPacket
+        if (older.interaction != null) return null
+        return ComponentSynchronizationPacket(id, interaction, delta.mergeOlder(older.delta))
+    }
+}
 
 // Player
 
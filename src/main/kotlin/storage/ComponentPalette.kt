@@ -0,0 +1,85 @@
+package org.lain.engine.storage
+
+import org.lain.engine.util.component.ComponentTypeRegistry
+
+/**
+ * Соответствие строковых id компонентов компактным числовым. Пока палитра активна на потоке ([withComponentPalette]),
+ * [ComponentDto] пишет вместо строкового id число; компоненты вне палитры (например, скриптовые) остаются строками.
+ * Расширяемая палитра ([growable]) выдаёт номера новым id - так устроена палитра сохранений
+ */
+class ComponentIdPalette(names: List<String> = emptyList(), private val growable: Boolean = false) {
+    private val names = ArrayList(names)
+    private val ids = HashMap<String, Int>(names.size * 2)
+    private val unsaved = ArrayList<Int>()
+
+    init {
+        names.forEachIndexed { index, name -> ids[name] = index }
+    }
+
+    val size: Int
+        @Synchronized get() = names.size
+
+    @Synchronized
+    fun names(): List<String> = names.toList()
+
+    /**
+     * @return номер компонента или `-1`, если его нет в палитре и палитра не расширяемая
+     */
+    @Synchronized
+    fun idOf(name: String): Int {
+        ids[name]?.let { return it }
+        if (!growable) return -1
+        val id = names.size
+        names += name
+        ids[name] = id
+        unsaved += id
+        return id
+    }
+
+    @Synchronized
+    fun nameOf(id: Int): String? = names.getOrNull(id)
+
+    /**
+     * Номера, выданные после последнего [markSaved], вместе с их id
+     */
+    @Synchronized
+    fun unsaved(): List<Pair<Int, String>> = unsaved.map { it to names[it] }
+
+    @Synchronized
+    fun markSaved(saved: List<Pair<Int, String>>) {
+        unsaved.removeAll(saved.map { it.first }.toSet())
+    }
+
+    companion object {
+        /**
+         * Палитра всех зарегистрированных типов компонентов. Порядок - по строковому id, поэтому одинаков
+         * у сервера и клиента с одним набором модов
+         */
+        fun ofRegistry() = ComponentIdPalette(
+            ComponentTypeRegistry.listEntries().map { (_, entry) -> entry.type.id }.distinct().sorted()
+        )
+    }
+}
+
+/**
+ * Палитра сетевого протокола. На сервере задаётся при запуске, на клиенте - рукопожатием при входе
+ */
+object NetworkComponentPalette {
+    @Volatile
+    var current: ComponentIdPalette? = null
+}
+
+private val ACTIVE_PALETTE = ThreadLocal<ComponentIdPalette?>()
+
+val activeComponentPalette: ComponentIdPalette?
+    get() = ACTIVE_PALETTE.get()
+
+fun <T> withComponentPalette(palette: ComponentIdPalette?, block: () -> T): T {
+    val previous = ACTIVE_PALETTE.get()
+    ACTIVE_PALETTE.set(palette)
+    try {
+        return block()
+    } finally {
+        ACTIVE_PALETTE.set(previous)
+    }
+}
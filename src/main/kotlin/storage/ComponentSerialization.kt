@@ -4,6 +4,14 @@ import kotlinx.coroutines.runBlocking
 import kotlinx.serialization.*
 import kotlinx.serialization.builtins.ListSerializer
 import kotlinx.serialization.cbor.Cbor
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.descriptors.buildClassSerialDescriptor
+import kotlinx.serialization.descriptors.element
+import kotlinx.serialization.encoding.CompositeDecoder
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.encoding.decodeStructure
+import kotlinx.serialization.encoding.encodeStructure
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonElement
 import kotlinx.serialization.modules.SerializersModule
@@ -23,6 +31,8 @@ import org.lain.engine.server.Children
 import org.lain.engine.server.Parent
 import org.lain.engine.util.Storage
 import org.lain.engine.util.component.ComponentTypeRegistry
+import org.lain.engine.util.component.EntityHandle
+import org.lain.engine.util.component.EntityHandleAccess
 import org.lain.engine.world.Luminance
 import org.lain.engine.world.World
 import java.util.LinkedList
@@ -91,9 +101,54 @@ fun WriteComponentAccess.instantiateEntity(id: PersistentId, components: List<Co
     }
 }
 
-@Serializable
+@Serializable(with = ComponentDtoSerializer::class)
 data class ComponentDto(val id: String, val data: ComponentData)
 
+/**
+ * С активной палитрой ([withComponentPalette]) вместо строкового `id` пишет номер `t`.
+ * Читает оба варианта, поэтому старые сохранения и компоненты вне палитры остаются совместимыми
+ */
+object ComponentDtoSerializer : KSerializer<ComponentDto> {
+    private val dataSerializer = serializer<ComponentData>()
+
+    override val descriptor: SerialDescriptor = buildClassSerialDescriptor("org.lain.engine.storage.ComponentDto") {
+        element<String>("id", isOptional = true)
+        element("data", dataSerializer.descriptor)
+        element<Int>("t", isOptional = true)
+    }
+
+    override fun serialize(encoder: Encoder, value: ComponentDto) {
+        val numericId = activeComponentPalette?.idOf(value.id) ?: -1
+        encoder.encodeStructure(descriptor) {
+            if (numericId >= 0) {
+                encodeIntElement(descriptor, 2, numericId)
+            } else {
+                encodeStringElement(descriptor, 0, value.id)
+            }
+            encodeSerializableElement(descriptor, 1, dataSerializer, value.data)
+        }
+    }
+
+    override fun deserialize(decoder: Decoder): ComponentDto = decoder.decodeStructure(descriptor) {
+        var id: String? = null
+        var numericId = -1
+        var data: ComponentData? = null
+        while (true) {
+            when (val index = decodeElementIndex(descriptor)) {
+                0 -> id = decodeStringElement(descriptor, 0)
+                1 -> data = decodeSerializableElement(descriptor, 1, dataSerializer)
+                2 -> numericId = decodeIntElement(descriptor, 2)
+                CompositeDecoder.DECODE_DONE -> break
+                else -> throw SerializationException("Unexpected index $index")
+            }
+        }
+        val resolvedId = id
+            ?: activeComponentPalette?.nameOf(numericId)
+            ?: throw SerializationException("Component id $numericId not found in palette")
+        ComponentDto(resolvedId, data ?: throw SerializationException("Component $resolvedId has no data"))
+    }
+}
+
 @Serializable
 sealed interface ComponentData
 
@@ -121,9 +176,15 @@ data class ComponentLoadSettings(
     val itemStorage: Storage<PersistentId, EngineItem>,
     val namespacedStorage: NamespacedStorageAccess,
     val persistentIdToEntity: MutableMap<PersistentId, EntityId>,
-    val isClient: Boolean = false
+    val isClient: Boolean = false,
+    val handles: EntityHandleAccess? = null,
 )
 
+context(world: World)
+private fun EntityHandle.requireEntity(): EntityId {
+    return world.componentManager.resolve(this) ?: error("Entity $this destroyed")
+}
+
 context(world: World)
 fun Component.toSnapshotDto(): ComponentDto {
     val type = when (this) {
@@ -140,8 +201,12 @@ fun Component.toSnapshotDto(): ComponentDto {
         is Luminance -> CopyComponentDto(this.copy())
         is OccupiedSlots -> CopyComponentDto(OccupiedSlots(slots.toMutableSet()))
         is Writable -> CopyComponentDto(this.copy())
-        is Parent -> ParentComponentDto(false, entity.requireComponent())
-        is Children -> ChildrenComponentDto(false, entities.map { it.requireComponent<PersistentIdComponent>() }.toSet())
+        is Parent -> ParentComponentDto(false, entity.requireEntity().requireComponent())
+        // Уничтоженные дети не сохраняются
+        is Children -> ChildrenComponentDto(
+            false,
+            entities.mapNotNull { world.componentManager.resolve(it)?.requireComponent<PersistentIdComponent>() }.toSet()
+        )
         is EntityRpcReceiver -> EntityRpcReceiverDto
         else -> CopyComponentDto(this)
     }
@@ -171,6 +236,10 @@ suspend fun ComponentDto.toDomainSuspend(
     scriptComponentTypeNotFound: (ScriptComponentId, ScriptComponentDto) -> ScriptComponentType = { id, dto -> error("Invalid script component type $id") },
 ): Component? {
     val notNullEntityGetter: suspend (PersistentIdComponent) -> EntityId = { settings.persistentIdToEntity[it.id] ?: entityGetter(it.id) ?: error("Entity with id $id not found") }
+    val handleGetter: suspend (PersistentIdComponent) -> EntityHandle = {
+        val handles = settings.handles ?: error("Component $id requires entity handles")
+        handles.handleOf(notNullEntityGetter(it))
+    }
     val data = when (data) {
         is CopyComponentDto -> data.component
         is ScriptComponentDto -> {
@@ -184,7 +253,7 @@ suspend fun ComponentDto.toDomainSuspend(
 
         is ChildrenComponentDto -> when (data.isScript) {
             false -> Children(
-                data.children.map { notNullEntityGetter(it) }.toMutableSet()
+                data.children.map { handleGetter(it) }.toMutableSet()
             )
 
             true -> ScriptComponent(
@@ -194,7 +263,7 @@ suspend fun ComponentDto.toDomainSuspend(
         }
 
         is ParentComponentDto -> when (data.isScript) {
-            false -> Parent(notNullEntityGetter(data.parent))
+            false -> Parent(handleGetter(data.parent))
             true -> ScriptComponent(
                 data.parent.id.toString().toLuaValue(),
                 CoreScriptComponents.PARENT
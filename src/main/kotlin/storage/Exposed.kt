@@ -9,6 +9,7 @@ import org.jetbrains.exposed.v1.jdbc.*
 import org.jetbrains.exposed.v1.jdbc.transactions.suspendTransaction
 import org.jetbrains.exposed.v1.jdbc.transactions.transaction
 import org.lain.engine.item.ItemId
+import java.util.concurrent.ConcurrentHashMap
 
 fun connectDatabase(server: MinecraftServer): Database {
     val path = server.getWorldPath(LevelResource.ROOT)
@@ -17,7 +18,7 @@ fun connectDatabase(server: MinecraftServer): Database {
         oldEngineDbFile.renameTo(path.toFile().resolve("engine-players.db"))
     }
     val database = Database.connect("jdbc:sqlite:$path/engine-players.db")
-    transaction { SchemaUtils.create(EcsEntityTable) }
+    transaction { SchemaUtils.create(EcsEntityTable, ComponentPaletteTable) }
     return database
 }
 
@@ -26,6 +27,27 @@ object EcsEntityTable : Table() {
     val components = binary("components")
 }
 
+/**
+ * Палитра числовых id компонентов, которыми записаны [EcsEntityTable.components]. Номера только добавляются
+ */
+object ComponentPaletteTable : Table() {
+    val id = integer("id").uniqueIndex()
+    val name = varchar("name", 255).uniqueIndex()
+}
+
+private val palettes = ConcurrentHashMap<Database, ComponentIdPalette>()
+
+private fun Database.componentPalette(): ComponentIdPalette = palettes.computeIfAbsent(this) { database ->
+    val names = transaction(database) {
+        ComponentPaletteTable
+            .selectAll()
+            .map { it[ComponentPaletteTable.id] to it[ComponentPaletteTable.name] }
+            .sortedBy { it.first }
+            .map { it.second }
+    }
+    ComponentIdPalette(names, growable = true)
+}
+
 @Deprecated("since 3.6.0")
 object ItemsTable : Table() {
     val uuid = varchar("uuid", 255).uniqueIndex()
@@ -37,12 +59,23 @@ object ItemsTable : Table() {
 data class EntityDto(val persistentId: PersistentId, val components: List<ComponentDto>)
 
 suspend fun Database.saveEntitiesBatch(entities: List<EntityDto>) {
+    val palette = componentPalette()
+    val encoded = withComponentPalette(palette) {
+        entities.map { (uuid, components) -> uuid to serializeEntityComponents(components) }
+    }
+    // Новые номера палитры записываются в той же транзакции, что и сущности, которые на них ссылаются
+    val newIds = palette.unsaved()
     suspendTransaction(this) {
-        EcsEntityTable.batchUpsert(entities) { (uuid, components) ->
+        ComponentPaletteTable.batchInsert(newIds, ignore = true) { (id, name) ->
+            this[ComponentPaletteTable.id] = id
+            this[ComponentPaletteTable.name] = name
+        }
+        EcsEntityTable.batchUpsert(encoded) { (uuid, components) ->
             this[EcsEntityTable.uuid] = uuid.toString()
-            this[EcsEntityTable.components] = serializeEntityComponents(components)
+            this[EcsEntityTable.components] = components
         }
     }
+    palette.markSaved(newIds)
 }
 
 suspend fun Database.loadEntity(id: PersistentId): List<ComponentDto>? {
@@ -52,7 +85,8 @@ suspend fun Database.loadEntity(id: PersistentId): List<ComponentDto>? {
             .where { EcsEntityTable.uuid eq id.toString() }
             .firstOrNull()
     }?.let {
-        deserializeEntityComponents(it[EcsEntityTable.components])
+        val components = it[EcsEntityTable.components]
+        withComponentPalette(componentPalette()) { deserializeEntityComponents(components) }
     }
 }
 
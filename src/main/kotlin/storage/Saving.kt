@@ -52,7 +52,7 @@ fun updateUnloadSystem(handler: ServerHandler, world: World, timers: SaveTimers)
         world.iterate<Item> { item, _ ->
             item.setComponent(SaveTag)
             val containedIn = item.getComponent<ContainedIn>()
-            val containerUnloaded = containedIn != null && !containedIn.container.exists()
+            val containerUnloaded = containedIn != null && !world.componentManager.isAlive(containedIn.container)
             if (!item.hasComponent<HoldsBy>() || containerUnloaded) {
                 item.setComponent(UnloadTag)
                 unloaded.addIfNotNull(item.getComponent<PersistentIdComponent>()?.id)
@@ -72,11 +72,12 @@ fun updateUnloadSystem(handler: ServerHandler, world: World, timers: SaveTimers)
 }
 
 fun Database.saveItemsBlocking(world: World): Int = with(world) {
-    val itemPairsToSave = world.componentManager.collect(
-        listOf(componentTypeOf(Item::class))
-    ) { component -> component.meta.savable }
-    val itemsToSave = itemPairsToSave.map { (_, state) ->
-        EntityDto(
+    val itemsToSave = mutableListOf<EntityDto>()
+    world.componentManager.collect(
+        listOf(componentTypeOf(Item::class)),
+        { component -> component.meta.savable }
+    ) { _, state ->
+        itemsToSave += EntityDto(
             state.require<PersistentIdComponent>().id,
             state.getComponents().map { it.toSnapshotDto() }
         )
@@ -95,21 +96,22 @@ fun updateSaveSystem(server: EngineMinecraftServer) {
     // Сохраняем все сущности
     // 22.04.2026: предметы сохраняются как сущности, компоненты трансформируются в toDto
     val itemsDestroyed = mutableListOf<PersistentId>()
-    val entitiesToSave = world.componentManager.collect(
-        listOf(componentTypeOf(SaveTag::class))
-    ) { component -> component.meta.savable }
-        .map { (item, state) ->
-            val persistentId = state.require<PersistentIdComponent>().id
-            if (item.hasComponent<Item>() && item.hasComponent<UnloadTag>()) {
-                itemsDestroyed += persistentId
-            }
-
-            EntityDto(
-                persistentId,
-                state.getComponents().map { it.toSnapshotDto() }
-            )
+    val entitiesToSave = mutableListOf<EntityDto>()
+    world.componentManager.collect(
+        listOf(componentTypeOf(SaveTag::class)),
+        { component -> component.meta.savable }
+    ) { item, state ->
+        val persistentId = state.require<PersistentIdComponent>().id
+        if (item.hasComponent<Item>() && item.hasComponent<UnloadTag>()) {
+            itemsDestroyed += persistentId
         }
 
+        entitiesToSave += EntityDto(
+            persistentId,
+            state.getComponents().map { it.toSnapshotDto() }
+        )
+    }
+
     // защита от гонки потоков (не знаю обязательно ли)
     val itemsDestroyed2 = itemsDestroyed.toList()
     StorageCoroutineScope.launch {
@@ -12,17 +12,26 @@ import org.lain.engine.player.EnginePlayer
 import org.lain.engine.player.PlayerId
 import org.lain.engine.transport.packet.ClientTickEndPacket
 import org.lain.engine.transport.packet.InputPacket
+import org.lain.engine.transport.packet.ReliableChannels
 import org.lain.engine.transport.packet.ServerAcknowledgeTask
+import org.lain.engine.util.inject
 import org.lain.engine.util.injectServerTransportContext
 import org.lain.engine.util.math.randomLong
 import org.lain.engine.util.nextIdFast
 import kotlin.reflect.KClass
 
+/**
+ * @param priority класс пакета для [OutboundScheduler]. Без него пакет отправляется сразу, вне бюджета,
+ * если это не [OrderedPacket] с неотправленными предшественниками
+ */
 class Endpoint<P : Packet>(
     val identifier: String,
-    val codec: PacketCodec<P>
+    val codec: PacketCodec<P>,
+    val priority: PacketPriority? = null,
 ) {
     private val transport by injectServerTransportContext()
+    private val scheduler by inject<OutboundScheduler>()
+    val metrics = NetworkMetrics.endpoint(identifier)
 
     private fun executeOnThread(runnable: () -> Unit) {
         if (transport.isOnThread()) {
@@ -33,6 +42,14 @@ class Endpoint<P : Packet>(
     }
 
     fun sendS2C(packet: P, player: PlayerId, id: Long = nextIdFast()) = executeOnThread {
+        if (priority != null || scheduler.hasPredecessors(packet, player)) {
+            scheduler.enqueue(this, packet, player, id)
+        } else {
+            dispatch(packet, player, id)
+        }
+    }
+
+    internal fun dispatch(packet: P, player: PlayerId, id: Long) {
         if (Constants.SIMULATE_LATENCY) {
             val endpoint = this
             CoroutineScope(Dispatchers.IO).launch {
@@ -62,19 +79,22 @@ class Endpoint<P : Packet>(
     }
 
     fun broadcast(packet: P) = executeOnThread {
+        metrics.broadcasts.increment()
         transport.broadcastClientboundPacket(this) { packet }
     }
 
     fun broadcast(lazyPacket: (EnginePlayer) -> P) = executeOnThread {
+        metrics.broadcasts.increment()
         transport.broadcastClientboundPacket(this, lazyPacket)
     }
 }
 
 @OptIn(InternalSerializationApi::class)
 inline fun <reified P : Packet> Endpoint(
-    codec: PacketCodec<P> = PacketCodec.Kotlinx(P::class.serializer())
+    codec: PacketCodec<P> = PacketCodec.Kotlinx(P::class.serializer()),
+    priority: PacketPriority? = null,
 ): Endpoint<P> {
-    return Endpoint(P::class.channelName, codec)
+    return Endpoint(P::class.channelName, codec, priority)
 }
 
 @OptIn(InternalSerializationApi::class)
@@ -112,6 +132,10 @@ interface ServerTransportContext {
     fun executeOnThread(runnable: () -> Unit)
 }
 
+/**
+ * [send] отправляет пакет как обычно. [withAcknowledge] и [requestAcknowledge] отправляют его через
+ * надёжный канал [ReliableChannels] - с пересылкой, пока клиент не подтвердит получение
+ */
 class ServerPacketSendTask<P : Packet>(
     val id: Long,
     private val packet: P,
@@ -119,6 +143,8 @@ class ServerPacketSendTask<P : Packet>(
     private val transport: ServerTransportContext,
     private val player: PlayerId
 ) {
+    private val reliableChannels by inject<ReliableChannels>()
+
     fun send(): ServerPacketSendTask<P> {
         transport.sendClientboundPacket(endpoint, packet, player, id)
         return this
@@ -133,12 +159,13 @@ class ServerPacketSendTask<P : Packet>(
     fun withAcknowledge(
         retryAttempts: Int = 10,
         retryTime: Int = 500
-    ): ServerAcknowledgeTask {
+    ): ServerAcknowledgeTask<P> {
         return ServerAcknowledgeTask(
-            id,
             packet,
+            endpoint,
             player,
             transport,
+            reliableChannels,
             retryAttempts,
             retryTime
         )
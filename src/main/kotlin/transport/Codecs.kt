@@ -7,6 +7,9 @@ import kotlinx.serialization.KSerializer
 import kotlinx.serialization.protobuf.ProtoBuf
 import net.minecraft.network.FriendlyByteBuf
 import org.lain.engine.storage.COMPONENT_SERIALIZERS_MODULE
+import java.io.ByteArrayOutputStream
+import java.util.zip.Deflater
+import java.util.zip.Inflater
 
 sealed class PacketCodec<P : Packet> {
     class Kotlinx<P : Packet>(
@@ -19,7 +22,7 @@ sealed class PacketCodec<P : Packet> {
     ) : PacketCodec<P>()
 }
 
-private val PACKET_PROTOBUF = ProtoBuf {
+internal val PACKET_PROTOBUF = ProtoBuf {
     serializersModule = COMPONENT_SERIALIZERS_MODULE
 }
 
@@ -47,4 +50,42 @@ fun <P : Packet> serializePacket(buf: FriendlyByteBuf, packet: P, codec: PacketC
             )
         }
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Сжимает закодированный пакет. Нужно для крупных пакетов, байты которых кэшируются и отправляются многим игрокам
+ */
+fun compressPayload(bytes: ByteArray): ByteArray {
+    val deflater = Deflater(Deflater.BEST_SPEED)
+    try {
+        deflater.setInput(bytes)
+        deflater.finish()
+        val output = ByteArrayOutputStream(bytes.size / 2 + 16)
+        val buffer = ByteArray(COMPRESSION_BUFFER_SIZE)
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer))
+        }
+        return output.toByteArray()
+    } finally {
+        deflater.end()
+    }
+}
+
+fun decompressPayload(bytes: ByteArray): ByteArray {
+    val inflater = Inflater()
+    try {
+        inflater.setInput(bytes)
+        val output = ByteArrayOutputStream(bytes.size * 2)
+        val buffer = ByteArray(COMPRESSION_BUFFER_SIZE)
+        while (!inflater.finished()) {
+            val read = inflater.inflate(buffer)
+            if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) error("Повреждённые сжатые данные")
+            output.write(buffer, 0, read)
+        }
+        return output.toByteArray()
+    } finally {
+        inflater.end()
+    }
+}
+
+private const val COMPRESSION_BUFFER_SIZE = 8192
@@ -0,0 +1,367 @@
+@file:OptIn(ExperimentalSerializationApi::class)
+package org.lain.engine.transport
+
+import kotlinx.serialization.DeserializationStrategy
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.KSerializer
+import kotlinx.serialization.SerialInfo
+import kotlinx.serialization.SerializationStrategy
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.descriptors.StructureKind
+import kotlinx.serialization.encoding.AbstractDecoder
+import kotlinx.serialization.encoding.AbstractEncoder
+import kotlinx.serialization.encoding.CompositeDecoder
+import kotlinx.serialization.encoding.CompositeDecoder.Companion.DECODE_DONE
+import kotlinx.serialization.encoding.CompositeEncoder
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.modules.SerializersModule
+import net.minecraft.network.FriendlyByteBuf
+import org.lain.engine.storage.COMPONENT_CBOR
+import java.io.ByteArrayOutputStream
+import kotlin.math.roundToLong
+
+/**
+ * Поле передаётся целым числом шагов [step], а не полным `Float`/`Double`
+ */
+@SerialInfo
+@Target(AnnotationTarget.PROPERTY)
+annotation class Quantized(val step: Float)
+
+/**
+ * Изменённые поля значения: бит `i` в [mask] означает, что `fields[i]` присутствует
+ */
+class FieldDelta(val mask: Long, val fields: Array<ByteArray?>) {
+    /**
+     * Верхняя оценка размера в байтах после [write]
+     */
+    val size: Int
+        get() {
+            var size = MAX_VAR_LONG_SIZE
+            for (i in fields.indices) {
+                if (mask and (1L shl i) != 0L) size += fields[i]!!.size + MAX_VAR_INT_SIZE
+            }
+            return size
+        }
+
+    /**
+     * Дельта, равносильная применению [older], а затем этой
+     */
+    fun mergeOlder(older: FieldDelta): FieldDelta {
+        val merged = arrayOfNulls<ByteArray>(fields.size)
+        for (i in fields.indices) {
+            merged[i] = if (mask and (1L shl i) != 0L) fields[i] else older.fields.getOrNull(i)
+        }
+        return FieldDelta(mask or older.mask, merged)
+    }
+
+    fun write(buf: FriendlyByteBuf) {
+        buf.writeVarLong(mask)
+        for (i in fields.indices) {
+            if (mask and (1L shl i) != 0L) buf.writeByteArray(fields[i]!!)
+        }
+    }
+
+    companion object {
+        fun read(buf: FriendlyByteBuf, fieldCount: Int): FieldDelta {
+            val mask = buf.readVarLong()
+            val fields = arrayOfNulls<ByteArray>(fieldCount)
+            for (i in 0 until fieldCount) {
+                if (mask and (1L shl i) != 0L) fields[i] = buf.readByteArray()
+            }
+            return FieldDelta(mask, fields)
+        }
+
+        private const val MAX_VAR_INT_SIZE = 5
+        private const val MAX_VAR_LONG_SIZE = 10
+    }
+}
+
+/**
+ * Кодирует верхнеуровневые поля класса по отдельности, по дескриптору, который генерирует плагин kotlinx-serialization.
+ * Целые числа пишутся как zigzag varint, поля с [Quantized] - как число шагов, вложенные структуры - через CBOR.
+ * Значения, которые не являются классом, кодируются одним полем
+ */
+class FieldDeltaCodec<T>(private val serializer: KSerializer<T>) {
+    private val descriptor = serializer.descriptor
+    private val isStructure = descriptor.kind == StructureKind.CLASS
+    val fieldCount = if (isStructure) descriptor.elementsCount else 1
+    private val steps = FloatArray(fieldCount) { i ->
+        if (isStructure) {
+            descriptor.getElementAnnotations(i).filterIsInstance<Quantized>().firstOrNull()?.step ?: Float.NaN
+        } else {
+            Float.NaN
+        }
+    }
+
+    init {
+        require(fieldCount <= Long.SIZE_BITS) { "Слишком много полей для битовой маски: ${descriptor.serialName}" }
+    }
+
+    fun encodeFields(value: T): Array<ByteArray> {
+        if (!isStructure) {
+            return arrayOf(FieldEncoder(Float.NaN).also { it.encodeSerializableValue(serializer, value) }.toByteArray())
+        }
+        val encoder = FieldsEncoder()
+        serializer.serialize(encoder, value)
+        return Array(fieldCount) { encoder.fields[it] ?: error("Поле ${descriptor.getElementName(it)} не закодировано") }
+    }
+
+    private val fullMask = if (fieldCount == Long.SIZE_BITS) -1L else (1L shl fieldCount) - 1
+
+    fun full(fields: Array<ByteArray>): FieldDelta {
+        return FieldDelta(fullMask, arrayOf<ByteArray?>(*fields))
+    }
+
+    fun isFull(delta: FieldDelta): Boolean = delta.mask == fullMask
+
+    /**
+     * Поля [current], которые отличаются от [previous]. Без [previous] - все поля
+     */
+    fun diff(previous: Array<ByteArray>?, current: Array<ByteArray>): FieldDelta {
+        if (previous == null) return full(current)
+        var mask = 0L
+        val fields = arrayOfNulls<ByteArray>(fieldCount)
+        for (i in 0 until fieldCount) {
+            if (!previous[i].contentEquals(current[i])) {
+                mask = mask or (1L shl i)
+                fields[i] = current[i]
+            }
+        }
+        return FieldDelta(mask, fields)
+    }
+
+    /**
+     * Собирает значение из [delta], недостающие поля берутся из [baseline]
+     */
+    fun decode(delta: FieldDelta, baseline: T?): T {
+        return decode(merge(delta, baseline?.let { encodeFields(it) }))
+    }
+
+    /**
+     * Поля после применения [delta] к полям [baseline]
+     */
+    fun merge(delta: FieldDelta, baseline: Array<ByteArray>?): Array<ByteArray> {
+        return Array(fieldCount) { i ->
+            when {
+                delta.mask and (1L shl i) != 0L -> delta.fields[i]!!
+                baseline != null -> baseline[i]
+                else -> error("Нет значения поля $i ${descriptor.serialName} и базового значения")
+            }
+        }
+    }
+
+    fun decode(fields: Array<ByteArray>): T {
+        if (!isStructure) {
+            return FieldDecoder(fields[0], Float.NaN).decodeSerializableValue(serializer)
+        }
+        return serializer.deserialize(FieldsDecoder(fields))
+    }
+
+    private inner class FieldsEncoder : AbstractEncoder() {
+        val fields = arrayOfNulls<ByteArray>(fieldCount)
+        private var index = -1
+        private var current: FieldEncoder? = null
+
+        override val serializersModule: SerializersModule = COMPONENT_CBOR.serializersModule
+
+        override fun encodeElement(descriptor: SerialDescriptor, index: Int): Boolean {
+            flush()
+            this.index = index
+            current = FieldEncoder(steps[index])
+            return true
+        }
+
+        override fun endStructure(descriptor: SerialDescriptor) = flush()
+
+        private fun flush() {
+            val encoder = current ?: return
+            fields[index] = encoder.toByteArray()
+            current = null
+        }
+
+        private fun field() = current ?: error("Значение вне поля ${descriptor.serialName}")
+
+        override fun encodeNull() = field().encodeNull()
+        override fun encodeNotNullMark() = field().encodeNotNullMark()
+        override fun encodeBoolean(value: Boolean) = field().encodeBoolean(value)
+        override fun encodeByte(value: Byte) = field().encodeByte(value)
+        override fun encodeShort(value: Short) = field().encodeShort(value)
+        override fun encodeChar(value: Char) = field().encodeChar(value)
+        override fun encodeInt(value: Int) = field().encodeInt(value)
+        override fun encodeLong(value: Long) = field().encodeLong(value)
+        override fun encodeFloat(value: Float) = field().encodeFloat(value)
+        override fun encodeDouble(value: Double) = field().encodeDouble(value)
+        override fun encodeString(value: String) = field().encodeString(value)
+        override fun encodeEnum(enumDescriptor: SerialDescriptor, index: Int) = field().encodeEnum(enumDescriptor, index)
+        override fun encodeInline(descriptor: SerialDescriptor): Encoder = field()
+
+        override fun <T> encodeSerializableValue(serializer: SerializationStrategy<T>, value: T) {
+            field().encodeSerializableValue(serializer, value)
+        }
+    }
+
+    private inner class FieldsDecoder(private val fields: Array<ByteArray>) : AbstractDecoder() {
+        private var index = -1
+        private var current: FieldDecoder? = null
+
+        override val serializersModule: SerializersModule = COMPONENT_CBOR.serializersModule
+
+        override fun decodeElementIndex(descriptor: SerialDescriptor): Int {
+            index++
+            if (index >= fieldCount) return DECODE_DONE
+            current = FieldDecoder(fields[index], steps[index])
+            return index
+        }
+
+        private fun field() = current ?: error("Значение вне поля ${descriptor.serialName}")
+
+        override fun decodeNotNullMark() = field().decodeNotNullMark()
+        override fun decodeNull() = field().decodeNull()
+        override fun decodeBoolean() = field().decodeBoolean()
+        override fun decodeByte() = field().decodeByte()
+        override fun decodeShort() = field().decodeShort()
+        override fun decodeChar() = field().decodeChar()
+        override fun decodeInt() = field().decodeInt()
+        override fun decodeLong() = field().decodeLong()
+        override fun decodeFloat() = field().decodeFloat()
+        override fun decodeDouble() = field().decodeDouble()
+        override fun decodeString() = field().decodeString()
+        override fun decodeEnum(enumDescriptor: SerialDescriptor) = field().decodeEnum(enumDescriptor)
+        override fun decodeInline(descriptor: SerialDescriptor): Decoder = field()
+
+        override fun <T> decodeSerializableValue(deserializer: DeserializationStrategy<T>, previousValue: T?): T {
+            return field().decodeSerializableValue(deserializer)
+        }
+    }
+}
+
+/**
+ * Одно поле. Строки и вложенные структуры занимают остаток поля, поэтому их длина не пишется
+ */
+private class FieldEncoder(private val step: Float) : Encoder {
+    private val out = ByteArrayOutputStream(8)
+
+    override val serializersModule: SerializersModule = COMPONENT_CBOR.serializersModule
+
+    fun toByteArray(): ByteArray = out.toByteArray()
+
+    override fun encodeNull() = out.write(0)
+    override fun encodeNotNullMark() = out.write(1)
+    override fun encodeBoolean(value: Boolean) = out.write(if (value) 1 else 0)
+    override fun encodeByte(value: Byte) = out.write(value.toInt())
+    override fun encodeShort(value: Short) = writeVarLong(zigzag(value.toLong()))
+    override fun encodeChar(value: Char) = writeVarLong(value.code.toLong())
+    override fun encodeInt(value: Int) = writeVarLong(zigzag(value.toLong()))
+    override fun encodeLong(value: Long) = writeVarLong(zigzag(value))
+    override fun encodeEnum(enumDescriptor: SerialDescriptor, index: Int) = writeVarLong(index.toLong())
+    override fun encodeString(value: String) = out.write(value.encodeToByteArray())
+    override fun encodeInline(descriptor: SerialDescriptor): Encoder = this
+
+    override fun encodeFloat(value: Float) {
+        if (step.isNaN()) {
+            writeFixed(value.toRawBits().toLong(), Int.SIZE_BYTES)
+        } else {
+            writeVarLong(zigzag((value / step).roundToLong()))
+        }
+    }
+
+    override fun encodeDouble(value: Double) {
+        if (step.isNaN()) {
+            writeFixed(value.toRawBits(), Long.SIZE_BYTES)
+        } else {
+            writeVarLong(zigzag((value / step).roundToLong()))
+        }
+    }
+
+    override fun <T> encodeSerializableValue(serializer: SerializationStrategy<T>, value: T) {
+        out.write(COMPONENT_CBOR.encodeToByteArray(serializer, value))
+    }
+
+    override fun beginStructure(descriptor: SerialDescriptor): CompositeEncoder {
+        error("Структура ${descriptor.serialName} должна кодироваться через encodeSerializableValue")
+    }
+
+    private fun writeVarLong(value: Long) {
+        var remaining = value
+        while (remaining and 0x7FL.inv() != 0L) {
+            out.write(((remaining and 0x7F) or 0x80).toInt())
+            remaining = remaining ushr 7
+        }
+        out.write(remaining.toInt())
+    }
+
+    private fun writeFixed(value: Long, bytes: Int) {
+        for (i in 0 until bytes) out.write((value ushr (i * 8)).toInt() and 0xFF)
+    }
+}
+
+private class FieldDecoder(private val bytes: ByteArray, private val step: Float) : Decoder {
+    private var position = 0
+
+    override val serializersModule: SerializersModule = COMPONENT_CBOR.serializersModule
+
+    override fun decodeNotNullMark() = bytes[position++].toInt() != 0
+    override fun decodeNull(): Nothing? = null.also { position++ }
+    override fun decodeBoolean() = bytes[position++].toInt() != 0
+    override fun decodeByte() = bytes[position++]
+    override fun decodeShort() = unzigzag(readVarLong()).toShort()
+    override fun decodeChar() = readVarLong().toInt().toChar()
+    override fun decodeInt() = unzigzag(readVarLong()).toInt()
+    override fun decodeLong() = unzigzag(readVarLong())
+    override fun decodeEnum(enumDescriptor: SerialDescriptor) = readVarLong().toInt()
+    override fun decodeInline(descriptor: SerialDescriptor): Decoder = this
+
+    override fun decodeString(): String {
+        val value = bytes.decodeToString(position, bytes.size)
+        position = bytes.size
+        return value
+    }
+
+    override fun decodeFloat(): Float {
+        return if (step.isNaN()) {
+            Float.fromBits(readFixed(Int.SIZE_BYTES).toInt())
+        } else {
+            unzigzag(readVarLong()) * step
+        }
+    }
+
+    override fun decodeDouble(): Double {
+        return if (step.isNaN()) {
+            Double.fromBits(readFixed(Long.SIZE_BYTES))
+        } else {
+            unzigzag(readVarLong()) * step.toDouble()
+        }
+    }
+
+    override fun <T> decodeSerializableValue(deserializer: DeserializationStrategy<T>): T {
+        val value = COMPONENT_CBOR.decodeFromByteArray(deserializer, bytes.copyOfRange(position, bytes.size))
+        position = bytes.size
+        return value
+    }
+
+    override fun beginStructure(descriptor: SerialDescriptor): CompositeDecoder {
+        error("Структура ${descriptor.serialName} должна декодироваться через decodeSerializableValue")
+    }
+
+    private fun readVarLong(): Long {
+        var result = 0L
+        var shift = 0
+        while (true) {
+            val byte = bytes[position++].toLong()
+            result = result or ((byte and 0x7F) shl shift)
+            if (byte and 0x80 == 0L) return result
+            shift += 7
+        }
+    }
+
+    private fun readFixed(count: Int): Long {
+        var result = 0L
+        for (i in 0 until count) result = result or ((bytes[position++].toLong() and 0xFF) shl (i * 8))
+        return result
+    }
+}
+
+private fun zigzag(value: Long) = (value shl 1) xor (value shr 63)
+
+private fun unzigzag(value: Long) = (value ushr 1) xor -(value and 1)
@@ -0,0 +1,249 @@
+package org.lain.engine.transport
+
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import org.lain.engine.player.PlayerId
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.format.DateTimeFormatter
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+import kotlin.concurrent.fixedRateTimer
+
+private val LOGGER = LoggerFactory.getLogger("Engine Network Metrics")
+
+/**
+ * Гистограмма размеров пакетов по степеням двойки: корзина `i` - пакеты меньше [upperBound] байт, последняя - все крупнее
+ */
+class SizeHistogram {
+    private val buckets = Array(BUCKETS) { LongAdder() }
+
+    fun record(size: Int) = buckets[bucketOf(size)].increment()
+
+    fun snapshot(): LongArray = LongArray(BUCKETS) { buckets[it].sum() }
+
+    companion object {
+        const val BUCKETS = 16
+        private const val MIN_SHIFT = 6
+
+        fun bucketOf(size: Int): Int =
+            (Int.SIZE_BITS - Integer.numberOfLeadingZeros(size ushr MIN_SHIFT)).coerceAtMost(BUCKETS - 1)
+
+        fun upperBound(bucket: Int): Long = 1L shl (bucket + MIN_SHIFT)
+    }
+}
+
+/**
+ * Трафик в одном направлении. Счётчики накопительные, с запуска сервера
+ */
+class TrafficMetrics {
+    val packets = LongAdder()
+    val bytes = LongAdder()
+    val encodeNanos = LongAdder()
+    val queueNanos = LongAdder()
+    val retransmits = LongAdder()
+    val sizes = SizeHistogram()
+
+    internal fun record(size: Int, encodeNanos: Long, queueNanos: Long) {
+        packets.increment()
+        bytes.add(size.toLong())
+        this.encodeNanos.add(encodeNanos)
+        this.queueNanos.add(queueNanos)
+        sizes.record(size)
+    }
+
+    fun snapshot() = TrafficSnapshot(
+        packets.sum(),
+        bytes.sum(),
+        encodeNanos.sum(),
+        queueNanos.sum(),
+        retransmits.sum(),
+        sizes.snapshot(),
+    )
+}
+
+class EndpointMetrics(val identifier: String) {
+    val outbound = TrafficMetrics()
+    val inbound = TrafficMetrics()
+    val broadcasts = LongAdder()
+}
+
+class PlayerNetworkMetrics(val player: PlayerId) {
+    val outbound = TrafficMetrics()
+    val inbound = TrafficMetrics()
+
+    @Volatile
+    internal var left = false
+}
+
+@Serializable
+data class TrafficSnapshot(
+    val packets: Long,
+    val bytes: Long,
+    val encodeNanos: Long,
+    val queueNanos: Long,
+    val retransmits: Long,
+    val sizes: LongArray,
+) {
+    val averageQueueMillis: Double get() = if (packets == 0L) 0.0 else queueNanos / packets / 1_000_000.0
+    val averageEncodeMicros: Double get() = if (packets == 0L) 0.0 else encodeNanos / packets / 1_000.0
+
+    operator fun minus(other: TrafficSnapshot) = TrafficSnapshot(
+        packets - other.packets,
+        bytes - other.bytes,
+        encodeNanos - other.encodeNanos,
+        queueNanos - other.queueNanos,
+        retransmits - other.retransmits,
+        LongArray(sizes.size) { sizes[it] - other.sizes[it] },
+    )
+
+    val isEmpty: Boolean get() = packets == 0L && retransmits == 0L
+}
+
+/**
+ * Сетевые метрики по эндпоинтам и игрокам. Запись - только [LongAdder] без блокировок, поэтому метрики включены
+ * всегда: потоки тика, кодирования и Netty пишут в них параллельно. Байты и время кодирования учитываются там,
+ * где пакет действительно сериализуется, поэтому в одиночной игре, где пакеты не кодируются, считаются только рассылки.
+ *
+ * Задержка очереди - время от отправки пакета эндпоинтом до передачи в соединение: ожидание в [OutboundScheduler]
+ * плюс ожидание кодировщика. Для входящих - от приёма Netty до обработки на потоке сервера
+ */
+object NetworkMetrics {
+    private val endpoints = ConcurrentHashMap<String, EndpointMetrics>()
+    private val players = ConcurrentHashMap<PlayerId, PlayerNetworkMetrics>()
+
+    fun endpoint(identifier: String): EndpointMetrics = endpoints.computeIfAbsent(identifier) { EndpointMetrics(it) }
+
+    fun player(player: PlayerId): PlayerNetworkMetrics = players.computeIfAbsent(player) { PlayerNetworkMetrics(it) }
+
+    fun endpoints(): Collection<EndpointMetrics> = endpoints.values
+
+    fun players(): Collection<PlayerNetworkMetrics> = players.values
+
+    fun recordOutbound(endpoint: Endpoint<*>, player: PlayerId, size: Int, encodeNanos: Long, queueNanos: Long) {
+        endpoint.metrics.outbound.record(size, encodeNanos, queueNanos)
+        player(player).outbound.record(size, encodeNanos, queueNanos)
+    }
+
+    fun recordInbound(endpoint: Endpoint<*>, player: PlayerId, size: Int, queueNanos: Long) {
+        endpoint.metrics.inbound.record(size, 0, queueNanos)
+        player(player).inbound.record(size, 0, queueNanos)
+    }
+
+    /**
+     * Ожидание в [OutboundScheduler]. Сам пакет учитывается позже, когда его закодируют
+     */
+    fun recordScheduled(endpoint: Endpoint<*>, player: PlayerId, queueNanos: Long) {
+        endpoint.metrics.outbound.queueNanos.add(queueNanos)
+        player(player).outbound.queueNanos.add(queueNanos)
+    }
+
+    fun recordRetransmit(endpoint: Endpoint<*>, player: PlayerId) {
+        endpoint.metrics.outbound.retransmits.increment()
+        player(player).outbound.retransmits.increment()
+    }
+
+    /**
+     * Игрок вышел. Его метрики удаляются после следующей записи в файл
+     */
+    fun removePlayer(player: PlayerId) {
+        players[player]?.left = true
+    }
+
+    internal fun evictLeftPlayers() {
+        players.values.removeIf { it.left }
+    }
+}
+
+/**
+ * Периодически дописывает в файл приращения [NetworkMetrics] за прошедший период, по строке JSON на эндпоинт и
+ * игрока. Файл - на каждый день, хранятся последние [RETAINED_FILES]
+ */
+class NetworkMetricsWriter(
+    private val directory: File = File("logs", "network"),
+    private val periodMillis: Long = PERIOD_MILLIS,
+) {
+    private val json = Json { encodeDefaults = true }
+    private val previous = HashMap<String, TrafficSnapshot>()
+    private val lock = Any()
+    private var timer: Timer? = null
+
+    @Serializable
+    private data class Record(
+        val time: String,
+        val kind: String,
+        val key: String,
+        val outbound: TrafficSnapshot,
+        val inbound: TrafficSnapshot,
+    )
+
+    fun start() {
+        directory.mkdirs()
+        timer = fixedRateTimer("Engine Network Metrics Writer", daemon = true, initialDelay = periodMillis, period = periodMillis) {
+            runCatching { write() }.onFailure { LOGGER.error("Не удалось записать сетевые метрики", it) }
+        }
+    }
+
+    fun stop() {
+        timer?.cancel()
+        timer = null
+        runCatching { write() }.onFailure { LOGGER.error("Не удалось записать сетевые метрики", it) }
+    }
+
+    private fun delta(key: String, current: TrafficSnapshot): TrafficSnapshot {
+        val last = previous.put(key, current)
+        return if (last != null) current - last else current
+    }
+
+    fun write(): Unit = synchronized(lock) {
+        val time = LocalTime.now().format(DateTimeFormatter.ISO_LOCAL_TIME)
+        val records = mutableListOf<Record>()
+        NetworkMetrics.endpoints().forEach {
+            val outbound = delta("e>${it.identifier}", it.outbound.snapshot())
+            val inbound = delta("e<${it.identifier}", it.inbound.snapshot())
+            if (!outbound.isEmpty || !inbound.isEmpty) records += Record(time, "endpoint", it.identifier, outbound, inbound)
+        }
+        NetworkMetrics.players().forEach {
+            val key = it.player.value.toString()
+            val outbound = delta("p>$key", it.outbound.snapshot())
+            val inbound = delta("p<$key", it.inbound.snapshot())
+            if (!outbound.isEmpty || !inbound.isEmpty) records += Record(time, "player", key, outbound, inbound)
+            if (it.left) {
+                previous.remove("p>$key")
+                previous.remove("p<$key")
+            }
+        }
+        NetworkMetrics.evictLeftPlayers()
+        if (records.isEmpty()) return
+
+        val file = File(directory, LocalDate.now().format(DateTimeFormatter.ofPattern("dd-MM-yyyy")) + ".jsonl")
+        val rotate = !file.exists()
+        Files.newBufferedWriter(
+            file.toPath(),
+            StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND
+        ).use { writer ->
+            records.forEach { writer.appendLine(json.encodeToString(it)) }
+        }
+        if (rotate) deleteOldFiles()
+    }
+
+    private fun deleteOldFiles() {
+        val files = directory.listFiles { file -> file.name.endsWith(".jsonl") } ?: return
+        files.sortedByDescending { it.lastModified() }
+            .drop(RETAINED_FILES)
+            .forEach { it.delete() }
+    }
+
+    companion object {
+        const val PERIOD_MILLIS = 60_000L
+        const val RETAINED_FILES = 7
+    }
+}
@@ -0,0 +1,200 @@
+package org.lain.engine.transport
+
+import org.lain.engine.player.PlayerId
+
+/**
+ * Класс исходящего пакета. Чем меньше порядковый номер, тем раньше пакет уходит при нехватке бюджета
+ */
+enum class PacketPriority {
+    PLAYER_STATE, ENTITIES, VOXELS, DECALS, CHUNKS
+}
+
+/**
+ * Пакет, размер которого известен без сериализации. Остальные пакеты учитываются в бюджете по [OutboundScheduler.ESTIMATED_PACKET_SIZE]
+ */
+interface SizedPacket : Packet {
+    val size: Int
+}
+
+/**
+ * Пакет, который можно слить с более старым неотправленным пакетом того же эндпоинта и [coalesceKey]
+ */
+interface CoalescingPacket : Packet {
+    val coalesceKey: Any
+
+    /**
+     * @param older пакет того же эндпоинта с тем же ключом
+     * @return пакет, который заменяет оба, или `null`, если слить нельзя
+     */
+    fun coalesce(older: Packet): Packet?
+}
+
+/**
+ * Пакет, который не должен обгонять более старые неотправленные пакеты с тем же [orderKey], даже из менее
+ * приоритетного класса: события вокселей ждут пакет своего чанка, удаление сущностей - дельты синхронизации.
+ * Пакет эндпоинта без приоритета уходит сразу, только если ждать некого, иначе встаёт в очередь вслед за ними
+ */
+interface OrderedPacket : Packet {
+    val orderKey: Any?
+}
+
+/**
+ * Очередь исходящих пакетов игрока. Счётчики накопительные, с момента входа игрока
+ */
+class OutboundQueue internal constructor() {
+    internal val classes = Array(PacketPriority.entries.size) { ArrayDeque<OutboundScheduler.Entry<*>>() }
+    internal val pending = HashMap<Pair<Endpoint<*>, Any>, OutboundScheduler.Entry<*>>()
+    internal val chains = HashMap<Any, ArrayDeque<OutboundScheduler.Entry<*>>>()
+    internal var tokens = 0L
+
+    val depth: Int get() = classes.sumOf { it.size }
+    var sentPackets = 0L
+        internal set
+    var sentBytes = 0L
+        internal set
+    var deferred = 0L
+        internal set
+    var coalesced = 0L
+        internal set
+}
+
+/**
+ * Планировщик исходящих пакетов для эндпоинтов с [Endpoint.priority]. Пакеты копятся в очереди игрока и
+ * отправляются в [flush] в порядке [PacketPriority], внутри класса - в порядке отправки. Бюджет - ведро токенов:
+ * за тик добавляется `bytesPerTick`, но не больше [MAX_BURST_TICKS] тиков. Пакет уходит, пока токенов больше нуля,
+ * поэтому крупный пакет уходит целиком и уводит бюджет в долг на следующие тики. Остальное ждёт следующего тика.
+ * [OrderedPacket] перед отправкой пропускает вперёд своих предшественников, чего бы они ни стоили.
+ *
+ * Работает на потоке сервера, как и [Endpoint.sendS2C]
+ */
+class OutboundScheduler {
+    private val queues = HashMap<PlayerId, OutboundQueue>()
+
+    /**
+     * Пакеты, отброшенные вместе с очередями вышедших игроков
+     */
+    var dropped = 0L
+        private set
+
+    internal class Entry<P : Packet>(
+        val endpoint: Endpoint<P>,
+        var packet: P,
+        val player: PlayerId,
+        val id: Long,
+        val priority: PacketPriority,
+        val coalesceKey: Any?,
+        val orderKey: Any?,
+    ) {
+        var deferred = false
+        val enqueuedAt = System.nanoTime()
+
+        fun send() = endpoint.dispatch(packet, player, id)
+    }
+
+    fun queue(player: PlayerId): OutboundQueue? = queues[player]
+
+    /**
+     * Есть ли у [packet] неотправленные предшественники. Такой пакет нельзя отправить мимо очереди
+     */
+    fun hasPredecessors(packet: Packet, player: PlayerId): Boolean {
+        val orderKey = (packet as? OrderedPacket)?.orderKey ?: return false
+        return queues[player]?.chains?.containsKey(orderKey) == true
+    }
+
+    /**
+     * Пакет эндпоинта без приоритета попадает сюда, только если у него есть предшественники, и встаёт в их класс
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <P : Packet> enqueue(endpoint: Endpoint<P>, packet: P, player: PlayerId, id: Long) {
+        val queue = queues.getOrPut(player) { OutboundQueue() }
+        val orderKey = (packet as? OrderedPacket)?.orderKey
+        val chain = orderKey?.let { queue.chains[it] }
+        val priority = endpoint.priority
+            ?: chain?.last()?.priority
+            ?: error("Эндпоинт ${endpoint.identifier} не планируется")
+        val key = (packet as? CoalescingPacket)?.coalesceKey
+        if (key != null) {
+            val older = queue.pending[endpoint to key] as Entry<P>?
+            // Слить можно только с последним пакетом цепочки, иначе новое содержимое обгонит пакеты между ними
+            if (older != null && (chain == null || chain.last() === older)) {
+                val merged = packet.coalesce(older.packet)
+                if (merged != null) {
+                    older.packet = merged as P
+                    queue.coalesced++
+                    return
+                }
+            }
+        }
+        val entry = Entry(endpoint, packet, player, id, priority, key, orderKey)
+        if (key != null) queue.pending[endpoint to key] = entry
+        if (orderKey != null) (chain ?: ArrayDeque<Entry<*>>().also { queue.chains[orderKey] = it }).addLast(entry)
+        queue.classes[priority.ordinal].addLast(entry)
+    }
+
+    fun flush(bytesPerTick: Int) {
+        for (queue in queues.values) {
+            queue.tokens = minOf(queue.tokens + bytesPerTick, bytesPerTick.toLong() * MAX_BURST_TICKS)
+            val now = System.nanoTime()
+            for (entries in queue.classes) {
+                while (queue.tokens > 0) {
+                    val entry = entries.firstOrNull() ?: break
+                    entry.orderKey?.let { sendPredecessors(queue, entry, it, now) }
+                    entries.removeFirst()
+                    send(queue, entry, now)
+                }
+                if (queue.tokens <= 0) break
+            }
+            for (entries in queue.classes) {
+                for (entry in entries) {
+                    if (!entry.deferred) {
+                        entry.deferred = true
+                        queue.deferred++
+                    }
+                }
+            }
+        }
+    }
+
+    private fun sendPredecessors(queue: OutboundQueue, entry: Entry<*>, orderKey: Any, now: Long) {
+        val chain = queue.chains.getValue(orderKey)
+        while (chain.first() !== entry) {
+            val predecessor = chain.first()
+            queue.classes[predecessor.priority.ordinal].remove(predecessor)
+            send(queue, predecessor, now)
+        }
+    }
+
+    private fun send(queue: OutboundQueue, entry: Entry<*>, now: Long) {
+        val size = sizeOf(entry)
+        entry.coalesceKey?.let { queue.pending.remove(entry.endpoint to it) }
+        entry.orderKey?.let { orderKey ->
+            val chain = queue.chains.getValue(orderKey)
+            chain.removeFirst()
+            if (chain.isEmpty()) queue.chains.remove(orderKey)
+        }
+        NetworkMetrics.recordScheduled(entry.endpoint, entry.player, now - entry.enqueuedAt)
+        entry.send()
+        queue.tokens -= size
+        queue.sentPackets++
+        queue.sentBytes += size
+    }
+
+    /**
+     * Отбрасывает неотправленные пакеты игрока, который покинул сервер
+     */
+    fun remove(player: PlayerId) {
+        val queue = queues.remove(player) ?: return
+        dropped += queue.depth
+    }
+
+    private fun sizeOf(entry: Entry<*>): Int {
+        val packet = entry.packet
+        // Пакеты кодируются вне потока тика, поэтому точный размер остальных здесь неизвестен
+        return if (packet is SizedPacket) packet.size else ESTIMATED_PACKET_SIZE
+    }
+
+    companion object {
+        const val MAX_BURST_TICKS = 4
+        const val ESTIMATED_PACKET_SIZE = 1024
+    }
+}
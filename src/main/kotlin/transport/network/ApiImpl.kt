@@ -24,8 +24,9 @@ class ServerNetworkTransport(
         endpoint: Endpoint<P>,
         lazyPacket: (EnginePlayer) -> P
     ) {
+        // Через эндпоинт, чтобы рассылка соблюдала очередь игрока
         playerStorage.forEach { player ->
-            sendClientboundPacket(endpoint, lazyPacket(player), player.id)
+            endpoint.sendS2C(lazyPacket(player), player.id)
         }
     }
 
@@ -54,8 +55,10 @@ class ServerNetworkTransport(
         registerServerReceiverInternal(
             endpoint,
             connectionManager
-        ) { session, server, packet ->
+        ) { session, server, packet, size ->
+            val receivedAt = System.nanoTime()
             server.execute {
+                NetworkMetrics.recordInbound(endpoint, session.playerId, size, System.nanoTime() - receivedAt)
                 var fail: Throwable? = null
 
                 with(ServerPacketContext(session.playerId)) {
@@ -1,102 +1,404 @@
 package org.lain.engine.transport.packet
 
-import kotlinx.coroutines.*
+import kotlinx.coroutines.CompletableDeferred
 import org.lain.engine.player.PlayerId
 import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.NetworkMetrics
 import org.lain.engine.transport.Packet
 import org.lain.engine.transport.PacketCodec
 import org.lain.engine.transport.ServerTransportContext
-import java.util.concurrent.ConcurrentHashMap
 
-data class AcknowledgePacket(val id: Long) : Packet
+/**
+ * Подтверждения надёжных каналов за тик клиента. Для каждого канала - номер, до которого включительно получено всё
+ * ([cumulative]), и маска полученных номеров после него: бит `i` - номер `cumulative + 1 + i`
+ */
+class AcknowledgePacket(
+    val channels: IntArray,
+    val cumulative: IntArray,
+    val selective: LongArray,
+) : Packet
 
-internal fun AcknowledgeEndpoint(id: String) = Endpoint(
-    id,
+val ACKNOWLEDGE_CONFIRM_CHANNEL = Endpoint(
+    "acknowledge_confirm",
     PacketCodec.Binary(
-        { AcknowledgePacket(readLong()) },
-        { writeLong(it.id) }
+        {
+            val size = readVarInt()
+            val channels = IntArray(size)
+            val cumulative = IntArray(size)
+            val selective = LongArray(size)
+            for (i in 0 until size) {
+                channels[i] = readInt()
+                cumulative[i] = readVarInt()
+                selective[i] = readLong()
+            }
+            AcknowledgePacket(channels, cumulative, selective)
+        },
+        { packet ->
+            writeVarInt(packet.channels.size)
+            for (i in packet.channels.indices) {
+                writeInt(packet.channels[i])
+                writeVarInt(packet.cumulative[i])
+                writeLong(packet.selective[i])
+            }
+        }
     )
 )
 
-val ACKNOWLEDGE_REQUEST_CHANNEL = AcknowledgeEndpoint("acknowledge_request")
-val ACKNOWLEDGE_CONFIRM_CHANNEL = AcknowledgeEndpoint("acknowledge_confirm")
+/**
+ * Номера канала до [sequence] включительно больше не придут: сервер бросил часть из них, когда кончились попытки.
+ * Без этого брошенный номер навсегда остановил бы [ReliableReceiveWindow.cumulative]
+ */
+class ReliableSkipPacket(val channel: Int, val sequence: Int) : Packet
+
+val CLIENTBOUND_RELIABLE_SKIP_ENDPOINT = Endpoint(
+    "reliable_skip",
+    PacketCodec.Binary(
+        { ReliableSkipPacket(readInt(), readVarInt()) },
+        { packet ->
+            writeInt(packet.channel)
+            writeVarInt(packet.sequence)
+        }
+    )
+)
+
+/**
+ * Id надёжного пакета в заголовке payload: старший бит - флаг, затем 31 бит канала и 32 бита номера в канале
+ */
+object ReliableId {
+    fun of(channel: Int, sequence: Int): Long =
+        Long.MIN_VALUE or (channel.toLong() shl 32) or (sequence.toLong() and 0xFFFFFFFFL)
+
+    fun isReliable(id: Long) = id < 0
+
+    fun channel(id: Long): Int = ((id ushr 32) and 0x7FFFFFFF).toInt()
 
-object GlobalAcknowledgeListener {
-    private val listeners: ConcurrentHashMap<Long, () -> Unit> = ConcurrentHashMap()
-    private var lock = Any()
+    fun sequence(id: Long): Int = id.toInt()
 
-    fun addListener(id: Long, onReceive: () -> Unit) = synchronized(lock) {
-        listeners[id] = onReceive
+    fun channelOf(endpoint: Endpoint<*>): Int = endpoint.identifier.hashCode() and 0x7FFFFFFF
+}
+
+data class PacketNotAcknowledgedException(
+    val packet: Packet,
+    val player: PlayerId
+) : RuntimeException("Пакет ${packet::class.simpleName} не подтвержден игроком $player")
+
+fun interface ReliableListener {
+    /**
+     * @param acknowledged `false`, если попытки кончились или игрок вышел
+     */
+    fun onComplete(acknowledged: Boolean)
+}
+
+/**
+ * Надёжная доставка S2C-пакетов. У каждого эндпоинта у игрока свой канал с последовательными номерами, а клиент раз
+ * в тик подтверждает все каналы одним [AcknowledgePacket]. Неподтверждённые пакеты пересылаются по колесу таймеров
+ * соединения: одно колесо на игрока, сдвигается раз в тик сервера.
+ *
+ * В полёте у канала не больше [WINDOW_SIZE] пакетов - столько помещается в маску подтверждения, - остальные ждут
+ * в очереди канала. Когда брошенные номера оказываются ниже окна, клиенту уходит [ReliableSkipPacket]; если
+ * подтверждение клиента показывает, что пропуск не дошёл, он отправляется снова. Работает на потоке сервера
+ */
+class ReliableChannels(private val transport: ServerTransportContext) {
+    private val connections = HashMap<PlayerId, Connection>()
+
+    internal class InFlight(
+        val endpoint: Endpoint<Packet>,
+        val packet: Packet,
+        val sequence: Int,
+        val channel: Channel,
+        val retryAttempts: Int,
+        val retryTicks: Int,
+        val listener: ReliableListener,
+    ) {
+        var attempts = 0
+        var done = false
     }
 
-    fun removeListener(id: Long) = synchronized(lock) {
-        listeners.remove(id)
+    internal class Channel(val id: Int) {
+        var nextSequence = 1
+        // Самый поздний брошенный номер и номер, до которого клиенту сообщено о пропуске
+        var abandoned = 0
+        var skipped = 0
+        val inFlight = ArrayDeque<InFlight>()
+        val backlog = ArrayDeque<InFlight>()
+
+        val windowStart: Int get() = inFlight.firstOrNull()?.sequence ?: nextSequence
     }
 
-    internal fun confirm(id: Long) {
-        listeners.remove(id)?.invoke()
+    private inner class Connection(val player: PlayerId) {
+        val channels = HashMap<Int, Channel>()
+        val wheel = Array(WHEEL_SIZE) { ArrayList<InFlight>() }
+        var cursor = 0
+
+        fun schedule(entry: InFlight) {
+            val delay = entry.retryTicks.coerceIn(1, WHEEL_SIZE - 1)
+            wheel[(cursor + delay) % WHEEL_SIZE] += entry
+        }
+
+        fun transmit(entry: InFlight) {
+            if (entry.attempts++ > 0) NetworkMetrics.recordRetransmit(entry.endpoint, player)
+            transport.sendClientboundPacket(entry.endpoint, entry.packet, player, ReliableId.of(entry.channel.id, entry.sequence))
+            schedule(entry)
+        }
+
+        /**
+         * Сообщает клиенту, что всё ниже окна завершено, если среди этого есть ещё не пропущенные брошенные номера
+         */
+        fun skip(channel: Channel) {
+            val sequence = channel.windowStart - 1
+            if (channel.abandoned <= channel.skipped || sequence <= channel.skipped) return
+            channel.skipped = sequence
+            sendSkip(channel)
+        }
+
+        fun sendSkip(channel: Channel) {
+            transport.sendClientboundPacket(CLIENTBOUND_RELIABLE_SKIP_ENDPOINT, ReliableSkipPacket(channel.id, channel.skipped), player)
+        }
+
+        fun fill(channel: Channel) {
+            while (channel.backlog.isNotEmpty() && channel.nextSequence - channel.windowStart < WINDOW_SIZE) {
+                val entry = channel.backlog.removeFirst()
+                channel.inFlight.addLast(entry)
+                channel.nextSequence++
+                transmit(entry)
+            }
+        }
+
+        fun tick() {
+            cursor = (cursor + 1) % WHEEL_SIZE
+            val slot = wheel[cursor]
+            if (slot.isEmpty()) return
+            for (i in slot.indices) {
+                val entry = slot[i]
+                if (entry.done) continue
+                if (entry.attempts >= entry.retryAttempts) {
+                    val channel = entry.channel
+                    channel.inFlight.remove(entry)
+                    channel.abandoned = maxOf(channel.abandoned, entry.sequence)
+                    complete(entry, false)
+                    skip(channel)
+                    fill(channel)
+                } else {
+                    transmit(entry)
+                }
+            }
+            slot.clear()
+        }
+    }
+
+    /**
+     * Отправляет пакет надёжно. Пакет пересылается каждые [retryTicks] тиков, пока клиент не подтвердит его,
+     * но не больше [retryAttempts] раз
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <P : Packet> send(
+        endpoint: Endpoint<P>,
+        packet: P,
+        player: PlayerId,
+        retryAttempts: Int,
+        retryTicks: Int,
+        listener: ReliableListener,
+    ) {
+        val connection = connections.getOrPut(player) { Connection(player) }
+        val channelId = ReliableId.channelOf(endpoint)
+        val channel = connection.channels.getOrPut(channelId) { Channel(channelId) }
+        val sequence = channel.nextSequence + channel.backlog.size
+        channel.backlog.addLast(
+            InFlight(endpoint as Endpoint<Packet>, packet, sequence, channel, retryAttempts, retryTicks, listener)
+        )
+        connection.fill(channel)
+    }
+
+    fun acknowledge(player: PlayerId, packet: AcknowledgePacket) {
+        val connection = connections[player] ?: return
+        for (i in packet.channels.indices) {
+            val channel = connection.channels[packet.channels[i]] ?: continue
+            val cumulative = packet.cumulative[i]
+            val selective = packet.selective[i]
+            while (channel.inFlight.isNotEmpty() && channel.inFlight.first().sequence <= cumulative) {
+                complete(channel.inFlight.removeFirst(), true)
+            }
+            if (selective != 0L) {
+                channel.inFlight.removeAll { entry ->
+                    val offset = entry.sequence - cumulative - 1
+                    val acknowledged = offset in 0 until WINDOW_SIZE && selective and (1L shl offset) != 0L
+                    if (acknowledged) complete(entry, true)
+                    acknowledged
+                }
+            }
+            if (cumulative < channel.skipped) {
+                // Пропуск потерялся: клиент всё ещё ждёт брошенный номер
+                connection.sendSkip(channel)
+            } else {
+                connection.skip(channel)
+            }
+            connection.fill(channel)
+        }
+    }
+
+    fun tick() {
+        connections.values.forEach { it.tick() }
+    }
+
+    /**
+     * Снимает все пакеты игрока. Ожидающие получают отказ
+     */
+    fun remove(player: PlayerId) {
+        val connection = connections.remove(player) ?: return
+        connection.channels.values.forEach { channel ->
+            channel.inFlight.forEach { complete(it, false) }
+            channel.backlog.forEach { complete(it, false) }
+        }
+    }
+
+    fun inFlight(player: PlayerId): Int = connections[player]?.channels?.values?.sumOf { it.inFlight.size } ?: 0
+
+    private fun complete(entry: InFlight, acknowledged: Boolean) {
+        if (entry.done) return
+        entry.done = true
+        entry.listener.onComplete(acknowledged)
     }
 
     fun start() {
-        ACKNOWLEDGE_CONFIRM_CHANNEL
-            .registerReceiver { confirm(id) }
+        ACKNOWLEDGE_CONFIRM_CHANNEL.registerReceiver { ctx -> acknowledge(ctx.sender, this) }
+    }
+
+    companion object {
+        const val WINDOW_SIZE = Long.SIZE_BITS
+        const val WHEEL_SIZE = 64
+        const val TICK_MILLIS = 50
     }
 }
 
-data class PacketNotAcknowledgedException(
-    val packet: Packet,
-    val id: Long
-) : RuntimeException("Пакет ${packet::class.simpleName} не подтвержден. ID: $id ")
+/**
+ * Окно приёма надёжного канала на клиенте. Отсекает повторы и копит подтверждение до следующей отправки
+ */
+class ReliableReceiveWindow {
+    var cumulative = 0
+        private set
+    var selective = 0L
+        private set
+    var dirty = false
+        private set
+
+    /**
+     * @return `false`, если пакет уже был получен
+     */
+    fun receive(sequence: Int): Boolean {
+        // Повтор тоже подтверждаем: сервер переслал пакет, значит, прошлое подтверждение до него не дошло
+        dirty = true
+        if (sequence <= cumulative) return false
+        val offset = sequence - cumulative - 1
+        if (offset >= ReliableChannels.WINDOW_SIZE) return true
+        val bit = 1L shl offset
+        if (selective and bit != 0L) return false
+        selective = selective or bit
+        while (selective and 1L != 0L) {
+            selective = selective ushr 1
+            cumulative++
+        }
+        return true
+    }
+
+    /**
+     * Считает полученными все номера до [sequence] включительно
+     */
+    fun skip(sequence: Int) {
+        if (sequence <= cumulative) return
+        val shift = sequence - cumulative
+        selective = if (shift >= ReliableChannels.WINDOW_SIZE) 0L else selective ushr shift
+        cumulative = sequence
+        while (selective and 1L != 0L) {
+            selective = selective ushr 1
+            cumulative++
+        }
+        dirty = true
+    }
+
+    fun markAcknowledged() {
+        dirty = false
+    }
+}
+
+/**
+ * Окна приёма всех надёжных каналов соединения
+ */
+class ReliableReceiver {
+    private val windows = HashMap<Int, ReliableReceiveWindow>()
+
+    /**
+     * @return `false`, если это повтор надёжного пакета и обрабатывать его не нужно
+     */
+    @Synchronized
+    fun receive(id: Long): Boolean {
+        if (!ReliableId.isReliable(id)) return true
+        return windows.getOrPut(ReliableId.channel(id)) { ReliableReceiveWindow() }.receive(ReliableId.sequence(id))
+    }
+
+    @Synchronized
+    fun skip(channel: Int, sequence: Int) {
+        windows.getOrPut(channel) { ReliableReceiveWindow() }.skip(sequence)
+    }
+
+    /**
+     * Подтверждение каналов, в которые что-то пришло с прошлого вызова, или `null`
+     */
+    @Synchronized
+    fun collectAcknowledge(): AcknowledgePacket? {
+        val dirty = windows.entries.filter { it.value.dirty }
+        if (dirty.isEmpty()) return null
+        val packet = AcknowledgePacket(
+            IntArray(dirty.size) { dirty[it].key },
+            IntArray(dirty.size) { dirty[it].value.cumulative },
+            LongArray(dirty.size) { dirty[it].value.selective },
+        )
+        dirty.forEach { it.value.markAcknowledged() }
+        return packet
+    }
+
+    @Synchronized
+    fun clear() {
+        windows.clear()
+    }
+}
 
-class ServerAcknowledgeTask(
-    private val id: Long,
-    private val packet: Packet,
+class ServerAcknowledgeTask<P : Packet>(
+    private val packet: P,
+    private val endpoint: Endpoint<P>,
     private val player: PlayerId,
     private val transport: ServerTransportContext,
+    private val channels: ReliableChannels,
     val retryAttempts: Int,
     val retryTime: Int,
 ) {
     private var onTimeout: () -> Unit = {
-        throw PacketNotAcknowledgedException(packet, id)
+        throw PacketNotAcknowledgedException(packet, player)
     }
 
-    fun onTimeout(b: () -> Unit): ServerAcknowledgeTask {
+    fun onTimeout(b: () -> Unit): ServerAcknowledgeTask<P> {
         onTimeout = b
         return this
     }
 
-    fun onTimeoutServerThread(b: () -> Unit): ServerAcknowledgeTask {
+    fun onTimeoutServerThread(b: () -> Unit): ServerAcknowledgeTask<P> {
         onTimeout = { transport.executeOnThread(b) }
         return this
     }
 
-    suspend fun run() = coroutineScope {
-        val deferred = CompletableDeferred<Unit>()
-
-        GlobalAcknowledgeListener.addListener(id) {
-            deferred.complete(Unit)
-        }
-
-        val senderJob = launch {
-            repeat(retryAttempts) {
-                transport.sendClientboundPacket(
-                    ACKNOWLEDGE_REQUEST_CHANNEL,
-                    AcknowledgePacket(id),
-                    player
-                )
-                delay(retryTime.toLong())
-            }
-        }
-
-        try {
-            withTimeout(retryAttempts * retryTime.toLong()) {
-                deferred.await()
-            }
-        } catch (e: TimeoutCancellationException) {
-            onTimeout()
-        } finally {
-            GlobalAcknowledgeListener.removeListener(id)
-            senderJob.cancel()
+    /**
+     * Отправляет пакет через надёжный канал и ждёт подтверждения. Пересылками занимается [ReliableChannels]
+     */
+    suspend fun run() {
+        val result = CompletableDeferred<Boolean>()
+        transport.executeOnThread {
+            channels.send(
+                endpoint,
+                packet,
+                player,
+                retryAttempts,
+                Math.ceilDiv(retryTime, ReliableChannels.TICK_MILLIS),
+            ) { result.complete(it) }
         }
+        if (!result.await()) onTimeout()
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,7 @@ import kotlinx.serialization.Serializable
 import org.lain.cyberia.ecs.Component
 import org.lain.engine.storage.PersistentId
 import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.OrderedPacket
 import org.lain.engine.transport.Packet
 
 @Deprecated("")
@@ -15,6 +16,10 @@ data class WriteableUpdatePacket(val item: PersistentId, val contents: List<Stri
 val SERVERBOUND_WRITEABLE_UPDATE_ENDPOINT = Endpoint<WriteableUpdatePacket>()
 
 @Serializable
-data class ItemUnloadPacket(val items: List<PersistentId>) : Packet
+data class ItemUnloadPacket(val items: List<PersistentId>) : OrderedPacket {
+    // Выгрузка не должна обогнать дельты этих предметов, ещё ждущие в очереди
+    override val orderKey: Any
+        get() = SynchronizationBundlePacket
+}
 
 val CLIENTBOUND_ITEM_UNLOAD_ENDPOINT = Endpoint<ItemUnloadPacket>()
\ No newline at end of file
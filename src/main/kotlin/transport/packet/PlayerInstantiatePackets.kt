@@ -1,7 +1,9 @@
 package org.lain.engine.transport.packet
 
+import io.netty.buffer.Unpooled
 import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.Serializable
+import net.minecraft.network.FriendlyByteBuf
 import org.lain.cyberia.ecs.require
 import org.lain.cyberia.ecs.requireComponent
 import org.lain.engine.container.getContainerItems
@@ -13,7 +15,9 @@ import org.lain.engine.server.Notification
 import org.lain.engine.server.ServerId
 import org.lain.engine.storage.*
 import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.OrderedPacket
 import org.lain.engine.transport.Packet
+import org.lain.engine.transport.PacketCodec
 import org.lain.engine.world.World
 import org.lain.engine.world.WorldId
 
@@ -152,6 +156,37 @@ data class JoinGamePacket(
 @OptIn(ExperimentalSerializationApi::class)
 val CLIENTBOUND_JOIN_GAME_ENDPOINT = Endpoint<JoinGamePacket>()
 
+/**
+ * Палитра числовых id компонентов сервера. Отправляется до [JoinGamePacket].
+ * Палитра не меняется, пока сервер работает, поэтому сервер держит один пакет и кодирует его однажды
+ */
+class ComponentPalettePacket(val names: List<String>) : Packet {
+    val encoded: ByteArray by lazy {
+        val buf = FriendlyByteBuf(Unpooled.buffer())
+        try {
+            buf.writeVarInt(names.size)
+            names.forEach { buf.writeUtf(it) }
+            ByteArray(buf.readableBytes()).also { buf.readBytes(it) }
+        } finally {
+            buf.release()
+        }
+    }
+}
+
+// Палитра применяется прямо при декодировании: пакеты после рукопожатия декодируются сетевым потоком
+// раньше, чем обработчик успел бы выполниться на основном
+val CLIENTBOUND_COMPONENT_PALETTE_ENDPOINT = Endpoint<ComponentPalettePacket>(
+    "component-palette",
+    PacketCodec.Binary(
+        {
+            val names = List(readVarInt()) { readUtf() }
+            NetworkComponentPalette.current = ComponentIdPalette(names)
+            ComponentPalettePacket(names)
+        },
+        { packet -> writeBytes(packet.encoded) }
+    )
+)
+
 @Serializable
 object ConfirmationPacket : Packet
 
@@ -218,7 +253,10 @@ data class PlayerJoinServerPacket(
 @Serializable
 data class PlayerDestroyPacket(
     val playerId: PlayerId
-) : Packet
+) : OrderedPacket {
+    override val orderKey: Any
+        get() = SynchronizationBundlePacket
+}
 
 val CLIENTBOUND_PLAYER_DESTROY_ENDPOINT = Endpoint<PlayerDestroyPacket>()
 
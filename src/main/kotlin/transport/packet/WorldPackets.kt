@@ -1,13 +1,25 @@
 package org.lain.engine.transport.packet
 
 import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.SerialName
 import kotlinx.serialization.Serializable
 import org.lain.engine.storage.COMPONENT_CBOR
 import org.lain.engine.storage.ComponentDto
 import org.lain.engine.storage.EntityDto
+import org.lain.engine.storage.NetworkComponentPalette
+import org.lain.engine.storage.withComponentPalette
+import org.lain.engine.server.SynchronizationBundle
+import org.lain.engine.transport.CoalescingPacket
 import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.OrderedPacket
+import org.lain.engine.transport.PACKET_PROTOBUF
 import org.lain.engine.transport.Packet
 import org.lain.engine.transport.PacketCodec
+import org.lain.engine.transport.PacketPriority
+import org.lain.engine.transport.SizedPacket
+import org.lain.engine.transport.channelName
+import org.lain.engine.transport.compressPayload
+import org.lain.engine.transport.decompressPayload
 import org.lain.engine.world.*
 
 @Serializable
@@ -18,8 +30,25 @@ data class SoundPlayPacket(
 
 val CLIENTBOUND_SOUND_PLAY_ENDPOINT = Endpoint<SoundPlayPacket>()
 
-@Serializable
-data class EngineChunkPacket(val chunk: EngineChunkDto) : Packet
+/**
+ * Сжатый [EngineChunkDto]. Сервер кэширует байты в [EngineChunk], поэтому все игроки получают один и тот же массив
+ */
+/**
+ * @param pos позиция чанка на сервере, не передаётся. По ней события вокселей чанка ждут отправки его пакета
+ */
+class EngineChunkPacket(val payload: ByteArray, val pos: EngineChunkPos? = null) : SizedPacket, OrderedPacket {
+    val chunk: EngineChunkDto by lazy { decodeChunkPayload(payload) }
+
+    override val orderKey: Any?
+        get() = pos
+
+    override val size: Int
+        get() = payload.size + MAX_VAR_INT_SIZE
+
+    companion object {
+        private const val MAX_VAR_INT_SIZE = 5
+    }
+}
 
 @Serializable
 data class EngineChunkDto(
@@ -28,12 +57,33 @@ data class EngineChunkDto(
     val hints: Map<ImmutableVoxelPos, Hint>
 )
 
-val CLIENTBOUND_CHUNK_ENDPOINT = Endpoint<EngineChunkPacket>()
+@OptIn(ExperimentalSerializationApi::class)
+fun encodeChunkPayload(chunk: EngineChunkDto): ByteArray {
+    return compressPayload(PACKET_PROTOBUF.encodeToByteArray(EngineChunkDto.serializer(), chunk))
+}
+
+@OptIn(ExperimentalSerializationApi::class)
+fun decodeChunkPayload(payload: ByteArray): EngineChunkDto {
+    return PACKET_PROTOBUF.decodeFromByteArray(EngineChunkDto.serializer(), decompressPayload(payload))
+}
+
+val CLIENTBOUND_CHUNK_ENDPOINT = Endpoint<EngineChunkPacket>(
+    EngineChunkPacket::class.channelName,
+    PacketCodec.Binary(
+        // Распаковка на сетевом потоке, чтобы не занимать основной
+        { EngineChunkPacket(readByteArray()).also { it.chunk } },
+        { writeByteArray(it.payload) }
+    ),
+    PacketPriority.CHUNKS
+)
 
 @Serializable
-data class VoxelEventPacket(val event: VoxelEvent) : Packet
+data class VoxelEventPacket(val event: VoxelEvent) : OrderedPacket {
+    override val orderKey: Any
+        get() = event.chunkPos
+}
 
-val CLIENTBOUND_VOXEL_EVENT_PACKET = Endpoint<VoxelEventPacket>()
+val CLIENTBOUND_VOXEL_EVENT_PACKET = Endpoint<VoxelEventPacket>(priority = PacketPriority.DECALS)
 
 @Serializable
 data class VoxelBlockHintPacket(val pos: VoxelPos, val action: Action) : Packet {
@@ -48,26 +98,73 @@ data class VoxelBlockHintPacket(val pos: VoxelPos, val action: Action) : Packet
 
 val SERVERBOUND_VOXEL_BLOCK_HINT_PACKET = Endpoint<VoxelBlockHintPacket>()
 
+/**
+ * Дельта синхронизации, которая уходит клиенту в составе [SynchronizationBundlePacket]
+ */
 @Serializable
-data class EntityDeltaPacket(val dto: EntityDto) : Packet
+sealed interface SynchronizationDelta
 
-@OptIn(ExperimentalSerializationApi::class)
-val CLIENTBOUND_ENTITY_DELTA_ENDPOINT = Endpoint<EntityDeltaPacket>(
-    codec = PacketCodec.Kotlinx(EntityDeltaPacket.serializer(), COMPONENT_CBOR),
-)
+@Serializable
+@SerialName("entity")
+data class EntityDeltaPacket(val dto: EntityDto) : Packet, SynchronizationDelta
 
 @Serializable
+@SerialName("dynamic_voxel")
 data class DynamicVoxelDeltaPacket(
     val voxelPos: ImmutableVoxelPos,
     val components: List<ComponentDto>
-) : Packet
-
-val CLIENTBOUND_DYNAMIC_VOXEL_DELTA_ENDPOINT = Endpoint<DynamicVoxelDeltaPacket>()
+) : Packet, SynchronizationDelta
 
 @Serializable
-data class WorldStateDeltaPacket(val components: List<ComponentDto>) : Packet
+@SerialName("world_state")
+data class WorldStateDeltaPacket(val components: List<ComponentDto>) : Packet, SynchronizationDelta
 
 @OptIn(ExperimentalSerializationApi::class)
-val CLIENTBOUND_WORLD_STATE_DELTA_PACKET = Endpoint<WorldStateDeltaPacket>(
-    codec = PacketCodec.Kotlinx(WorldStateDeltaPacket.serializer(), COMPONENT_CBOR),
+fun encodeSynchronizationDelta(delta: SynchronizationDelta): ByteArray {
+    return withComponentPalette(NetworkComponentPalette.current) {
+        COMPONENT_CBOR.encodeToByteArray(SynchronizationDelta.serializer(), delta)
+    }
+}
+
+@OptIn(ExperimentalSerializationApi::class)
+fun decodeSynchronizationDelta(bytes: ByteArray): SynchronizationDelta {
+    return withComponentPalette(NetworkComponentPalette.current) {
+        COMPONENT_CBOR.decodeFromByteArray(SynchronizationDelta.serializer(), bytes)
+    }
+}
+
+/**
+ * Закодированные дельты синхронизации игрока за тик. Клиент применяет их в порядке записи.
+ * Неотправленный бандл сливается со следующим, пока суммарный размер в пределах лимита
+ */
+class SynchronizationBundlePacket(val entries: List<ByteArray>) : SizedPacket, CoalescingPacket, OrderedPacket {
+    override val size: Int = entries.sumOf { it.size + MAX_VAR_INT_SIZE } + MAX_VAR_INT_SIZE
+
+    override val orderKey: Any
+        get() = SynchronizationBundlePacket
+
+    override val coalesceKey: Any
+        get() = SynchronizationBundlePacket
+
+    override fun coalesce(older: Packet): Packet? {
+        older as SynchronizationBundlePacket
+        if (older.size + size > SynchronizationBundle.MAX_SYNCHRONIZATION_BUNDLE_SIZE) return null
+        return SynchronizationBundlePacket(older.entries + entries)
+    }
+
+    companion object {
+        private const val MAX_VAR_INT_SIZE = 5
+    }
+}
+
+val CLIENTBOUND_SYNCHRONIZATION_BUNDLE_ENDPOINT = Endpoint<SynchronizationBundlePacket>(
+    "synchronization-bundle",
+    PacketCodec.Binary(
+        { SynchronizationBundlePacket(List(readVarInt()) { readByteArray() }) },
+        { packet ->
+            writeVarInt(packet.entries.size)
+            packet.entries.forEach { writeByteArray(it) }
+        }
+    ),
+    PacketPriority.ENTITIES
 )
@@ -6,6 +6,7 @@ object PrimitiveArrayPool {
     private val floatPool = mutableMapOf<Int, MutableList<FloatArray>>()
     private val intPool = mutableMapOf<Int, MutableList<IntArray>>()
     private val booleanPool = mutableMapOf<Int, MutableList<BooleanArray>>()
+    private val bytePool = mutableMapOf<Int, MutableList<ByteArray>>()
 
     fun getFloat(size: Int): FloatArray = synchronized(lock) {
         floatPool[size]?.removeLastOrNull() ?: FloatArray(size)
@@ -33,4 +34,13 @@ object PrimitiveArrayPool {
         array.fill(fill)
         booleanPool.getOrPut(array.size) { mutableListOf() }.add(array)
     }
-}
\ No newline at end of file
+
+    fun getByte(size: Int): ByteArray = synchronized(lock) {
+        bytePool[size]?.removeLastOrNull() ?: ByteArray(size)
+    }
+
+    fun free(array: ByteArray, fill: Byte = 0) = synchronized(lock) {
+        array.fill(fill)
+        bytePool.getOrPut(array.size) { mutableListOf() }.add(array)
+    }
+}
@@ -0,0 +1,10 @@
+package org.lain.engine.util.component
+
+/**
+ * Общий для всех массивов мира счётчик версий изменений компонентов.
+ * Нулевая версия зарезервирована за "никогда не изменялся", поэтому отсчёт начинается с единицы
+ */
+class ChangeClock {
+    var tick: Int = 1
+        internal set
+}
@@ -0,0 +1,102 @@
+package org.lain.engine.util.component
+
+/**
+ * Закешированная выборка сущностей, у которых есть все компоненты сигнатуры.
+ * Регистрируется в [ComponentWorld] один раз и обновляется инкрементально при добавлении и удалении компонентов,
+ * поэтому итерация идёт по плотному массиву сущностей без проверок принадлежности
+ */
+class ComponentQuery internal constructor(internal val arrays: Array<ComponentArray<*>>) {
+    private var dense = IntArray(16)
+    private val sparse = PagedSparseIndex()
+    var size = 0
+        private set
+
+    fun entityAt(index: Int): EntityId = dense[index]
+
+    operator fun contains(entity: EntityId): Boolean {
+        return entity in sparse
+    }
+
+    inline fun forEach(action: (EntityId) -> Unit) {
+        // Обратный порядок позволяет удалять текущую сущность во время итерации
+        for (i in size - 1 downTo 0) {
+            if (i >= size) continue
+            action(entityAt(i))
+        }
+    }
+
+    internal fun hasSignature(
+        a: ComponentArray<*>,
+        b: ComponentArray<*>? = null,
+        c: ComponentArray<*>? = null,
+        d: ComponentArray<*>? = null,
+        e: ComponentArray<*>? = null
+    ): Boolean {
+        val count = when {
+            e != null -> 5
+            d != null -> 4
+            c != null -> 3
+            b != null -> 2
+            else -> 1
+        }
+        if (arrays.size != count) return false
+        return arrays[0] === a &&
+            (count < 2 || arrays[1] === b) &&
+            (count < 3 || arrays[2] === c) &&
+            (count < 4 || arrays[3] === d) &&
+            (count < 5 || arrays[4] === e)
+    }
+
+    internal fun onComponentAdded(entity: EntityId) {
+        if (entity !in this && matches(entity)) add(entity)
+    }
+
+    internal fun onComponentRemoved(entity: EntityId) {
+        if (entity in this) remove(entity)
+    }
+
+    /**
+     * Заменяет массив компонентов после перерегистрации типа (например, при перезагрузке скриптов) и пересобирает выборку
+     */
+    internal fun rebind(old: ComponentArray<*>, new: ComponentArray<*>) {
+        for (i in arrays.indices) {
+            if (arrays[i] === old) arrays[i] = new
+        }
+        rebuild()
+    }
+
+    internal fun rebuild() {
+        for (i in 0 until size) sparse.remove(dense[i])
+        size = 0
+        val smallest = arrays.minBy { it.size }
+        for (i in 0 until smallest.size) {
+            val entity = smallest.entityOf(i)
+            if (matches(entity)) add(entity)
+        }
+    }
+
+    private fun matches(entity: EntityId): Boolean {
+        for (array in arrays) {
+            if (entity !in array) return false
+        }
+        return true
+    }
+
+    private fun add(entity: EntityId) {
+        if (size == dense.size) dense = dense.copyOf(size * 2)
+        dense[size] = entity
+        sparse[entity] = size++
+    }
+
+    private fun remove(entity: EntityId) {
+        val index = sparse[entity]
+        val lastIndex = size - 1
+        if (index != lastIndex) {
+            val moved = dense[lastIndex]
+            dense[index] = moved
+            sparse[moved] = index
+        }
+        sparse.remove(entity)
+        size--
+    }
+}
@@ -58,6 +58,11 @@ class ComponentState(components: List<Component> = emptyList()) : ComponentManag
         return components[type] as? T
     }
 
+    fun clear() {
+        components.clear()
+        byName.clear()
+    }
+
     override fun copyTo(componentState: ComponentManager){
         getComponents().forEach { componentState.set(it) }
     }
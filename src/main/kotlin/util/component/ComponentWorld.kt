@@ -9,27 +9,42 @@ import org.lain.engine.storage.PersistentIdComponent
 import org.lain.engine.util.Storage
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentLinkedQueue
-import java.util.concurrent.atomic.AtomicInteger
 
 typealias EntityId = Int
 
+/**
+ * Компонент [component] появился у сущности ([added]) или пропал с неё - снятием или уничтожением сущности.
+ * Вызывается на потоке-владельце сразу после изменения; при уничтожении - пока сущность ещё существует
+ */
+fun interface ComponentStructureListener {
+    fun onChanged(entity: EntityId, component: Component, added: Boolean)
+}
+
 class ComponentWorld(
-    val thread: Thread,
+    thread: Thread,
     val persistentIdToEntity: ConcurrentHashMap<PersistentId, EntityId>,
     val itemStorage: Storage<PersistentId, EngineItem>
-) : MutableComponentAccess, IterationComponentAccess {
+) : MutableComponentAccess, IterationComponentAccess, EntityHandleAccess {
     private val arrays = LinkedHashMap<String, ComponentArray<*>>()
     private val arraysList = ArrayList<ComponentArray<*>>()
     private val savableArrays = HashMap<String, ComponentArray<*>>()
     private val networkingArrays = HashMap<String, ComponentArray<*>>()
-    private val deltaBitMasks = ArrayList<LongArray?>()
+    // Поток-владелец. Может быть перепривязан на время тика мира в отдельном потоке
+    @Volatile
+    var thread: Thread = thread
+        private set
+    private val clock = ChangeClock()
+    private val structureListeners = HashMap<String, ArrayList<ComponentStructureListener>>()
+    private val queryLock = Any()
+
+    // Во время параллельного этапа систем читать и менять компоненты на месте можно с любого потока,
+    // а структурные изменения запрещены до точки синхронизации
+    @Volatile
+    private var parallelPhase = false
+    private val collectBuffer = ComponentState()
 
     // Создание сущностей потокобезопасно. Добавление компонентов - нет
-    private var destroyed = Collections.synchronizedList<Boolean>(mutableListOf())
-    private var freeIndexes = ConcurrentLinkedQueue<EntityId>()
-    private var lastIndex = AtomicInteger()
-    private val entityInstantiationLock = Any()
+    private val entities = EntityAllocator()
 
     init { invalidateComponentArrays(ComponentTypeRegistry.listEntries().map { it.value.type to it.value.meta }) }
 
@@ -52,7 +67,7 @@ class ComponentWorld(
                 networkingArrays.remove(id)
                 savableArrays.remove(id)
 
-                val arr = ComponentArray(arraysList.size, meta, type as ComponentType<Component>)
+                val arr = ComponentArray(arraysList.size, meta, type as ComponentType<Component>, clock)
                 if (type == componentTypeOf(PersistentIdComponent::class)) {
                     arr.onAdded = { component, entity -> persistentIdToEntity[(component as PersistentIdComponent).id] = entity }
                     arr.onRemoved = { component, entity -> persistentIdToEntity.remove((component as PersistentIdComponent).id) }
@@ -73,60 +88,139 @@ class ComponentWorld(
 
                 arrays[id] = arr
                 arraysList += arr
+                if (existingArray != null) rebindQueries(existingArray, arr)
                 if (meta.savable) savableArrays[id] = arr
                 if (meta.networking) networkingArrays[id] = arr
             }
         }
     }
 
-    private fun assertOnThread() {
-        val currentThread = Thread.currentThread()
-        assert(currentThread == thread) { "Invalid thread: ${currentThread.name}. Operations allowed only on ${thread.name} thread" }
+    private fun rebindQueries(old: ComponentArray<*>, new: ComponentArray<*>) {
+        new.queries += old.queries
+        old.queries.forEach { query -> query.rebind(old, new) }
+        old.queries.clear()
+    }
+
+    /**
+     * Возвращает закешированную выборку по сигнатуре компонентов, регистрируя её при первом обращении.
+     * Выборка живёт столько же, сколько мир, и обновляется сама при изменении компонентов
+     */
+    fun query(vararg types: ComponentType<out Component>): ComponentQuery {
+        require(types.isNotEmpty() && types.size <= 5) { "Query signature must contain from 1 to 5 components" }
+        val signature = types.map { getComponentArray(it) }
+        return cachedQuery(
+            signature[0],
+            signature.getOrNull(1),
+            signature.getOrNull(2),
+            signature.getOrNull(3),
+            signature.getOrNull(4)
+        )
+    }
+
+    private fun cachedQuery(
+        a: ComponentArray<*>,
+        b: ComponentArray<*>? = null,
+        c: ComponentArray<*>? = null,
+        d: ComponentArray<*>? = null,
+        e: ComponentArray<*>? = null
+    ): ComponentQuery {
+        // Выборки могут регистрироваться параллельными системами одновременно
+        synchronized(queryLock) {
+            for (i in a.queries.indices) {
+                val query = a.queries[i]
+                if (query.hasSignature(a, b, c, d, e)) return query
+            }
+            val query = ComponentQuery(listOfNotNull(a, b, c, d, e).toTypedArray())
+            query.rebuild()
+            query.arrays.distinct().forEach { it.queries += query }
+            return query
+        }
     }
 
-    override fun markDirty(entity: EntityId, type: ComponentType<out Component>) {
-        getOrCreateEmptyDeltaBitMask(entity).markDirty(getComponentArray(type).idx)
+    /**
+     * Подписывает [listener] на появление и удаление компонентов [type]. Замена компонента на месте не сообщается
+     */
+    fun addStructureListener(type: ComponentType<out Component>, listener: ComponentStructureListener) {
+        structureListeners.getOrPut(type.id) { ArrayList() } += listener
     }
 
-    override fun invalidateStates(entity: EntityId) {
-        clearDirtyMask(entity)
+    private fun notifyStructureChange(entity: EntityId, type: ComponentType<out Component>, component: Component, added: Boolean) {
+        val listeners = structureListeners[type.id] ?: return
+        for (i in listeners.indices) listeners[i].onChanged(entity, component, added)
     }
 
-    fun clearDirtyMask(entity: EntityId) {
-        val bitMask = getNetworkedDeltaBitMask(entity) ?: return
-        for (i in bitMask.indices) {
-            bitMask[i] = 0L
+    /**
+     * Передаёт владение миром текущему потоку на время [block] и возвращает его прежнему владельцу
+     */
+    fun <R> bindToCurrentThread(block: () -> R): R {
+        val owner = thread
+        thread = Thread.currentThread()
+        try {
+            return block()
+        } finally {
+            thread = owner
         }
     }
 
-    fun markDirtyIfBitMaskPreset(entity: EntityId, component: ComponentArray<*>) {
-        getDeltaBitMaskIfPreset(entity)?.markDirty(component.idx)
+    fun <R> parallelPhase(block: () -> R): R {
+        assertOnThread()
+        parallelPhase = true
+        try {
+            return block()
+        } finally {
+            parallelPhase = false
+        }
     }
 
-    private fun LongArray.markDirty(idx: Int) {
-        val longIdx = bitMaskIdxOf(idx)
-        val bitIdx = idx and 63
-        val long = this[longIdx]
-        this[longIdx] = long or (1L shl bitIdx)
+    private fun assertOnThread() {
+        val currentThread = Thread.currentThread()
+        assert(currentThread == thread || parallelPhase) { "Invalid thread: ${currentThread.name}. Operations allowed only on ${thread.name} thread" }
     }
 
-    fun getDeltaBitMaskIfPreset(entity: EntityId): LongArray? {
-        assertOnThread()
-        if (entity !in deltaBitMasks.indices) return null
-        val bitMask = deltaBitMasks[entity] ?: return null
-        return bitMask
+    private fun assertStructuralChangeAllowed() {
+        val currentThread = Thread.currentThread()
+        assert(currentThread == thread && !parallelPhase) { "Structural changes must be deferred to the sync point (thread ${currentThread.name})" }
     }
 
-    fun getNetworkedDeltaBitMask(entityId: EntityId): LongArray? {
+    /**
+     * Текущая версия изменений. Каждая запись компонента через [MutableComponentAccess] помечается этой версией,
+     * а [advanceChangeTick] закрывает её - обычно в конце тика, после синхронизации
+     */
+    val changeTick: Int
+        get() = clock.tick
+
+    fun advanceChangeTick() {
         assertOnThread()
-        if (deltaBitMasks.size <= entityId) return null
-        return deltaBitMasks[entityId]
+        clock.tick++
     }
 
-    fun getOrCreateEmptyDeltaBitMask(entityId: EntityId): LongArray {
-        while(deltaBitMasks.size <= entityId) deltaBitMasks.add(null)
-        return getNetworkedDeltaBitMask(entityId) ?: createBitMask()
-            .also { mask -> deltaBitMasks[entityId] = mask }
+    override fun markDirty(entity: EntityId, type: ComponentType<out Component>) {
+        getComponentArray(type).markChanged(entity)
+    }
+
+    // Версии изменений не нужно сбрасывать: читатель сравнивает их со своей версией
+    override fun invalidateStates(entity: EntityId) {}
+
+    fun isChangedSince(entity: EntityId, type: ComponentType<out Component>, sinceTick: Int): Boolean {
+        return getComponentArray(type).isChangedSince(entity, sinceTick)
+    }
+
+    /**
+     * Обходит сущности, у которых компонент [type] был записан или помечен изменённым начиная с версии [sinceTick]
+     */
+    fun <A : Component> iterateChanged(
+        type: ComponentType<A>,
+        sinceTick: Int,
+        action: MutableComponentAccess.(EntityId, A) -> Unit
+    ) {
+        assertOnThread()
+        val array = getComponentArray(type)
+        if (array.lastChangeTick < sinceTick) return
+        for (i in array.size - 1 downTo 0) {
+            if (i >= array.size) continue
+            if (array.changeTickAt(i) < sinceTick) continue
+            action(array.entityOf(i), array.components[i])
+        }
     }
 
     fun getNetworkedArrays(entityId: EntityId): List<ComponentArray<*>> {
@@ -151,40 +245,52 @@ class ComponentWorld(
         return output
     }
 
-    fun getNetworkedComponents(entityId: EntityId): List<Component> {
-        val output = mutableListOf<Component>()
+    /**
+     * Сетевые компоненты сущности, изменённые начиная с версии [sinceTick]. По умолчанию - все.
+     * Если изменений нет, список не создаётся
+     */
+    fun getNetworkedComponents(entityId: EntityId, sinceTick: Int = 0): List<Component> {
+        var output: MutableList<Component>? = null
         for (arr in networkingArrays.values) {
-            val component = arr.componentOf(entityId)
-            if (component != null && arr.meta.networking) {
-                output += component
-            }
+            if (arr.lastChangeTick < sinceTick) continue
+            val component = arr.componentIfChangedSince(entityId, sinceTick) ?: continue
+            val list = output ?: mutableListOf<Component>().also { output = it }
+            list += component
         }
-        return output
+        return output ?: emptyList()
     }
 
-    // Создаем массив из Long-ов, количество - общее число типов компонентов, делённое на 64 (сколько битов держит один Long)
-    private fun createBitMask() = LongArray((arrays.size + 63) shr 6)
-
-    private fun bitMaskIdxOf(idx: Int) = (idx shr 6)
-
+    /**
+     * Обходит сущности, у которых есть все компоненты из [filters], и передаёт в [action] состояние
+     * с компонентами из массивов, прошедших [statement].
+     * Обход ведётся по самому маленькому массиву фильтра, принадлежность проверяется через разреженный индекс.
+     * Состояние переиспользуется между сущностями - его нельзя сохранять за пределами [action]
+     */
     fun collect(
         filters: List<ComponentType<out Component>>,
-        statement: (ComponentArray<*>) -> Boolean
-    ): List<Pair<EntityId, ComponentState>> {
+        statement: (ComponentArray<*>) -> Boolean,
+        action: (EntityId, ComponentState) -> Unit
+    ) {
         assertOnThread()
         val filterArrays = filters.map { filter -> arrays[filter.id] ?: error("No component filter found for $filter") }
-        val list = mutableListOf<Pair<EntityId, ComponentState>>()
-        loop@ for (entityId in filterArrays.flatMap { it.denseEntities }.toSet()) {
-            filterArrays.forEach { if (entityId !in it.denseEntities) continue@loop }
-            val componentState = ComponentState()
-            list += entityId to componentState
-            for ((id, array) in arrays) {
-                if (!statement(array)) continue
+        val collectedArrays = arrays.values.filter(statement)
+        val driver = filterArrays.minByOrNull { it.size } ?: return
+        val componentState = collectBuffer
+
+        loop@ for (i in driver.size - 1 downTo 0) {
+            if (i >= driver.size) continue
+            val entityId = driver.entityOf(i)
+            for (filter in filterArrays) {
+                if (entityId !in filter) continue@loop
+            }
+            componentState.clear()
+            for (array in collectedArrays) {
                 val component = array.componentOf(entityId) ?: continue
                 componentState.setComponent(array.type as ComponentType<Component>, component)
             }
+            action(entityId, componentState)
         }
-        return list
+        componentState.clear()
     }
 
     // потокобезопасно?
@@ -195,35 +301,43 @@ class ComponentWorld(
     }
 
     // потокобезопасно
-    override fun addEntity(): EntityId = synchronized(entityInstantiationLock) {
-        val idx = freeIndexes.poll() ?: run {
-            destroyed.add(false)
-            lastIndex.getAndIncrement()
-        }
-        destroyed[idx] = false
-        return idx
-    }
+    override fun addEntity(): EntityId = entities.allocate()
 
     // главный поток
     override fun destroy(entity: EntityId) {
+        assertStructuralChangeAllowed()
         require(exists(entity)) { "Entity $entity does not exist" }
+        var removed: MutableList<Pair<ComponentType<out Component>, Component>>? = null
         arrays.forEach { (_, array) ->
             val removedComponent = array.removeComponent(entity)
             if (removedComponent != null && removedComponent is PersistentId) {
                 persistentIdToEntity.remove(removedComponent)
             }
+            if (removedComponent != null && array.type.id in structureListeners) {
+                (removed ?: mutableListOf<Pair<ComponentType<out Component>, Component>>().also { removed = it }) += array.type to removedComponent
+            }
         }
-        freeIndexes.add(entity)
-        destroyed[entity] = true
-        if (entity < deltaBitMasks.size) {
-            deltaBitMasks[entity] = null
-        }
+        removed?.forEach { (type, component) -> notifyStructureChange(entity, type, component, false) }
+        entities.release(entity)
     }
 
     // главный поток
     override fun exists(entity: EntityId): Boolean {
         assertOnThread()
-        return entity < destroyed.size && !destroyed[entity]
+        return entities.isAlive(entity)
+    }
+
+    /**
+     * Дескриптор для ссылок, которые переживают тик: скриптов, отложенных операций, связей между сущностями
+     */
+    override fun handleOf(entity: EntityId): EntityHandle {
+        return EntityHandle(entity, entities.generationOf(entity))
+    }
+
+    fun isAlive(handle: EntityHandle): Boolean = entities.isAlive(handle)
+
+    fun resolve(handle: EntityHandle): EntityId? {
+        return if (entities.isAlive(handle)) handle.entity else null
     }
 
     private inline fun forEachComponent(
@@ -289,7 +403,10 @@ class ComponentWorld(
     override fun <T : Component> setComponentWithType(entity: EntityId, component: T, type: ComponentType<T>) {
         assertOnThread()
         val array = getComponentArray(type)
+        val added = entity !in array
+        if (added) assertStructuralChangeAllowed()
         array.setComponent(entity, component)
+        if (added) notifyStructureChange(entity, type, component, true)
     }
 
     override fun hasComponent(
@@ -302,10 +419,11 @@ class ComponentWorld(
     }
 
     override fun <T : Component> removeComponent(entity: EntityId, type: ComponentType<T>): T? {
-        assertOnThread()
+        assertStructuralChangeAllowed()
         require(exists(entity)) { "Entity $entity does not exist" }
         val array = getComponentArray(type)
         return array.removeComponent(entity)
+            ?.also { notifyStructureChange(entity, type, it, false) }
     }
 
     override fun <T : Component> getComponent(entity: EntityId, type: ComponentType<T>): T? {
@@ -317,13 +435,13 @@ class ComponentWorld(
     override fun <A : Component> iterate1(kclass1: ComponentType<A>, action: MutableComponentAccess.(EntityId, A) -> Unit) {
         assertOnThread()
         val arr1 = getComponentArray(kclass1)
-        for (i in arr1.denseEntities.indices.reversed()) {
-            val entity = arr1.denseEntities[i]
-            val componentA = arr1.componentOf(entity) ?: continue
-            action(entity, componentA)
+        for (i in arr1.size - 1 downTo 0) {
+            if (i >= arr1.size) continue
+            action(arr1.entityOf(i), arr1.components[i])
         }
     }
 
+    @Suppress("UNCHECKED_CAST")
     override fun <A : Component, B : Component> iterate2(
         kclass1: ComponentType<A>,
         kclass2: ComponentType<B>,
@@ -332,16 +450,12 @@ class ComponentWorld(
         assertOnThread()
         val arr1 = getComponentArray(kclass1)
         val arr2 = getComponentArray(kclass2)
-        val smallerArr = listOf(arr1, arr2).minBy { it.components.size }
-
-        for (i in smallerArr.denseEntities.indices.reversed()) {
-            val entity = smallerArr.denseEntities[i]
-            val componentA = arr1.componentOf(entity) ?: continue
-            val componentB = arr2.componentOf(entity) ?: continue
-            action(entity, componentA, componentB)
+        cachedQuery(arr1, arr2).forEach { entity ->
+            action(entity, arr1.componentOf(entity) as A, arr2.componentOf(entity) as B)
         }
     }
 
+    @Suppress("UNCHECKED_CAST")
     override fun <A : Component, B : Component, C : Component> iterate3(
         kclass1: ComponentType<A>,
         kclass2: ComponentType<B>,
@@ -352,17 +466,17 @@ class ComponentWorld(
         val arr1 = getComponentArray(kclass1)
         val arr2 = getComponentArray(kclass2)
         val arr3 = getComponentArray(kclass3)
-        val smallerArr = listOf(arr1, arr2, arr3).minBy { it.components.size }
-
-        for (i in smallerArr.denseEntities.indices.reversed()) {
-            val entity = smallerArr.denseEntities[i]
-            val componentA = arr1.componentOf(entity) ?: continue
-            val componentB = arr2.componentOf(entity) ?: continue
-            val componentC = arr3.componentOf(entity) ?: continue
-            action(entity, componentA, componentB, componentC)
+        cachedQuery(arr1, arr2, arr3).forEach { entity ->
+            action(
+                entity,
+                arr1.componentOf(entity) as A,
+                arr2.componentOf(entity) as B,
+                arr3.componentOf(entity) as C
+            )
         }
     }
 
+    @Suppress("UNCHECKED_CAST")
     override fun <A : Component, B : Component, C : Component, D : Component> iterate4(
         kclass1: ComponentType<A>,
         kclass2: ComponentType<B>,
@@ -375,18 +489,18 @@ class ComponentWorld(
         val arr2 = getComponentArray(kclass2)
         val arr3 = getComponentArray(kclass3)
         val arr4 = getComponentArray(kclass4)
-        val smallerArr = listOf(arr1, arr2, arr3, arr4).minBy { it.components.size }
-
-        for (i in smallerArr.denseEntities.indices.reversed()) {
-            val entity = smallerArr.denseEntities[i]
-            val componentA = arr1.componentOf(entity) ?: continue
-            val componentB = arr2.componentOf(entity) ?: continue
-            val componentC = arr3.componentOf(entity) ?: continue
-            val componentD = arr4.componentOf(entity) ?: continue
-            action(entity, componentA, componentB, componentC, componentD)
+        cachedQuery(arr1, arr2, arr3, arr4).forEach { entity ->
+            action(
+                entity,
+                arr1.componentOf(entity) as A,
+                arr2.componentOf(entity) as B,
+                arr3.componentOf(entity) as C,
+                arr4.componentOf(entity) as D
+            )
         }
     }
 
+    @Suppress("UNCHECKED_CAST")
     override fun <A : Component, B : Component, C : Component, D : Component, E : Component> iterate5(
         kclass1: ComponentType<A>,
         kclass2: ComponentType<B>,
@@ -401,16 +515,15 @@ class ComponentWorld(
         val arr3 = getComponentArray(kclass3)
         val arr4 = getComponentArray(kclass4)
         val arr5 = getComponentArray(kclass5)
-        val smallerArr = listOf(arr1, arr2, arr3, arr4, arr5).minBy { it.components.size }
-
-        for (i in smallerArr.denseEntities.indices.reversed()) {
-            val entity = smallerArr.denseEntities[i]
-            val componentA = arr1.componentOf(entity) ?: continue
-            val componentB = arr2.componentOf(entity) ?: continue
-            val componentC = arr3.componentOf(entity) ?: continue
-            val componentD = arr4.componentOf(entity) ?: continue
-            val componentE = arr5.componentOf(entity) ?: continue
-            action(entity, componentA, componentB, componentC, componentD, componentE)
+        cachedQuery(arr1, arr2, arr3, arr4, arr5).forEach { entity ->
+            action(
+                entity,
+                arr1.componentOf(entity) as A,
+                arr2.componentOf(entity) as B,
+                arr3.componentOf(entity) as C,
+                arr4.componentOf(entity) as D,
+                arr5.componentOf(entity) as E
+            )
         }
     }
 }
@@ -422,17 +535,30 @@ class ComponentArray<T : Component>(
     val idx: Int,
     val meta: ComponentMeta,
     val type: ComponentType<T>,
+    private val clock: ChangeClock = ChangeClock(),
     var onAdded: ((T, EntityId) -> Unit)? = null,
     var onRemoved: ((T, EntityId) -> Unit)? = null
 ) {
-    internal val sparseArray = mutableListOf<Int?>()
-    internal val denseEntities = mutableListOf<EntityId>()
-    internal val denseArray = mutableListOf<T>()
-    val components
+    private val sparse = PagedSparseIndex()
+    private var denseEntities = IntArray(16)
+    private val denseArray = ArrayList<T>()
+    // Версия последней записи компонента, параллельно denseArray
+    private var changeTicks = IntArray(16)
+    var lastChangeTick = 0
+        private set
+    // Выборки, в сигнатуру которых входит этот массив
+    internal val queries = ArrayList<ComponentQuery>()
+    val components: List<T>
         get() = denseArray
+    val size
+        get() = denseArray.size
 
     fun entityOf(componentIdx: Int) = denseEntities[componentIdx]
 
+    operator fun contains(entityId: EntityId): Boolean {
+        return entityId in sparse
+    }
+
     fun getOrSet(entityId: EntityId, factory: () -> T): T {
         val component = componentOf(entityId)
         if (component != null) {
@@ -446,41 +572,72 @@ class ComponentArray<T : Component>(
 
     fun componentOf(entityId: EntityId): T? {
         // А есть ли такая сущность вообще? Не удален ли у нее компонент?
-        val sparseArrayIndex = sparseArray.getOrNull(entityId) ?: return null
-        return denseArray[sparseArrayIndex]
+        val denseIndex = sparse[entityId]
+        if (denseIndex == PagedSparseIndex.ABSENT) return null
+        return denseArray[denseIndex]
+    }
+
+    fun changeTickAt(componentIdx: Int) = changeTicks[componentIdx]
+
+    fun isChangedSince(entityId: EntityId, sinceTick: Int): Boolean {
+        val denseIndex = sparse[entityId]
+        return denseIndex != PagedSparseIndex.ABSENT && changeTicks[denseIndex] >= sinceTick
+    }
+
+    fun componentIfChangedSince(entityId: EntityId, sinceTick: Int): T? {
+        val denseIndex = sparse[entityId]
+        if (denseIndex == PagedSparseIndex.ABSENT || changeTicks[denseIndex] < sinceTick) return null
+        return denseArray[denseIndex]
+    }
+
+    fun markChanged(entityId: EntityId) {
+        val denseIndex = sparse[entityId]
+        if (denseIndex == PagedSparseIndex.ABSENT) return
+        changeTicks[denseIndex] = clock.tick
+        lastChangeTick = clock.tick
     }
 
     fun setComponent(entityId: EntityId, component: T) {
-        while(sparseArray.size <= entityId) sparseArray.add(null)
-        val denseIndex = sparseArray[entityId] ?: run {
+        val denseIndex = sparse[entityId]
+        if (denseIndex != PagedSparseIndex.ABSENT) {
+            denseArray[denseIndex] = component
+            changeTicks[denseIndex] = clock.tick
+        } else {
+            val newIndex = denseArray.size
+            if (newIndex == denseEntities.size) {
+                denseEntities = denseEntities.copyOf(newIndex * 2)
+                changeTicks = changeTicks.copyOf(newIndex * 2)
+            }
+            denseEntities[newIndex] = entityId
+            changeTicks[newIndex] = clock.tick
             denseArray.add(component)
-            denseEntities.add(entityId)
-            denseArray.lastIndex
+            sparse[entityId] = newIndex
+            for (i in queries.indices) queries[i].onComponentAdded(entityId)
         }
-        denseArray[denseIndex] = component
-        sparseArray[entityId] = denseIndex
+        lastChangeTick = clock.tick
         onAdded?.invoke(component, entityId)
     }
 
     fun removeComponent(entityId: EntityId): T? {
-        val denseIndex = sparseArray.getOrNull(entityId) ?: return null
+        val denseIndex = sparse[entityId]
+        if (denseIndex == PagedSparseIndex.ABSENT) return null
         val lastIndex = denseArray.lastIndex
 
         val removedComponent = denseArray[denseIndex]
 
         if (denseIndex != lastIndex) {
+            val movedEntity = denseEntities[lastIndex]
             denseArray[denseIndex] = denseArray[lastIndex]
-            denseEntities[denseIndex] = denseEntities[lastIndex]
-
-            val movedEntity = denseEntities[denseIndex]
-            sparseArray[movedEntity] = denseIndex
+            denseEntities[denseIndex] = movedEntity
+            changeTicks[denseIndex] = changeTicks[lastIndex]
+            sparse[movedEntity] = denseIndex
         }
 
         denseArray.removeAt(lastIndex)
-        denseEntities.removeAt(lastIndex)
-        sparseArray[entityId] = null
+        sparse.remove(entityId)
 
+        for (i in queries.indices) queries[i].onComponentRemoved(entityId)
         onRemoved?.invoke(removedComponent, entityId)
         return removedComponent
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,120 @@
+package org.lain.engine.util.component
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Долгоживущая ссылка на сущность: индекс в младших 32 битах и поколение в старших.
+ * Индекс переиспользуется после уничтожения сущности, а поколение - нет,
+ * поэтому устаревший дескриптор не указывает на новую сущность с тем же индексом
+ */
+@JvmInline
+value class EntityHandle(val packed: Long) {
+    constructor(entity: EntityId, generation: Int) : this((generation.toLong() shl 32) or (entity.toLong() and 0xFFFFFFFFL))
+
+    val entity: EntityId get() = packed.toInt()
+    val generation: Int get() = (packed ushr 32).toInt()
+
+    override fun toString(): String = "$entity#$generation"
+
+    companion object {
+        val NONE = EntityHandle(-1L)
+    }
+}
+
+/**
+ * Выдача дескрипторов живым сущностям. Нужна там, где связь сохраняется в компоненте
+ */
+interface EntityHandleAccess {
+    fun handleOf(entity: EntityId): EntityHandle
+}
+
+/**
+ * Выдаёт индексы сущностей без блокировок. Состояние слота хранится в примитивных страницах:
+ * поколение, сдвинутое на бит, и флаг жизни в младшем бите.
+ * Освобождённые индексы складываются в стек Трайбера, вершина которого помечена счётчиком от ABA.
+ *
+ * [allocate] потокобезопасен (сущности создают асинхронные загрузчики),
+ * [release] вызывается только потоком-владельцем мира, [isAlive] на потоке-владельце не синхронизируется
+ */
+class EntityAllocator {
+    private class Page {
+        val states = IntArray(PAGE_SIZE)
+        // Следующий свободный индекс + 1, 0 - конец списка
+        val links = IntArray(PAGE_SIZE)
+    }
+
+    private val pages = AtomicReferenceArray<Page?>(MAX_PAGES)
+    private val lastIndex = AtomicInteger()
+    // (метка shl 32) or (индекс + 1)
+    private val freeHead = AtomicLong()
+
+    fun allocate(): EntityId {
+        while (true) {
+            val head = freeHead.get()
+            val top = (head and 0xFFFFFFFFL).toInt() - 1
+            if (top < 0) break
+            val next = page(top).links[top and PAGE_MASK]
+            if (freeHead.compareAndSet(head, nextHead(head, next))) {
+                val states = page(top).states
+                states[top and PAGE_MASK] = states[top and PAGE_MASK] or ALIVE
+                return top
+            }
+        }
+        val index = lastIndex.getAndIncrement()
+        check(index < MAX_PAGES * PAGE_SIZE) { "Entity limit exceeded" }
+        val page = ensurePage(index)
+        page.states[index and PAGE_MASK] = ALIVE
+        return index
+    }
+
+    fun release(entity: EntityId) {
+        val page = page(entity)
+        val slot = entity and PAGE_MASK
+        // Следующее поколение, сущность мертва
+        page.states[slot] = ((page.states[slot] ushr 1) + 1) shl 1
+        while (true) {
+            val head = freeHead.get()
+            page.links[slot] = (head and 0xFFFFFFFFL).toInt()
+            if (freeHead.compareAndSet(head, nextHead(head, entity + 1))) return
+        }
+    }
+
+    fun isAlive(entity: EntityId): Boolean {
+        if (entity < 0 || entity >= MAX_PAGES * PAGE_SIZE) return false
+        val page = pages.getPlain(entity ushr PAGE_SHIFT) ?: return false
+        return page.states[entity and PAGE_MASK] and ALIVE != 0
+    }
+
+    fun isAlive(handle: EntityHandle): Boolean {
+        return isAlive(handle.entity) && generationOf(handle.entity) == handle.generation
+    }
+
+    fun generationOf(entity: EntityId): Int {
+        val page = pages.getPlain(entity ushr PAGE_SHIFT) ?: return 0
+        return page.states[entity and PAGE_MASK] ushr 1
+    }
+
+    private fun page(index: Int): Page = pages.get(index ushr PAGE_SHIFT)!!
+
+    private fun ensurePage(index: Int): Page {
+        val pageIndex = index ushr PAGE_SHIFT
+        pages.get(pageIndex)?.let { return it }
+        pages.compareAndSet(pageIndex, null, Page())
+        return pages.get(pageIndex)!!
+    }
+
+    private fun nextHead(head: Long, link: Int): Long {
+        val tag = (head ushr 32) + 1
+        return (tag shl 32) or (link.toLong() and 0xFFFFFFFFL)
+    }
+
+    companion object {
+        private const val PAGE_SHIFT = 10
+        private const val PAGE_SIZE = 1 shl PAGE_SHIFT
+        private const val PAGE_MASK = PAGE_SIZE - 1
+        private const val MAX_PAGES = 1 shl 14
+        private const val ALIVE = 1
+    }
+}
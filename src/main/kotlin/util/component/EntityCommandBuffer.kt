@@ -8,7 +8,7 @@ import org.lain.engine.world.World
 class EntityCommandBuffer(
     private val world: World,
     private val commands: MutableList<(WriteComponentAccess) -> Unit> = mutableListOf(),
-) : WriteComponentAccess {
+) : WriteComponentAccess, EntityHandleAccess {
 
     fun schedule(statement: WriteComponentAccess.() -> Unit) {
         commands.add(statement)
@@ -55,6 +55,9 @@ class EntityCommandBuffer(
         return entity
     }
 
+    // Сущности буфера выделяются сразу, поэтому поколение уже известно
+    override fun handleOf(entity: EntityId): EntityHandle = world.componentManager.handleOf(entity)
+
     fun apply(world: WriteComponentAccess) {
         commands.forEach { it(world) }
         commands.clear()
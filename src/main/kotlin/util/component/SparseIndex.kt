@@ -0,0 +1,45 @@
+package org.lain.engine.util.component
+
+/**
+ * Разреженный индекс `сущность -> позиция в плотном массиве` на примитивных страницах.
+ * Страницы выделяются лениво при первой записи, отсутствие записи помечается [ABSENT], поэтому чтение не упаковывает `Int`
+ */
+class PagedSparseIndex {
+    private var pages = arrayOfNulls<IntArray>(16)
+
+    operator fun get(entity: EntityId): Int {
+        val pageIdx = entity ushr PAGE_SHIFT
+        if (pageIdx >= pages.size) return ABSENT
+        val page = pages[pageIdx] ?: return ABSENT
+        return page[entity and PAGE_MASK]
+    }
+
+    operator fun set(entity: EntityId, index: Int) {
+        val pageIdx = entity ushr PAGE_SHIFT
+        if (pageIdx >= pages.size) {
+            pages = pages.copyOf(maxOf(pageIdx + 1, pages.size * 2))
+        }
+        val page = pages[pageIdx] ?: IntArray(PAGE_SIZE).also {
+            it.fill(ABSENT)
+            pages[pageIdx] = it
+        }
+        page[entity and PAGE_MASK] = index
+    }
+
+    fun remove(entity: EntityId) {
+        val pageIdx = entity ushr PAGE_SHIFT
+        if (pageIdx >= pages.size) return
+        val page = pages[pageIdx] ?: return
+        page[entity and PAGE_MASK] = ABSENT
+    }
+
+    operator fun contains(entity: EntityId) = get(entity) != ABSENT
+
+    companion object {
+        const val ABSENT = -1
+        // 1024 записи на страницу - 4 КБ
+        private const val PAGE_SHIFT = 10
+        private const val PAGE_SIZE = 1 shl PAGE_SHIFT
+        private const val PAGE_MASK = PAGE_SIZE - 1
+    }
+}
@@ -194,7 +194,9 @@ fun EngineMinecraftServer.applyConfig(config: ServerConfig) {
             ),
             chatSettings,
             config.requireIdenticalNamespaces,
-            config.player.spectateOnJoin
+            config.player.spectateOnJoin,
+            config.parallelWorldTicks,
+            config.outboundBytesPerTick
         )
     }
 
@@ -13,6 +13,8 @@ data class ServerConfig(
     val vocal: VoiceApparatusConfig,
     val movement: MovementConfig,
     @SerialName("item_autosave_period") val itemAutosavePeriod: Int, // в секундах
+    @SerialName("parallel_world_ticks") val parallelWorldTicks: Boolean = false,
+    @SerialName("outbound_bytes_per_tick") val outboundBytesPerTick: Int = 128 * 1024, // на игрока
 )
 
 
@@ -68,11 +68,23 @@ fun roundToInt(float: Float): Int = round(float).toInt()
 
 fun roundToInt(double: Double): Int = round(double).toInt()
 
+/**
+ * Игроки мира в радиусе [radius]. Ищутся через пространственный индекс мира, результат складывается в [out]
+ */
 fun filterNearestPlayers(
     world: World,
     pos: Pos,
     radius: Int,
-    players: List<EnginePlayer> = world.players
+    out: MutableList<EnginePlayer> = ArrayList()
+): MutableList<EnginePlayer> {
+    return world.playerIndex.queryRadius(pos, radius.toFloat(), out)
+}
+
+fun filterNearestPlayers(
+    world: World,
+    pos: Pos,
+    radius: Int,
+    players: List<EnginePlayer>
 ): List<EnginePlayer> {
     return players.filter {
         val l = it.get<Location>() ?: return@filter false
@@ -3,7 +3,6 @@ package org.lain.engine.world
 import kotlinx.serialization.Serializable
 import org.lain.cyberia.ecs.Component
 import org.lain.cyberia.ecs.EntityId
-import org.lain.cyberia.ecs.iterate
 import org.lain.engine.player.EnginePlayer
 import org.lain.engine.server.ServerHandler
 import org.lain.engine.storage.ComponentLoadSettings
@@ -19,6 +18,16 @@ data class EngineChunk(
     val hints: MutableMap<VoxelPos, Hint> = mutableMapOf(),
     val dynamicVoxels: MutableMap<VoxelPos, EntityId> = mutableMapOf()
 ) {
+    /**
+     * Сжатый пакет чанка для клиентов. Сбрасывается при любом изменении декалей и описаний
+     */
+    @Volatile
+    var payload: ByteArray? = null
+
+    fun invalidatePayload() {
+        payload = null
+    }
+
     fun isEmpty() = decals.isEmpty() && hints.isEmpty() && dynamicVoxels.isEmpty()
 
     fun getOrCreateBlockHint(pos: VoxelPos) = hints.computeIfAbsent(pos) {
@@ -112,6 +121,7 @@ class ChunkStorage(
         val chunk = getChunkByVoxel(pos.x, pos.z) ?: return null
         val hint = chunk.hints.remove(pos)
         chunk.decals.remove(pos)
+        chunk.invalidatePayload()
         return chunk.dynamicVoxels.remove(pos)
             ?.also {
                 world.destroy(it)
@@ -223,7 +233,7 @@ fun World.singleBlockVoxelEvent(voxelPos: VoxelPos, updates: VoxelUpdate) {
     voxelEvent(EngineChunkPos(voxelPos), updates, VoxelEvent.Selector.Single(ImmutableVoxelPos(voxelPos)))
 }
 
-fun World.updateVoxelEvents(handler: ServerHandler?) = iterate<VoxelEvent> { _, event ->
+fun World.updateVoxelEvents(handler: ServerHandler?) = iterateEvents<VoxelEvent> { event ->
     val chunkPos = event.chunkPos
     val chunk = chunkStorage.requireChunk(chunkPos)
     val positions = event.positions
@@ -267,6 +277,8 @@ fun World.updateVoxelEvents(handler: ServerHandler?) = iterate<VoxelEvent> { _,
         }
     }
 
+    chunk.invalidatePayload()
+
     handler?.onVoxelEvent(
         this@updateVoxelEvents,
         event,
@@ -0,0 +1,52 @@
+package org.lain.engine.world
+
+import org.lain.cyberia.ecs.Component
+import org.lain.cyberia.ecs.ComponentType
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Канал событий одного типа. Событие видно читателям до конца тика, в котором создано.
+ * Буфер очищается в конце тика и переиспользуется, сущности под события не создаются.
+ * Как и компоненты, канал принадлежит потоку мира
+ */
+class EventChannel<T : Component> {
+    private val current = ArrayList<T>()
+
+    val size: Int get() = current.size
+
+    fun isEmpty(): Boolean = current.isEmpty()
+
+    operator fun get(index: Int): T = current[index]
+
+    fun emit(event: T) {
+        current += event
+    }
+
+    /**
+     * События, созданные во время обхода, тоже будут обработаны
+     */
+    inline fun forEach(action: (T) -> Unit) {
+        var i = 0
+        while (i < size) {
+            action(get(i))
+            i++
+        }
+    }
+
+    internal fun clear() {
+        current.clear()
+    }
+}
+
+class EventChannels {
+    private val channels = ConcurrentHashMap<String, EventChannel<*>>()
+
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Component> channel(type: ComponentType<T>): EventChannel<T> {
+        return channels.computeIfAbsent(type.id) { EventChannel<T>() } as EventChannel<T>
+    }
+
+    fun clear() {
+        channels.values.forEach { it.clear() }
+    }
+}
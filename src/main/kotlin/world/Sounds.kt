@@ -3,7 +3,6 @@ package org.lain.engine.world
 import kotlinx.serialization.Serializable
 import org.lain.cyberia.ecs.Component
 import org.lain.cyberia.ecs.getComponent
-import org.lain.cyberia.ecs.iterate
 import org.lain.engine.item.EngineItem
 import org.lain.engine.item.ItemSounds
 import org.lain.engine.player.EnginePlayer
@@ -100,7 +99,7 @@ fun processWorldSounds(
     world: World
 ): List<SoundBroadcast> {
     val broadcasts = mutableListOf<SoundBroadcast>()
-    world.iterate<WorldSoundPlayRequest> { _, request ->
+    world.iterateEvents<WorldSoundPlayRequest> { request ->
         var players = world.players.toList()
         var context: SoundContext? = null
         val play = when(request) {
@@ -0,0 +1,194 @@
+package org.lain.engine.world
+
+import org.lain.engine.util.math.Pos
+import org.lain.engine.util.math.floorToInt
+
+/**
+ * Равномерная сетка по горизонтали (колонки [cellSize]x[cellSize] блоков) для поиска элементов рядом с точкой.
+ * Позиции читаются через [position] - обычно это изменяемый на месте [Location], поэтому индекс
+ * обновляется раз в тик через [refresh]: элемент переезжает в другую ячейку только если сменил её.
+ *
+ * Запись - только в [refresh], [update] и [remove], на потоке-владельце мира. Вне обновления [update] и [remove]
+ * вызываются, когда элемент появляется или исчезает посреди тика. Запросы без записи можно делать с любого потока,
+ * а результат складывается в переданный буфер, чтобы не выделять списки на каждый вызов.
+ * Переезды между ячейками, появление и удаление элементов сообщаются слушателям [addMigrationListener]
+ */
+class SpatialIndex<T : Any>(
+    private val cellSize: Int = DEFAULT_CELL_SIZE,
+    private val position: (T) -> Pos?
+) {
+    @PublishedApi
+    internal class Entry<T>(val element: T) {
+        var cell = 0L
+        var stamp = 0
+    }
+
+    private val entries = HashMap<T, Entry<T>>()
+    private val cells = HashMap<Long, ArrayList<Entry<T>>>()
+    private val swept = ArrayList<Entry<T>>()
+    private val listeners = ArrayList<MigrationListener<T>>()
+    private var stamp = 0
+
+    /**
+     * @param from ячейка, которую элемент покинул, или [NO_CELL] для нового элемента
+     * @param to новая ячейка элемента или [NO_CELL], если он удалён из индекса
+     */
+    fun interface MigrationListener<T> {
+        fun onMigrate(element: T, from: Long, to: Long)
+    }
+
+    val size: Int get() = entries.size
+
+    fun addMigrationListener(listener: MigrationListener<T>) {
+        listeners += listener
+    }
+
+    fun refresh(elements: Iterable<T>) {
+        beginRefresh()
+        elements.forEach { update(it) }
+        endRefresh()
+    }
+
+    fun beginRefresh() {
+        stamp++
+    }
+
+    fun update(element: T) {
+        val pos = position(element) ?: return
+        val cell = cellOf(pos)
+        val entry = entries[element]
+        if (entry == null) {
+            val newEntry = Entry(element)
+            newEntry.cell = cell
+            newEntry.stamp = stamp
+            entries[element] = newEntry
+            cells.getOrPut(cell) { ArrayList() } += newEntry
+            notifyMigration(element, NO_CELL, cell)
+            return
+        }
+        entry.stamp = stamp
+        if (entry.cell != cell) {
+            val previous = entry.cell
+            removeFromCell(entry)
+            entry.cell = cell
+            cells.getOrPut(cell) { ArrayList() } += entry
+            notifyMigration(element, previous, cell)
+        }
+    }
+
+    fun remove(element: T) {
+        val entry = entries.remove(element) ?: return
+        removeFromCell(entry)
+        notifyMigration(element, entry.cell, NO_CELL)
+    }
+
+    /**
+     * Удаляет элементы, которые не были обновлены с последнего [beginRefresh]
+     */
+    fun endRefresh() {
+        for (entry in entries.values) {
+            if (entry.stamp != stamp) swept += entry
+        }
+        for (entry in swept) {
+            entries.remove(entry.element)
+            removeFromCell(entry)
+            notifyMigration(entry.element, entry.cell, NO_CELL)
+        }
+        swept.clear()
+    }
+
+    fun clear() {
+        entries.clear()
+        cells.clear()
+    }
+
+    fun cellOf(pos: Pos): Long = cellKey(cellCoordinate(pos.x), cellCoordinate(pos.z))
+
+    inline fun forEachInCell(cell: Long, action: (T) -> Unit) {
+        val elements = cellElements(cell) ?: return
+        for (i in elements.indices) action(elements[i].element)
+    }
+
+    @PublishedApi
+    internal fun cellElements(cell: Long): List<Entry<T>>? = cells[cell]
+
+    /**
+     * Элементы в сфере радиусом [radius] вокруг [center]
+     */
+    fun queryRadius(center: Pos, radius: Float, out: MutableList<T>): MutableList<T> {
+        val squaredRadius = radius * radius
+        forEachInCells(center.x - radius, center.z - radius, center.x + radius, center.z + radius) { element, pos ->
+            val dx = pos.x - center.x
+            val dy = pos.y - center.y
+            val dz = pos.z - center.z
+            if (dx * dx + dy * dy + dz * dz <= squaredRadius) out += element
+        }
+        return out
+    }
+
+    fun queryBox(
+        minX: Float, minY: Float, minZ: Float,
+        maxX: Float, maxY: Float, maxZ: Float,
+        out: MutableList<T>
+    ): MutableList<T> {
+        forEachInCells(minX, minZ, maxX, maxZ) { element, pos ->
+            if (pos.x in minX..maxX && pos.y in minY..maxY && pos.z in minZ..maxZ) out += element
+        }
+        return out
+    }
+
+    private inline fun forEachInCells(minX: Float, minZ: Float, maxX: Float, maxZ: Float, action: (T, Pos) -> Unit) {
+        val minCellX = cellCoordinate(minX)
+        val minCellZ = cellCoordinate(minZ)
+        val maxCellX = cellCoordinate(maxX)
+        val maxCellZ = cellCoordinate(maxZ)
+        // Для большого радиуса дешевле пройти по занятым ячейкам, чем перебирать пустые
+        if ((maxCellX - minCellX + 1).toLong() * (maxCellZ - minCellZ + 1) > cells.size) {
+            for (cell in cells.values) {
+                for (i in cell.indices) {
+                    val element = cell[i].element
+                    val pos = position(element) ?: continue
+                    action(element, pos)
+                }
+            }
+            return
+        }
+        for (cellX in minCellX..maxCellX) {
+            for (cellZ in minCellZ..maxCellZ) {
+                val cell = cells[cellKey(cellX, cellZ)] ?: continue
+                for (i in cell.indices) {
+                    val element = cell[i].element
+                    val pos = position(element) ?: continue
+                    action(element, pos)
+                }
+            }
+        }
+    }
+
+    private fun removeFromCell(entry: Entry<T>) {
+        val cell = cells[entry.cell] ?: return
+        val index = cell.indexOf(entry)
+        if (index == -1) return
+        // Порядок внутри ячейки не важен
+        cell[index] = cell[cell.lastIndex]
+        cell.removeAt(cell.lastIndex)
+        if (cell.isEmpty()) cells.remove(entry.cell)
+    }
+
+    private fun cellCoordinate(coordinate: Float): Int = Math.floorDiv(floorToInt(coordinate), cellSize)
+
+    private fun notifyMigration(element: T, from: Long, to: Long) {
+        for (i in listeners.indices) listeners[i].onMigrate(element, from, to)
+    }
+
+    companion object {
+        const val DEFAULT_CELL_SIZE = 16
+        const val NO_CELL = Long.MIN_VALUE
+
+        fun cellKey(x: Int, z: Int): Long = (x.toLong() shl 32) or (z.toLong() and 0xFFFFFFFFL)
+
+        fun cellX(cell: Long): Int = (cell shr 32).toInt()
+
+        fun cellZ(cell: Long): Int = cell.toInt()
+    }
+}
@@ -4,6 +4,7 @@ import org.lain.cyberia.ecs.*
 import org.lain.engine.item.EngineItem
 import org.lain.engine.item.ItemStorage
 import org.lain.engine.player.EnginePlayer
+import org.lain.engine.player.Player
 import org.lain.engine.script.Callbacks
 import org.lain.engine.script.NamespacedStorageAccess
 import org.lain.engine.script.ScriptComponentType
@@ -12,6 +13,7 @@ import org.lain.engine.storage.ComponentLoadSettings
 import org.lain.engine.storage.PersistentId
 import org.lain.engine.util.Storage
 import org.lain.engine.util.component.ComponentWorld
+import org.lain.engine.util.component.EntityHandleAccess
 import org.lain.engine.util.component.EntityId
 import org.lain.engine.util.component.Networked
 import java.util.concurrent.ConcurrentHashMap
@@ -37,12 +39,49 @@ class World(
     thread: Thread,
     val componentManager: ComponentWorld = ComponentWorld(thread, persistentIdToEntity, itemStorage),
     val state: EntityId = componentManager.addWorldStateEntity(),
-) : MutableComponentAccess by componentManager, IterationComponentAccess by componentManager {
+) : MutableComponentAccess by componentManager, IterationComponentAccess by componentManager, EntityHandleAccess by componentManager {
     private val scriptContext = ScriptContext.World(this)
-    val componentLoadSettings = ComponentLoadSettings(itemStorage, namespacedStorage, persistentIdToEntity, true)
+    val componentLoadSettings = ComponentLoadSettings(itemStorage, namespacedStorage, persistentIdToEntity, true, componentManager)
     val chunkStorage: ChunkStorage = ChunkStorage(this, componentLoadSettings)
+    val events = EventChannels()
+    val playerIndex = SpatialIndex<EnginePlayer> { it.get<Location>()?.position }
+    val networkedEntityIndex = SpatialIndex<EntityId> { componentManager.getComponent(it, LOCATION_TYPE)?.position }
+    val dynamicVoxelIndex = SpatialIndex<EntityId> { componentManager.getComponent(it, CHUNKED_POS_TYPE)?.centerPos }
     var ticks = 0L
 
+    init {
+        // Индексы следят за составом сразу, а не только в refreshSpatialIndex: уничтоженная посреди тика
+        // сущность не должна оставаться в индексе и подписках, а созданная - ждать следующего тика
+        componentManager.addStructureListener(NETWORKED_TYPE) { entity, _, _ -> updateIndexMembership(entity) }
+        componentManager.addStructureListener(LOCATION_TYPE) { entity, _, _ -> updateNetworkedEntityMembership(entity) }
+        componentManager.addStructureListener(DYNAMIC_VOXEL_INTEREST_TYPE) { entity, _, _ -> updateDynamicVoxelMembership(entity) }
+        componentManager.addStructureListener(CHUNKED_POS_TYPE) { entity, _, _ -> updateDynamicVoxelMembership(entity) }
+        componentManager.addStructureListener(PLAYER_TYPE) { _, component, added ->
+            if (!added) playerIndex.remove((component as Player).obj)
+        }
+    }
+
+    private fun updateIndexMembership(entity: EntityId) {
+        updateNetworkedEntityMembership(entity)
+        updateDynamicVoxelMembership(entity)
+    }
+
+    private fun updateNetworkedEntityMembership(entity: EntityId) {
+        if (hasComponent(entity, NETWORKED_TYPE) && hasComponent(entity, LOCATION_TYPE)) {
+            networkedEntityIndex.update(entity)
+        } else {
+            networkedEntityIndex.remove(entity)
+        }
+    }
+
+    private fun updateDynamicVoxelMembership(entity: EntityId) {
+        if (hasComponent(entity, NETWORKED_TYPE) && hasComponent(entity, DYNAMIC_VOXEL_INTEREST_TYPE) && hasComponent(entity, CHUNKED_POS_TYPE)) {
+            dynamicVoxelIndex.update(entity)
+        } else {
+            dynamicVoxelIndex.remove(entity)
+        }
+    }
+
 
     fun tickCallbacks(callbacks: Callbacks) {
         callbacks.worldTick.execute(scriptContext)
@@ -52,15 +91,44 @@ class World(
         ticks++
     }
 
+    /**
+     * Переносит игроков, сетевые сущности и сетевые динамические воксели по ячейкам пространственных индексов. Вызывается раз в тик,
+     * после того как позиции получены от платформы
+     */
+    fun refreshSpatialIndex() {
+        playerIndex.refresh(players)
+        networkedEntityIndex.beginRefresh()
+        componentManager.query(NETWORKED_TYPE, LOCATION_TYPE).forEach { networkedEntityIndex.update(it) }
+        networkedEntityIndex.endRefresh()
+        dynamicVoxelIndex.beginRefresh()
+        componentManager.query(NETWORKED_TYPE, DYNAMIC_VOXEL_INTEREST_TYPE, CHUNKED_POS_TYPE).forEach { dynamicVoxelIndex.update(it) }
+        dynamicVoxelIndex.endRefresh()
+    }
+
     fun registerScriptComponents(components: List<ScriptComponentType>) {
         componentManager.invalidateComponentArrays(components.map { it to it.meta })
     }
 
     /**
-     * Создает сущность с компонентами `event` и Event. Следует использовать как альтернативу очередям событий.
-     * Последний сигнализирует о том, что сущность нужно уничтожить в конце тика
+     * Публикует событие в канал его типа. Событие доступно системам до конца тика
      */
-    inline fun <reified T : Component> emitEvent(event: T, type: ComponentType<T>, networked: Boolean = false): EntityId {
+    fun <T : Component> emitEvent(event: T, type: ComponentType<T>) {
+        events.channel(type).emit(event)
+    }
+
+    inline fun <reified T : Component> emitEvent(event: T) {
+        emitEvent(event, componentTypeOf(T::class))
+    }
+
+    inline fun <reified T : Component> iterateEvents(action: (T) -> Unit) {
+        events.channel(componentTypeOf(T::class)).forEach(action)
+    }
+
+    /**
+     * Создает сущность с компонентами `event` и Event, а если `networked` - ещё и Networked, чтобы событие
+     * синхронизировалось с клиентами. Нужна скриптам, которым событие нужно как сущность; уничтожается в конце тика
+     */
+    fun <T : Component> emitEntityEvent(event: T, type: ComponentType<T>, networked: Boolean): EntityId {
         return componentManager.addEntity {
             setComponent(event, type)
             setComponent(Event)
@@ -68,15 +136,18 @@ class World(
         }
     }
 
-    inline fun <reified T : Component> emitEvent(event: T): EntityId {
-        return emitEvent(event, componentTypeOf(T::class))
-    }
-
     fun clearEvents() {
+        events.clear()
         componentManager.iterate<Event> { entity, _ -> entity.destroy() }
     }
 }
 
+private val LOCATION_TYPE by lazy { componentTypeOf(Location::class) }
+private val NETWORKED_TYPE by lazy { componentTypeOf(Networked::class) }
+private val DYNAMIC_VOXEL_INTEREST_TYPE by lazy { componentTypeOf(DynamicVoxelInterest::class) }
+private val CHUNKED_POS_TYPE by lazy { componentTypeOf(ChunkedPos::class) }
+private val PLAYER_TYPE by lazy { componentTypeOf(Player::class) }
+
 fun world(
     id: WorldId,
     thread: Thread,
@@ -19,6 +19,7 @@ end
 ---@field set_dynamic_voxel fun(self: World, voxel_pos: number[], networked: boolean): Entity
 ---@field get_dynamic_voxel fun(self: World, voxel_pos: number[]): Entity?
 ---@field emit fun(self: World, event: Component, networked: boolean?): Entity
+---@field publish fun(self: World, event: Component)
 World = World
 worlds = worlds
 
@@ -0,0 +1,83 @@
+package org.lain.engine.test
+
+import org.lain.engine.chat.acoustic.AcousticGeneration
+import org.lain.engine.chat.acoustic.AcousticView
+import org.lain.engine.chat.acoustic.Grid3f
+import org.lain.engine.chat.acoustic.NEIGHBOURS_VON_NEUMANN
+import org.lain.engine.chat.acoustic.simulateDijkstra
+import kotlin.math.abs
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertTrue
+
+class AcousticPropagationTest : EngineTest() {
+    private fun randomScene(size: Int, random: Random): AcousticView {
+        val passability = Grid3f(size, size, size) {
+            when (random.nextInt(4)) {
+                0 -> 0f
+                1 -> random.nextFloat()
+                else -> 1f
+            }
+        }
+        return object : AcousticView {
+            override fun getPassability(x: Int, y: Int, z: Int): Float = passability[x, y, z]
+        }
+    }
+
+    /**
+     * Релаксация всех клеток до неподвижной точки - медленно, но без очереди
+     */
+    private fun relaxToFixpoint(view: AcousticView, volume: Grid3f, maxVolume: Float, attenuation: Float) {
+        do {
+            var changed = false
+            volume.forEach { _, x, y, z ->
+                val v = volume[x, y, z]
+                if (v <= 0f) return@forEach
+                for (offset in NEIGHBOURS_VON_NEUMANN) {
+                    val nx = x + offset[0]
+                    val ny = y + offset[1]
+                    val nz = z + offset[2]
+                    if (nx !in 0 until volume.w || ny !in 0 until volume.h || nz !in 0 until volume.d) continue
+                    val pass = view.getPassability(nx, ny, nz)
+                    if (pass <= 0f) continue
+                    val spread = (v * pass * attenuation).coerceAtMost(maxVolume)
+                    if (spread <= 0.01f) continue
+                    if (spread > volume[nx, ny, nz] + 1e-6f) {
+                        volume[nx, ny, nz] = spread
+                        changed = true
+                    }
+                }
+            }
+        } while (changed)
+    }
+
+    private fun assertMatchesFixpoint(seed: Int, maxVolume: Float, attenuation: Float) {
+        val random = Random(seed)
+        val size = 16
+        val view = randomScene(size, random)
+        val sources = List(3) { Triple(random.nextInt(size), random.nextInt(size), random.nextInt(size)) }
+        val expected = Grid3f(size, size, size)
+        val generation = AcousticGeneration(Grid3f(size, size, size))
+        sources.forEach { (x, y, z) ->
+            expected[x, y, z] = 1f
+            generation.volume[x, y, z] = 1f
+        }
+
+        relaxToFixpoint(view, expected, maxVolume, attenuation)
+        simulateDijkstra(view, generation, maxVolume, attenuation)
+
+        for (i in 0 until expected.size) {
+            assertTrue(abs(expected[i] - generation.volume[i]) < 1e-4f, "Громкость в клетке $i: ${generation.volume[i]}, ожидалось ${expected[i]}")
+        }
+    }
+
+    @Test
+    fun testMatchesFixpoint() {
+        repeat(5) { assertMatchesFixpoint(it, maxVolume = 10f, attenuation = 0.9f) }
+    }
+
+    @Test
+    fun testAmplifyingAttenuation() {
+        repeat(3) { assertMatchesFixpoint(it, maxVolume = 2f, attenuation = 1.3f) }
+    }
+}
@@ -0,0 +1,165 @@
+package org.lain.engine.test
+
+import io.netty.buffer.Unpooled
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.InternalSerializationApi
+import kotlinx.serialization.KSerializer
+import kotlinx.serialization.descriptors.PolymorphicKind
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.descriptors.StructureKind
+import kotlinx.serialization.encoding.AbstractDecoder
+import kotlinx.serialization.encoding.CompositeDecoder
+import kotlinx.serialization.encoding.CompositeDecoder.Companion.DECODE_DONE
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.modules.SerializersModule
+import kotlinx.serialization.serializer
+import net.minecraft.network.FriendlyByteBuf
+import org.lain.engine.server.*
+import org.lain.engine.storage.COMPONENT_SERIALIZERS_MODULE
+import org.lain.engine.transport.FieldDelta
+import org.lain.engine.transport.FieldDeltaCodec
+import org.lain.engine.util.component.ComponentTypeRegistry
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertTrue
+
+class FieldDeltaCodecTest : EngineTest() {
+    private val random = Random(1337)
+
+    @OptIn(InternalSerializationApi::class)
+    @Suppress("UNCHECKED_CAST")
+    private fun networkingSerializers(): Map<String, KSerializer<Any>> {
+        val registered = ComponentTypeRegistry.listEntries()
+            .filter { (_, entry) -> entry.meta.networking }
+            .mapNotNull { (id, entry) -> entry.meta.serializationClass?.let { id to it.serializer() as KSerializer<Any> } }
+        val synchronized = listOf(
+            PLAYER_ARM_STATUS_SYNCHRONIZER,
+            PLAYER_CUSTOM_NAME_SYNCHRONIZER,
+            PLAYER_SPEED_INTENTION_SYNCHRONIZER,
+            PLAYER_NARRATION_SYNCHRONIZER,
+            PLAYER_ATTRIBUTES_SYNCHRONIZER,
+            PLAYER_MODEL_SYNCHRONIZER,
+            PLAYER_HEARING_SYNCHRONIZER,
+        ).map { it.componentType.id to it.serializer as KSerializer<Any> }
+        return (registered + synchronized).toMap()
+    }
+
+    @Test
+    fun testFieldDeltaRoundTrip() {
+        val tested = mutableListOf<String>()
+        for ((id, serializer) in networkingSerializers()) {
+            val codec = FieldDeltaCodec(serializer)
+            repeat(ITERATIONS) {
+                val previous = randomValue(serializer) ?: return@repeat
+                val current = randomValue(serializer) ?: return@repeat
+                val previousFields = codec.encodeFields(previous)
+                val currentFields = codec.encodeFields(current)
+
+                // Полное значение без базового
+                val full = codec.decode(codec.full(currentFields).transmit(codec.fieldCount), null)
+                assertFieldsEqual(id, currentFields, codec.encodeFields(full))
+
+                // Только изменённые поля поверх предыдущего значения
+                val merged = codec.decode(codec.diff(previousFields, currentFields).transmit(codec.fieldCount), previous)
+                assertFieldsEqual(id, currentFields, codec.encodeFields(merged))
+
+                // Как на клиенте: поверх полей прошлой отправки, а не текущего значения
+                val delta = codec.diff(previousFields, currentFields).transmit(codec.fieldCount)
+                val receivedFields = codec.merge(delta, previousFields)
+                assertFieldsEqual(id, currentFields, receivedFields)
+                assertFieldsEqual(id, currentFields, codec.encodeFields(codec.decode(receivedFields)))
+                assertTrue(codec.isFull(codec.full(currentFields).transmit(codec.fieldCount)), "Полная дельта $id не распознана")
+
+                // Повторная отправка без изменений не содержит полей
+                assertTrue(codec.diff(currentFields, currentFields).mask == 0L, "Пустая дельта $id содержит поля")
+                tested += id
+            }
+        }
+        assertTrue(tested.isNotEmpty(), "Ни один компонент не был проверен")
+    }
+
+    private fun assertFieldsEqual(id: String, expected: Array<ByteArray>, actual: Array<ByteArray>) {
+        assertTrue(expected.size == actual.size, "Число полей $id не совпадает")
+        expected.indices.forEach { assertContentEquals(expected[it], actual[it], "Поле $it компонента $id") }
+    }
+
+    private fun FieldDelta.transmit(fieldCount: Int): FieldDelta {
+        val buf = FriendlyByteBuf(Unpooled.buffer())
+        write(buf)
+        return FieldDelta.read(buf, fieldCount)
+    }
+
+    /**
+     * Случайное значение по дескриптору. `null`, если тип нельзя сгенерировать (открытый полиморфизм, проверки в `init`)
+     */
+    private fun randomValue(serializer: KSerializer<Any>): Any? {
+        repeat(GENERATION_ATTEMPTS) {
+            runCatching { serializer.deserialize(RandomValueDecoder(random)) }.onSuccess { return it }
+        }
+        return null
+    }
+
+    companion object {
+        private const val ITERATIONS = 32
+        private const val GENERATION_ATTEMPTS = 8
+    }
+}
+
+@OptIn(ExperimentalSerializationApi::class)
+private class RandomValueDecoder(
+    private val random: Random,
+    private val structure: SerialDescriptor? = null,
+    private val depth: Int = 0,
+) : AbstractDecoder() {
+    private var index = -1
+    private var size = -1
+
+    override val serializersModule: SerializersModule = COMPONENT_SERIALIZERS_MODULE
+
+    override fun beginStructure(descriptor: SerialDescriptor): CompositeDecoder {
+        return RandomValueDecoder(random, descriptor, depth + 1)
+    }
+
+    override fun decodeElementIndex(descriptor: SerialDescriptor): Int {
+        val count = when (descriptor.kind) {
+            StructureKind.LIST -> collectionSize()
+            StructureKind.MAP -> collectionSize() * 2
+            is PolymorphicKind -> 2
+            else -> descriptor.elementsCount
+        }
+        index++
+        return if (index < count) index else DECODE_DONE
+    }
+
+    private fun collectionSize(): Int {
+        if (size == -1) size = if (depth > MAX_DEPTH) 0 else random.nextInt(4)
+        return size
+    }
+
+    override fun decodeString(): String {
+        val structure = structure
+        if (structure != null && structure.kind is PolymorphicKind && index == 0) {
+            if (structure.kind != PolymorphicKind.SEALED) throw UnsupportedOperationException("Открытый полиморфизм ${structure.serialName}")
+            return structure.getElementDescriptor(1).elementNames.toList().random(random)
+        }
+        return List(random.nextInt(12)) { 'a' + random.nextInt(26) }.joinToString("")
+    }
+
+    override fun decodeNotNullMark() = depth <= MAX_DEPTH && random.nextBoolean()
+    override fun decodeNull(): Nothing? = null
+    override fun decodeBoolean() = random.nextBoolean()
+    override fun decodeByte() = random.nextInt(Byte.MIN_VALUE.toInt(), Byte.MAX_VALUE.toInt()).toByte()
+    override fun decodeShort() = random.nextInt(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort()
+    override fun decodeChar() = 'a' + random.nextInt(26)
+    override fun decodeInt() = random.nextInt(-100_000, 100_000)
+    override fun decodeLong() = random.nextLong()
+    override fun decodeFloat() = random.nextFloat() * 200f - 100f
+    override fun decodeDouble() = random.nextDouble(-100.0, 100.0)
+    override fun decodeEnum(enumDescriptor: SerialDescriptor) = random.nextInt(enumDescriptor.elementsCount)
+    override fun decodeInline(descriptor: SerialDescriptor): Decoder = this
+
+    companion object {
+        private const val MAX_DEPTH = 4
+    }
+}
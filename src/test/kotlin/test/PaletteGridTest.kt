@@ -0,0 +1,42 @@
+package org.lain.engine.test
+
+import org.lain.engine.chat.acoustic.PaletteGrid3f
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class PaletteGridTest : EngineTest() {
+    private val air = 0.95f
+    private val stone = 0f
+
+    @Test
+    fun testAirSegmentIsUniform() {
+        // Как в MinecraftChunkAcousticScene.create: палитра по умолчанию - 0, а сегмент целиком из воздуха
+        val grid = PaletteGrid3f(16, 16, 16)
+        grid.map { _, _, _, _ -> air }
+        assertTrue(grid.compact())
+        assertTrue(grid.isUniform, "Сегмент из одного воздуха хранит индексы")
+        assertEquals(air, grid[7, 7, 7])
+
+        val sampled = PaletteGrid3f(16, 16, 16, air)
+        sampled.map { _, _, _, _ -> air }
+        assertTrue(sampled.isUniform, "Однородный сегмент выделил индексы при заполнении")
+    }
+
+    @Test
+    fun testMixedSegmentStaysIndexed() {
+        val grid = PaletteGrid3f(16, 16, 16, air)
+        grid.map { _, _, y, _ -> if (y == 0) stone else air }
+        assertFalse(grid.compact())
+        assertEquals(stone, grid[3, 0, 3])
+        assertEquals(air, grid[3, 1, 3])
+
+        // Блок убран - сегмент снова однороден
+        grid.map { _, _, _, _ -> air }
+        assertTrue(grid.compact())
+        assertTrue(grid.isUniform)
+        assertEquals(air, grid[3, 0, 3])
+        grid.free()
+    }
+}
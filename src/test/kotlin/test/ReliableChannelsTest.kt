@@ -0,0 +1,129 @@
+package org.lain.engine.test
+
+import org.lain.engine.player.EnginePlayer
+import org.lain.engine.player.PlayerId
+import org.lain.engine.transport.Endpoint
+import org.lain.engine.transport.Packet
+import org.lain.engine.transport.PacketCodec
+import org.lain.engine.transport.ServerPacketHandler
+import org.lain.engine.transport.ServerTransportContext
+import org.lain.engine.transport.packet.ReliableChannels
+import org.lain.engine.transport.packet.ReliableReceiver
+import org.lain.engine.transport.packet.ReliableSkipPacket
+import java.util.*
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ReliableChannelsTest : EngineTest() {
+    private class TestPacket(val value: Int) : Packet
+
+    private val endpoint = Endpoint<TestPacket>(
+        "reliable-test",
+        PacketCodec.Binary({ TestPacket(readInt()) }, { writeInt(it.value) })
+    )
+    private val player = PlayerId(UUID.randomUUID())
+
+    /**
+     * Петля без сети: пакеты сразу попадают в окно приёма клиента, если [drop] их не отбросил
+     */
+    private class LoopbackTransport(var drop: (Packet) -> Boolean) : ServerTransportContext {
+        val receiver = ReliableReceiver()
+        val delivered = mutableListOf<Int>()
+
+        override fun <P : Packet> sendClientboundPacket(endpoint: Endpoint<P>, packet: P, player: PlayerId, id: Long) {
+            if (drop(packet)) return
+            if (packet is ReliableSkipPacket) {
+                receiver.skip(packet.channel, packet.sequence)
+                return
+            }
+            if (receiver.receive(id)) delivered += (packet as TestPacket).value
+        }
+
+        override fun <P : Packet> registerServerReceiver(endpoint: Endpoint<P>, handler: ServerPacketHandler<P>) {}
+        override fun unregisterAll() {}
+        override fun <P : Packet> broadcastClientboundPacket(endpoint: Endpoint<P>, lazyPacket: (EnginePlayer) -> P) {}
+        override fun isOnThread(): Boolean = true
+        override fun executeOnThread(runnable: () -> Unit) = runnable()
+    }
+
+    private fun ReliableChannels.exchange(transport: LoopbackTransport) {
+        transport.receiver.collectAcknowledge()?.let { acknowledge(player, it) }
+        tick()
+    }
+
+    @Test
+    fun testLossyDelivery() {
+        val random = Random(42)
+        val transport = LoopbackTransport { random.nextFloat() < 0.3f }
+        val channels = ReliableChannels(transport)
+        val acknowledged = mutableListOf<Int>()
+
+        repeat(PACKETS) { value ->
+            channels.send(endpoint, TestPacket(value), player, retryAttempts = 100, retryTicks = 2) {
+                assertTrue(it, "Пакет $value не доставлен")
+                acknowledged += value
+            }
+            if (value % 7 == 0) channels.exchange(transport)
+        }
+        repeat(200) { channels.exchange(transport) }
+
+        assertEquals((0 until PACKETS).toList(), transport.delivered.sorted(), "Пакеты потеряны или обработаны дважды")
+        assertEquals((0 until PACKETS).toList(), acknowledged.sorted(), "Не все пакеты подтверждены")
+        assertEquals(0, channels.inFlight(player))
+    }
+
+    @Test
+    fun testTimeout() {
+        val transport = LoopbackTransport { true }
+        val channels = ReliableChannels(transport)
+        var result: Boolean? = null
+        val retransmits = endpoint.metrics.outbound.retransmits.sum()
+        channels.send(endpoint, TestPacket(0), player, retryAttempts = 3, retryTicks = 1) { result = it }
+
+        repeat(10) { channels.exchange(transport) }
+
+        assertEquals(false, result, "Неподтверждённый пакет не завершился отказом")
+        assertEquals(2, endpoint.metrics.outbound.retransmits.sum() - retransmits, "Повторы не учтены в метриках")
+        assertEquals(0, channels.inFlight(player))
+
+        // Брошенный номер не должен останавливать канал: пакетов больше, чем помещается в окно
+        transport.drop = { false }
+        val acknowledged = mutableListOf<Int>()
+        val count = ReliableChannels.WINDOW_SIZE * 3
+        for (value in 1..count) {
+            channels.send(endpoint, TestPacket(value), player, retryAttempts = 5, retryTicks = 2) {
+                assertTrue(it, "Пакет $value не подтверждён после брошенного")
+                acknowledged += value
+            }
+            channels.exchange(transport)
+        }
+        repeat(10) { channels.exchange(transport) }
+
+        assertEquals((1..count).toList(), transport.delivered, "Пакеты после брошенного не доставлены")
+        assertEquals((1..count).toList(), acknowledged, "Пакеты после брошенного не подтверждены")
+        assertEquals(0, channels.inFlight(player))
+    }
+
+    @Test
+    fun testLostSkipIsResent() {
+        val transport = LoopbackTransport { true }
+        val channels = ReliableChannels(transport)
+        channels.send(endpoint, TestPacket(0), player, retryAttempts = 1, retryTicks = 1) {}
+        repeat(3) { channels.exchange(transport) }
+
+        // Пропуск потерян вместе с пакетом; следующее подтверждение клиента должно вызвать повтор
+        transport.drop = { false }
+        var acknowledged = false
+        channels.send(endpoint, TestPacket(1), player, retryAttempts = 5, retryTicks = 2) { acknowledged = it }
+        repeat(10) { channels.exchange(transport) }
+
+        assertTrue(acknowledged, "Пакет после потерянного пропуска не подтверждён")
+        assertEquals(0, channels.inFlight(player))
+    }
+
+    companion object {
+        private const val PACKETS = 500
+    }
+}
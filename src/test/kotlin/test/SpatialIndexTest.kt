@@ -0,0 +1,87 @@
+package org.lain.engine.test
+
+import org.lain.cyberia.ecs.componentTypeOf
+import org.lain.cyberia.ecs.setComponent
+import org.lain.engine.client.mc.chat.DummyWorld
+import org.lain.engine.server.WorldInterest
+import org.lain.engine.util.component.EntityId
+import org.lain.engine.util.component.Networked
+import org.lain.engine.util.math.Vec3
+import org.lain.engine.world.EngineChunk
+import org.lain.engine.world.EngineChunkPos
+import org.lain.engine.world.Location
+import org.lain.engine.world.VoxelPos
+import org.lain.engine.world.World
+import org.lain.engine.world.setDynamicVoxel
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class SpatialIndexTest : EngineTest() {
+    private fun World.networkedEntity(x: Float): EntityId = componentManager.addEntity {
+        setComponent(Location(Vec3(x, 0f, 0f)))
+        setComponent(Networked)
+    }
+
+    /**
+     * Подписки игрока в начале координат, как их видит ServerHandler.tick
+     */
+    private fun World.subscribeAll() = WorldInterest(this).let { interest ->
+        interest.setRadius(1)
+        val entities = interest.entities.subscribe().also { interest.entities.update(it, Vec3(0f)) }
+        val voxels = interest.voxels.subscribe().also { interest.voxels.update(it, Vec3(0f)) }
+        entities to voxels
+    }
+
+    private fun World.subscribe() = subscribeAll().first
+
+    @Test
+    fun testDestroyedEntityLeavesIndex() = with(DummyWorld()) {
+        val entity = networkedEntity(1f)
+        refreshSpatialIndex()
+        val subscription = subscribe()
+        assertTrue(entity in subscription.visible)
+
+        // Сущность уничтожена посреди тика, до синхронизации
+        destroy(entity)
+        assertEquals(0, networkedEntityIndex.size)
+        assertFalse(entity in subscription.visible, "Уничтоженная сущность осталась в подписке")
+
+        refreshSpatialIndex()
+        assertFalse(entity in subscription.visible)
+    }
+
+    @Test
+    fun testRemovedComponentLeavesIndex() = with(DummyWorld()) {
+        val entity = networkedEntity(1f)
+        refreshSpatialIndex()
+        val subscription = subscribe()
+
+        removeComponent(entity, componentTypeOf(Networked::class))
+        assertFalse(entity in subscription.visible, "Сущность без Networked осталась в подписке")
+    }
+
+    @Test
+    fun testSpawnedEntityVisibleInSameTick() = with(DummyWorld()) {
+        refreshSpatialIndex()
+        val subscription = subscribe()
+
+        val entity = networkedEntity(2f)
+        assertTrue(entity in subscription.visible, "Созданная сущность не видна до следующего тика")
+    }
+
+    @Test
+    fun testRemovedVoxelLeavesInterest() = with(DummyWorld()) {
+        val pos = VoxelPos(1, 0, 1)
+        chunkStorage.setChunk(EngineChunkPos(pos), EngineChunk())
+        val voxel = setDynamicVoxel(pos, networked = true)
+        refreshSpatialIndex()
+        val (entities, voxels) = subscribeAll()
+        assertTrue(voxel in voxels.visible)
+
+        chunkStorage.removeVoxel(pos)
+        assertFalse(voxel in voxels.visible, "Удалённый воксель остался в подписке")
+        assertFalse(voxel in entities.visible, "Удалённый воксель остался в подписке на сущности")
+    }
+}
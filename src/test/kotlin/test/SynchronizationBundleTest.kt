@@ -0,0 +1,15 @@
+package org.lain.engine.test
+
+import org.lain.engine.server.SynchronizationBundle
+import kotlin.test.Test
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class SynchronizationBundleTest : EngineTest() {
+    @Test
+    fun testOversizedEntryRejected() {
+        val bundle = SynchronizationBundle(maxSize = 64)
+        assertTrue(bundle.add(ByteArray(32)))
+        assertFalse(bundle.add(ByteArray(64)), "Дельта больше пакета принята в бандл")
+    }
+}